@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash;
+
+/**
+ * A {@link StashProvider} which also holds numeric counters,
+ * that are updated atomically without retrieving them first.
+ *
+ * Counters live alongside, but separately from, cached elements,
+ * and expire according to the stash's expiry policy, which is
+ * applied again whenever a counter is written. A counter and a
+ * counter group may share a key without affecting each other.
+ *
+ * @param <K> the key type
+ * @param <T> the element type
+ */
+public interface CountingStashProvider<K, T> extends StashProvider<K, T> {
+
+    /**
+     * Increments the counter under the provided key by one.
+     * @param key the key of the counter
+     * @return the new counter value
+     */
+    long increment(K key);
+
+    /**
+     * Adds to the counter under the provided key, creating it if it does not exist.
+     *
+     * @param key the key of the counter
+     * @param delta the amount to add, which may be negative
+     * @return the new counter value
+     */
+    long add(K key, long delta);
+
+    /**
+     * Adds to the counter under the provided key, creating it if it does not exist.
+     *
+     * @param key the key of the counter
+     * @param delta the amount to add, which may be negative
+     * @return the counter value before the addition
+     */
+    long getAndAdd(K key, long delta);
+
+    /**
+     * Adds to the floating-point counter under the provided key,
+     * creating it if it does not exist.
+     *
+     * @param key the key of the counter
+     * @param delta the amount to add, which may be negative
+     * @return the new counter value
+     */
+    double add(K key, double delta);
+
+    /**
+     * Adds to a single field of the counter group under the provided key,
+     * leaving the group's other fields untouched.
+     *
+     * @param key the key of the counter group
+     * @param field the field to add to
+     * @param delta the amount to add, which may be negative
+     * @return the new field value
+     */
+    long add(K key, String field, long delta);
+
+    /**
+     * Returns the value of the counter under the provided key.
+     * @param key the key of the counter
+     * @return the counter value, or 0 if it does not exist
+     */
+    long count(K key);
+
+    /**
+     * Returns the value of a single field of the counter group under the provided key.
+     *
+     * @param key the key of the counter group
+     * @param field the field to read
+     * @return the field value, or 0 if it does not exist
+     */
+    long count(K key, String field);
+
+}
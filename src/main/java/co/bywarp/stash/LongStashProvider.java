@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash;
+
+import co.bywarp.lightkit.util.Closable;
+
+import java.util.Map;
+import java.util.function.BiPredicate;
+import java.util.function.LongPredicate;
+
+/**
+ * A {@link StashProvider} specialized for primitive long keys.
+ *
+ * Keys are never boxed on single-element operations, which makes
+ * lookups by numeric identifiers free of allocation where the
+ * underlying engine allows it.
+ *
+ * @param <T> the type of cached elements
+ */
+public interface LongStashProvider<T> extends Closable {
+
+    /**
+     * Retrieves a cached item of type T
+     * using the provided key.
+     *
+     * @param key the key mapped to the cached object.
+     * @return the cached object
+     */
+    T retrieve(long key);
+
+    /**
+     * Retrieves a cached item of type T using the provided key.
+     * If the retrieved item could not be found, an alternative item, also of
+     * type T, will be returned in it's place.
+     *
+     * @param key the key mapped to the cached object.
+     * @param orElse the value to return if the cached element does not exist.
+     * @return the cached object, or if it does not exist, an alternate object.
+     */
+    T retrieveOrElse(long key, T orElse);
+
+    /**
+     * Retrieves a cached item of type T using the provided key.
+     * If the retrieved item could not be found, the second parameter, also of type T
+     * will be assigned to the specified key instead.
+     *
+     * @param key the key mapped to the cached object.
+     * @param newValue the value to store if the element is not present.
+     * @return the cached object, or if it does not exist, the alternate object.
+     */
+    T retrieveOrSet(long key, T newValue);
+
+    /**
+     * Retrieves all cached elements.
+     * @return all cached elements
+     */
+    Map<Long, T> retrieveAll();
+
+    /**
+     * Stores (and updates if found) an object of type T
+     * using the provided key.
+     *
+     * @param key the key used to retrieve the object
+     * @param element the object to cache
+     * @return the cached object
+     */
+    T store(long key, T element);
+
+    /**
+     * Updates a cached value (if found) in the Stash.
+     *
+     * @param key the key to update
+     * @param element the new value to cache under the key
+     * @throws NullPointerException thrown if no element exists for the provided key
+     * @return the cached object
+     */
+    T update(long key, T element) throws NullPointerException;
+
+    /**
+     * Evicts a cached item by it's key.
+     * @param key the key to evict
+     * @return if the element was successfully evicted
+     */
+    boolean evict(long key);
+
+    /**
+     * Evicts a cached item by it's key, and expected value.
+     *
+     * @param key the key to evict
+     * @param element the item that is expected to be there
+     * @return if the element was successfully evicted
+     */
+    boolean evict(long key, T element);
+
+    /**
+     * Atomically replaces a cached element, only if it is
+     * currently equal to the expected element.
+     *
+     * An expected element of null matches an absent element, so that
+     * the new element is only stored if none is present.
+     *
+     * @param key the key of the element
+     * @param expected the element that is expected to be cached
+     * @param element the new element to cache under the key
+     * @return if the element was replaced
+     */
+    boolean compareAndSet(long key, T expected, T element);
+
+    /**
+     * Atomically evicts a cached element, only if it is
+     * currently equal to the expected element.
+     *
+     * @param key the key to evict
+     * @param expected the element that is expected to be cached
+     * @return if the element was evicted
+     */
+    boolean compareAndEvict(long key, T expected);
+
+    /**
+     * Evicts all elements that match the specified predicate.
+     * @param predicate the condition to meet for eviction
+     */
+    void evictIf(BiPredicate<Long, T> predicate);
+
+    /**
+     * Evicts all elements whose keys match the specified predicate.
+     * @param predicate the condition to meet for eviction
+     */
+    void evictKeysIf(LongPredicate predicate);
+
+    /**
+     * Evicts all cached elements.
+     */
+    void evictAll();
+
+    /**
+     * Returns whether or not the specified key refers to an element that is present in the cache.
+     * @param key the provided key
+     * @return if an element with such key is present in the cache
+     */
+    boolean contains(long key);
+
+}
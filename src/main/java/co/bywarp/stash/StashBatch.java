@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import lombok.Getter;
+
+/**
+ * A group of writes to a {@link StashProvider} which are committed together.
+ *
+ * Writes are only collected until {@link StashBatch#commit()} is called, and are
+ * then applied in the order they were added. Providers which support atomic batches
+ * apply either all of the writes or none of them, and never let a reader observe
+ * a partially applied batch.
+ *
+ * @param <K> the key type
+ * @param <T> the element type
+ */
+public class StashBatch<K, T> {
+
+    private final Consumer<StashBatch<K, T>> committer;
+
+    @Getter
+    private final List<Write<K, T>> writes;
+
+    private boolean committed;
+
+    /**
+     * Creates an empty batch.
+     * @param committer applies the writes of the batch to the provider
+     */
+    public StashBatch(Consumer<StashBatch<K, T>> committer) {
+        this.committer = committer;
+        this.writes = new ArrayList<>();
+    }
+
+    /**
+     * Adds a write which stores (and updates if found) an element.
+     *
+     * @param key the key used to retrieve the object
+     * @param element the object to cache
+     * @return this batch
+     */
+    public StashBatch<K, T> store(K key, T element) {
+        return add(new Write<>(WriteType.STORE, key, element));
+    }
+
+    /**
+     * Adds a write which updates an element, failing the whole
+     * batch if no element exists for the key when it is committed.
+     *
+     * @param key the key to update
+     * @param element the new value to cache under the key
+     * @return this batch
+     */
+    public StashBatch<K, T> update(K key, T element) {
+        return add(new Write<>(WriteType.UPDATE, key, element));
+    }
+
+    /**
+     * Adds a write which evicts an element.
+     * @param key the key to evict
+     * @return this batch
+     */
+    public StashBatch<K, T> evict(K key) {
+        return add(new Write<>(WriteType.EVICT, key, null));
+    }
+
+    /**
+     * Applies all of the writes in this batch.
+     *
+     * @throws NullPointerException thrown if an updated key has no element, in which case no write is applied
+     * @throws IllegalStateException thrown if this batch has already been committed
+     */
+    public void commit() throws NullPointerException {
+        if (committed) {
+            throw new IllegalStateException("Batch has already been committed");
+        }
+
+        committed = true;
+        if (!writes.isEmpty()) {
+            committer.accept(this);
+        }
+    }
+
+    public boolean isEmpty() {
+        return writes.isEmpty();
+    }
+
+    public List<K> getUpdatedKeys() {
+        List<K> keys = new ArrayList<>();
+        for (Write<K, T> write : writes) {
+            if (write.getType() == WriteType.UPDATE && !keys.contains(write.getKey())) {
+                keys.add(write.getKey());
+            }
+        }
+
+        return Collections.unmodifiableList(keys);
+    }
+
+    /**
+     * Checks that every updated key will have an element when it's update is
+     * applied, either because it is already present, or because it was stored
+     * earlier in this batch.
+     *
+     * @param present tests whether a key has an element before the batch is applied
+     * @throws NullPointerException thrown if an updated key has no element
+     */
+    public void verify(Predicate<K> present) throws NullPointerException {
+        Map<K, Boolean> written = new HashMap<>();
+        for (Write<K, T> write : writes) {
+            K key = write.getKey();
+            if (write.getType() == WriteType.UPDATE) {
+                Boolean exists = written.get(key);
+                if (exists == null ? !present.test(key) : !exists) {
+                    throw new NullPointerException("No element for key \"" + key.toString() + "\"");
+                }
+            }
+
+            written.put(key, write.getType() != WriteType.EVICT);
+        }
+    }
+
+    private StashBatch<K, T> add(Write<K, T> write) {
+        if (committed) {
+            throw new IllegalStateException("Batch has already been committed");
+        }
+
+        writes.add(write);
+        return this;
+    }
+
+    public enum WriteType {
+        STORE, UPDATE, EVICT
+    }
+
+    @Getter
+    public static class Write<K, T> {
+
+        private final WriteType type;
+        private final K key;
+        private final T element;
+
+        private Write(WriteType type, K key, T element) {
+            this.type = type;
+            this.key = key;
+            this.element = element;
+        }
+
+        public boolean isEviction() {
+            return type == WriteType.EVICT;
+        }
+
+    }
+
+}
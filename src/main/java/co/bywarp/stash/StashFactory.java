@@ -17,20 +17,37 @@
 
 package co.bywarp.stash;
 
-import co.bywarp.lightkit.util.CollectionUtils;
 import co.bywarp.lightkit.util.logger.Logger;
+import co.bywarp.stash.codec.StashCodec;
+import co.bywarp.stash.disk.DiskStash;
+import co.bywarp.stash.disk.TieredStash;
+import co.bywarp.stash.element.ElementExpiryHandler;
 import co.bywarp.stash.element.ElementExpiryPolicy;
+import co.bywarp.stash.memory.LongMemoryStash;
 import co.bywarp.stash.memory.MemoryStash;
+import co.bywarp.stash.memory.OffHeapStash;
+import co.bywarp.stash.redis.LongRedisStash;
+import co.bywarp.stash.redis.RedisBulkRead;
 import co.bywarp.stash.redis.RedisConnection;
+import co.bywarp.stash.redis.RedisHotKeyPolicy;
 import co.bywarp.stash.redis.RedisKeyspace;
+import co.bywarp.stash.redis.RedisLongKeyspace;
+import co.bywarp.stash.redis.RedisReplicatedStash;
+import co.bywarp.stash.redis.RedisReplication;
+import co.bywarp.stash.redis.RedisServeStale;
+import co.bywarp.stash.redis.RedisSingleFlight;
 import co.bywarp.stash.redis.RedisStash;
 import co.bywarp.stash.redis.RedisTypeAdapter;
+import co.bywarp.stash.redis.RedisWriteBehind;
+import co.bywarp.stash.trace.StashAccessLog;
+import co.bywarp.stash.trace.StashAccessRecorder;
+import co.bywarp.stash.trace.StashTracing;
 
-import java.lang.reflect.InvocationTargetException;
-import java.util.List;
+import java.nio.file.Path;
 
 import lombok.AccessLevel;
 import lombok.Setter;
+import redis.clients.jedis.exceptions.JedisException;
 
 @Setter(AccessLevel.PRIVATE)
 @SuppressWarnings({"SimplifyStreamApiCallChains", "rawtypes", "unchecked"})
@@ -43,10 +60,25 @@ public class StashFactory<K, T> {
     private RedisKeyspace<K> redisKeyspace;
     private RedisTypeAdapter<String, T> resultSerializer;
     private RedisTypeAdapter<T, String> typeSerializer;
+    private RedisWriteBehind writeBehind;
+    private RedisHotKeyPolicy hotKeyPolicy;
+    private RedisServeStale serveStale;
+    private RedisBulkRead bulkRead;
+    private ElementExpiryHandler<T, K> expiryHandler;
+    private RedisSingleFlight singleFlight;
+    private StashTracing tracing;
+    private StashAccessLog<T> accessLog;
+    private StashCodec<K> keyCodec;
+    private StashCodec<T> valueCodec;
+    private long maxMemory;
+    private Path directory;
+    private RedisReplication replication;
 
     public StashFactory(StashSource source) {
         this.source = source;
         this.logger = new Logger("Stash Factory");
+        this.maxMemory = OffHeapStash.DEFAULT_MAX_MEMORY;
+        this.replication = RedisReplication.DEFAULT;
     }
 
     protected StashFactory(StashSource source,
@@ -91,6 +123,80 @@ public class StashFactory<K, T> {
         return (MemoryStash<K, T>) factory.build();
     }
 
+    /**
+     * Creates a factory instance for a {@link co.bywarp.stash.memory.OffHeapStash}.
+     *
+     * @param <T> the element type
+     * @param <K> the key type
+     *
+     * @param expiryPolicy the expiry policy for cache elements
+     * @param keyCodec the codec used to store keys
+     * @param valueCodec the codec used to store elements
+     * @param maxMemory the maximum amount of direct memory to use, in bytes
+     *
+     * @return a fully configured {@link StashFactory}
+     */
+    public static <K, T> OffHeapStash<K, T> offHeapStash(ElementExpiryPolicy expiryPolicy,
+                                                         StashCodec<K> keyCodec,
+                                                         StashCodec<T> valueCodec,
+                                                         long maxMemory) {
+        return (OffHeapStash<K, T>) new StashFactory<K, T>(StashSource.OFF_HEAP)
+                .withExpiryPolicy(expiryPolicy)
+                .withKeyCodec(keyCodec)
+                .withValueCodec(valueCodec)
+                .withMaxMemory(maxMemory)
+                .build();
+    }
+
+    /**
+     * Creates a factory instance for a {@link co.bywarp.stash.disk.DiskStash}.
+     *
+     * @param <T> the element type
+     * @param <K> the key type
+     *
+     * @param expiryPolicy the expiry policy for cache elements
+     * @param directory the directory to keep the log in
+     * @param keyCodec the codec used to store keys
+     * @param valueCodec the codec used to store elements
+     *
+     * @return a fully configured {@link StashFactory}
+     */
+    public static <K, T> DiskStash<K, T> diskStash(ElementExpiryPolicy expiryPolicy,
+                                                   Path directory,
+                                                   StashCodec<K> keyCodec,
+                                                   StashCodec<T> valueCodec) {
+        return (DiskStash<K, T>) new StashFactory<K, T>(StashSource.DISK)
+                .withExpiryPolicy(expiryPolicy)
+                .withDirectory(directory)
+                .withKeyCodec(keyCodec)
+                .withValueCodec(valueCodec)
+                .build();
+    }
+
+    /**
+     * Creates a {@link co.bywarp.stash.disk.TieredStash}, which keeps up to
+     * the provided amount of elements in memory, and overflows onto disk.
+     *
+     * @param <T> the element type
+     * @param <K> the key type
+     *
+     * @param expiryPolicy the expiry policy for cache elements
+     * @param maximumSize the maximum amount of elements to keep in memory
+     * @param directory the directory to keep the overflow log in
+     * @param keyCodec the codec used to store keys
+     * @param valueCodec the codec used to store elements
+     *
+     * @return the tiered stash
+     */
+    public static <K, T> TieredStash<K, T> tieredStash(ElementExpiryPolicy expiryPolicy,
+                                                       int maximumSize,
+                                                       Path directory,
+                                                       StashCodec<K> keyCodec,
+                                                       StashCodec<T> valueCodec) {
+        return new TieredStash<>(expiryPolicy, maximumSize,
+                diskStash(expiryPolicy, directory, keyCodec, valueCodec));
+    }
+
     /**
      * Creates a factory instance for a {@link co.bywarp.stash.redis.RedisStash}.
      *
@@ -119,6 +225,72 @@ public class StashFactory<K, T> {
         return (RedisStash<K, T>) factory.build();
     }
 
+    /**
+     * Creates a factory instance for a {@link co.bywarp.stash.redis.RedisReplicatedStash}.
+     *
+     * @param <T> the element type
+     * @param <K> the key type
+     *
+     * @param expiryPolicy the expiry policy for cache elements
+     * @param connection the connection data for this stash
+     * @param keyspace the keyspace whose prefix names the change stream
+     * @param keyCodec the codec used to replicate keys
+     * @param valueCodec the codec used to replicate elements
+     *
+     * @return the replicated stash
+     */
+    public static <K, T> RedisReplicatedStash<K, T> replicatedStash(ElementExpiryPolicy expiryPolicy,
+                                                                    RedisConnection connection,
+                                                                    RedisKeyspace<K> keyspace,
+                                                                    StashCodec<K> keyCodec,
+                                                                    StashCodec<T> valueCodec) {
+        return (RedisReplicatedStash<K, T>) new StashFactory<K, T>(StashSource.REPLICATED)
+                .withExpiryPolicy(expiryPolicy)
+                .withRedisConnection(connection)
+                .withKeyspace(keyspace)
+                .withKeyCodec(keyCodec)
+                .withValueCodec(valueCodec)
+                .build();
+    }
+
+    /**
+     * Creates a {@link co.bywarp.stash.memory.LongMemoryStash},
+     * which is keyed by primitive longs.
+     *
+     * @param <T> the element type
+     * @param expiryPolicy the expiry policy for cache elements
+     * @return the long-keyed stash
+     */
+    public static <T> LongMemoryStash<T> longMemoryStash(ElementExpiryPolicy expiryPolicy) {
+        return new LongMemoryStash<>(expiryPolicy);
+    }
+
+    /**
+     * Creates a {@link co.bywarp.stash.redis.LongRedisStash},
+     * which is keyed by primitive longs.
+     *
+     * @param <T> the element type
+     *
+     * @param expiryPolicy the expiry policy for cache elements
+     * @param connection the connection data for this stash
+     * @param prefix the keyspace prefix for this stash
+     * @param resultSerializer the result serializer for this stash
+     * @param typeSerializer the type serializer for this stash
+     *
+     * @return the long-keyed stash
+     */
+    public static <T> LongRedisStash<T> longRedisStash(ElementExpiryPolicy expiryPolicy,
+                                                       RedisConnection connection,
+                                                       String prefix,
+                                                       RedisTypeAdapter<String, T> resultSerializer,
+                                                       RedisTypeAdapter<T, String> typeSerializer) {
+        return new LongRedisStash<>(expiryPolicy,
+                connection,
+                new RedisLongKeyspace(prefix, connection),
+                resultSerializer,
+                typeSerializer);
+    }
+
     /**
      * Assigns the element expiry policy for a {@link StashProvider}.
      * @param expiryPolicy the expiry policy to follow
@@ -136,7 +308,7 @@ public class StashFactory<K, T> {
      * @return this factory instance
      */
     public StashFactory<K, T> withRedisConnection(RedisConnection connection) {
-        if (source != StashSource.REDIS) {
+        if (source != StashSource.REDIS && source != StashSource.REPLICATED) {
             throw new UnsupportedOperationException("Cannot assign type serializer to Non-Redis stash");
         }
 
@@ -151,7 +323,7 @@ public class StashFactory<K, T> {
      * @return this factory instance
      */
     public StashFactory<K, T> withKeyspace(RedisKeyspace<K> keyspace) {
-        if (source != StashSource.REDIS) {
+        if (source != StashSource.REDIS && source != StashSource.REPLICATED) {
             throw new UnsupportedOperationException("Cannot assign type serializer to Non-Redis stash");
         }
 
@@ -190,55 +362,293 @@ public class StashFactory<K, T> {
     }
 
     /**
-     * Builds a {@link StashProvider} from all of the provided data sources, serializers, and options.
-     * @return the completed {@link StashProvider}
+     * Enables write-behind mode for a {@link co.bywarp.stash.redis.RedisStash}.
+     * @param writeBehind the write-behind configuration
+     * @throws UnsupportedOperationException thrown if current builder is not a Redis builder.
+     * @return this factory instance
      */
-    public StashProvider<K, T> build() {
-        return this.reflectivelyInitialize(source);
+    public StashFactory<K, T> withWriteBehind(RedisWriteBehind writeBehind) {
+        if (source != StashSource.REDIS) {
+            throw new UnsupportedOperationException("Cannot enable write-behind for Non-Redis stash");
+        }
+
+        this.writeBehind = writeBehind;
+        return this;
     }
 
     /**
-     * Reflectively initializes a {@link StashProvider} from a {@link StashSource}.
-     * @param source the provided {@link StashSource}
-     * @return the {@link StashProvider}
+     * Enables hot key tracking for a {@link co.bywarp.stash.redis.RedisStash}.
+     * @param hotKeyPolicy the hot key policy
+     * @throws UnsupportedOperationException thrown if current builder is not a Redis builder.
+     * @return this factory instance
      */
-    private StashProvider<K, T> reflectivelyInitialize(StashSource source) {
-        Class<? extends StashProvider> genericProvider = source.getProvider();
-        try {
-            Object[] constructorValues = getConstructorValues();
-            return genericProvider
-                    .getConstructor(source.getConstructorTypes())
-                    .newInstance(constructorValues);
-        } catch (InstantiationException
-                    | IllegalAccessException
-                    | NoSuchMethodException
-                    | InvocationTargetException e) {
-            logger.except(e, "Failed to initialize StashProvider");
-            return null;
+    public StashFactory<K, T> withHotKeyTracking(RedisHotKeyPolicy hotKeyPolicy) {
+        if (source != StashSource.REDIS) {
+            throw new UnsupportedOperationException("Cannot enable hot key tracking for Non-Redis stash");
         }
+
+        this.hotKeyPolicy = hotKeyPolicy;
+        return this;
     }
 
     /**
-     * Retrieves constructor values for the current {@link StashSource}.
-     * @return a list of constructor values
+     * Enables degraded mode for a {@link co.bywarp.stash.redis.RedisStash}, serving the
+     * last known elements from an in-process copy while Redis is unreachable.
+     * @param serveStale the degraded mode configuration
+     * @throws UnsupportedOperationException thrown if current builder is not a Redis builder.
+     * @return this factory instance
      */
-    private Object[] getConstructorValues() {
-        List<Object> objects = CollectionUtils.collect(expiryPolicy);
-        if (source == StashSource.MEMORY) {
-            return quickConvertList(objects);
+    public StashFactory<K, T> withServeStale(RedisServeStale serveStale) {
+        if (source != StashSource.REDIS) {
+            throw new UnsupportedOperationException("Cannot enable serve-stale for Non-Redis stash");
         }
 
-        List<Object> redisComponents = CollectionUtils.collect(
-                redisConnection,
-                redisKeyspace,
-                resultSerializer,
-                typeSerializer);
-        objects.addAll(redisComponents);
-        return quickConvertList(objects);
+        this.serveStale = serveStale;
+        return this;
+    }
+
+    /**
+     * Configures how a {@link co.bywarp.stash.redis.RedisStash} reads its whole keyspace in parallel.
+     * @param bulkRead the bulk read configuration
+     * @throws UnsupportedOperationException thrown if current builder is not a Redis builder.
+     * @return this factory instance
+     */
+    public StashFactory<K, T> withBulkReads(RedisBulkRead bulkRead) {
+        if (source != StashSource.REDIS) {
+            throw new UnsupportedOperationException("Cannot configure bulk reads for Non-Redis stash");
+        }
+
+        this.bulkRead = bulkRead;
+        return this;
     }
 
-    private Object[] quickConvertList(List<?> list) {
-        return list.stream().toArray(Object[]::new);
+    /**
+     * Subscribes a {@link co.bywarp.stash.redis.RedisStash} to remote expiry and eviction notifications.
+     * @param expiryHandler the handler for remotely removed elements
+     * @throws UnsupportedOperationException thrown if current builder is not a Redis builder.
+     * @return this factory instance
+     */
+    public StashFactory<K, T> withExpiryNotifications(ElementExpiryHandler<T, K> expiryHandler) {
+        if (source != StashSource.REDIS) {
+            throw new UnsupportedOperationException("Cannot enable expiry notifications for Non-Redis stash");
+        }
+
+        this.expiryHandler = expiryHandler;
+        return this;
+    }
+
+    /**
+     * Configures distributed loading for a {@link co.bywarp.stash.redis.RedisStash}.
+     * @param singleFlight the distributed loading configuration
+     * @throws UnsupportedOperationException thrown if current builder is not a Redis builder.
+     * @return this factory instance
+     */
+    public StashFactory<K, T> withSingleFlight(RedisSingleFlight singleFlight) {
+        if (source != StashSource.REDIS) {
+            throw new UnsupportedOperationException("Cannot configure single-flight for Non-Redis stash");
+        }
+
+        this.singleFlight = singleFlight;
+        return this;
+    }
+
+    /**
+     * Enables phase tracing for a {@link co.bywarp.stash.memory.MemoryStash}
+     * or {@link co.bywarp.stash.redis.RedisStash}.
+     * @param tracing the tracing configuration
+     * @throws UnsupportedOperationException thrown if current builder is not a memory or Redis builder.
+     * @return this factory instance
+     */
+    public StashFactory<K, T> withTracing(StashTracing tracing) {
+        if (source != StashSource.MEMORY && source != StashSource.REDIS) {
+            throw new UnsupportedOperationException("Cannot enable tracing for Non-Memory or Non-Redis stash");
+        }
+
+        this.tracing = tracing;
+        return this;
+    }
+
+    /**
+     * Captures a sample of the accesses to the built stash into an access trace,
+     * by wrapping it in a {@link co.bywarp.stash.trace.StashAccessRecorder}.
+     * @param accessLog the access trace configuration
+     * @return this factory instance
+     */
+    public StashFactory<K, T> withAccessTrace(StashAccessLog<T> accessLog) {
+        this.accessLog = accessLog;
+        return this;
+    }
+
+    /**
+     * Assigns the key codec for a {@link co.bywarp.stash.memory.OffHeapStash}, {@link co.bywarp.stash.disk.DiskStash}
+     * or {@link co.bywarp.stash.redis.RedisReplicatedStash}.
+     * @param keyCodec the codec used to store keys
+     * @throws UnsupportedOperationException thrown if current builder is not an off-heap, disk or replicated builder.
+     * @return this factory instance
+     */
+    public StashFactory<K, T> withKeyCodec(StashCodec<K> keyCodec) {
+        if (source != StashSource.OFF_HEAP && source != StashSource.DISK && source != StashSource.REPLICATED) {
+            throw new UnsupportedOperationException("Cannot assign key codec to Non-Binary stash");
+        }
+
+        this.keyCodec = keyCodec;
+        return this;
+    }
+
+    /**
+     * Assigns the value codec for a {@link co.bywarp.stash.memory.OffHeapStash}, {@link co.bywarp.stash.disk.DiskStash}
+     * or {@link co.bywarp.stash.redis.RedisReplicatedStash}.
+     * @param valueCodec the codec used to store elements
+     * @throws UnsupportedOperationException thrown if current builder is not an off-heap, disk or replicated builder.
+     * @return this factory instance
+     */
+    public StashFactory<K, T> withValueCodec(StashCodec<T> valueCodec) {
+        if (source != StashSource.OFF_HEAP && source != StashSource.DISK && source != StashSource.REPLICATED) {
+            throw new UnsupportedOperationException("Cannot assign value codec to Non-Binary stash");
+        }
+
+        this.valueCodec = valueCodec;
+        return this;
+    }
+
+    /**
+     * Assigns the maximum amount of direct memory for a {@link co.bywarp.stash.memory.OffHeapStash}.
+     * @param maxMemory the maximum amount of memory, in bytes
+     * @throws UnsupportedOperationException thrown if current builder is not an off-heap builder.
+     * @return this factory instance
+     */
+    public StashFactory<K, T> withMaxMemory(long maxMemory) {
+        if (source != StashSource.OFF_HEAP) {
+            throw new UnsupportedOperationException("Cannot assign memory limit to Non-Off-Heap stash");
+        }
+
+        this.maxMemory = maxMemory;
+        return this;
+    }
+
+    /**
+     * Assigns the log directory for a {@link co.bywarp.stash.disk.DiskStash}.
+     * @param directory the directory to keep the log in
+     * @throws UnsupportedOperationException thrown if current builder is not a disk builder.
+     * @return this factory instance
+     */
+    public StashFactory<K, T> withDirectory(Path directory) {
+        if (source != StashSource.DISK) {
+            throw new UnsupportedOperationException("Cannot assign directory to Non-Disk stash");
+        }
+
+        this.directory = directory;
+        return this;
+    }
+
+    /**
+     * Assigns the replication configuration for a {@link co.bywarp.stash.redis.RedisReplicatedStash}.
+     * @param replication the replication configuration
+     * @throws UnsupportedOperationException thrown if current builder is not a replicated builder.
+     * @return this factory instance
+     */
+    public StashFactory<K, T> withReplication(RedisReplication replication) {
+        if (source != StashSource.REPLICATED) {
+            throw new UnsupportedOperationException("Cannot assign replication to Non-Replicated stash");
+        }
+
+        this.replication = replication;
+        return this;
+    }
+
+    /**
+     * Builds a {@link StashProvider} from all of the provided data sources, serializers, and options.
+     * @throws JedisException thrown if the pre-warmed connections of a Redis-backed stash could not be opened
+     * @return the completed {@link StashProvider}
+     */
+    public StashProvider<K, T> build() throws JedisException {
+        StashProvider<K, T> provider = this.initialize(source);
+        if (writeBehind != null && provider != null) {
+            ((RedisStash<K, T>) provider).enableWriteBehind(writeBehind);
+        }
+
+        if (hotKeyPolicy != null && provider != null) {
+            ((RedisStash<K, T>) provider).enableHotKeyTracking(hotKeyPolicy);
+        }
+
+        if (serveStale != null && provider != null) {
+            ((RedisStash<K, T>) provider).enableServeStale(serveStale);
+        }
+
+        if (bulkRead != null && provider != null) {
+            ((RedisStash<K, T>) provider).configureBulkReads(bulkRead);
+        }
+
+        if (expiryHandler != null && provider != null) {
+            ((RedisStash<K, T>) provider).enableExpiryNotifications(expiryHandler);
+        }
+
+        if (singleFlight != null && provider != null) {
+            ((RedisStash<K, T>) provider).configureSingleFlight(singleFlight);
+        }
+
+        if (tracing != null && provider instanceof MemoryStash) {
+            ((MemoryStash<K, T>) provider).enableTracing(tracing);
+        } else if (tracing != null && provider != null) {
+            ((RedisStash<K, T>) provider).enableTracing(tracing);
+        }
+
+        if (redisConnection != null && redisConnection.getPrewarmConnections() > 0 && provider != null) {
+            prewarm(provider);
+        }
+
+        if (accessLog != null && provider != null) {
+            provider = new StashAccessRecorder<>(provider, accessLog);
+        }
+
+        return provider;
+    }
+
+    /**
+     * Opens the pre-warmed connections of a Redis-backed stash, so that
+     * it is ready to serve commands by the time it has been built.
+     * @param provider the built {@link StashProvider}
+     * @throws JedisException thrown if the connections could not be opened, in which case the provider is closed
+     */
+    private void prewarm(StashProvider<K, T> provider) throws JedisException {
+        try {
+            if (provider instanceof RedisStash) {
+                ((RedisStash<K, T>) provider).getPool().prewarm();
+            } else if (provider instanceof RedisReplicatedStash) {
+                ((RedisReplicatedStash<K, T>) provider).getPool().prewarm();
+            }
+        } catch (JedisException e) {
+            provider.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Initializes a {@link StashProvider} from a {@link StashSource}, calling
+     * it's constructor directly rather than looking it up reflectively.
+     * @param source the provided {@link StashSource}
+     * @return the {@link StashProvider}
+     */
+    private StashProvider<K, T> initialize(StashSource source) {
+        try {
+            switch (source) {
+                case MEMORY:
+                    return new MemoryStash<>(expiryPolicy);
+                case OFF_HEAP:
+                    return new OffHeapStash<>(expiryPolicy, keyCodec, valueCodec, maxMemory);
+                case DISK:
+                    return new DiskStash<>(expiryPolicy, directory, keyCodec, valueCodec);
+                case REDIS:
+                    return new RedisStash<>(expiryPolicy, redisConnection, redisKeyspace, resultSerializer, typeSerializer);
+                case REPLICATED:
+                    return new RedisReplicatedStash<>(expiryPolicy, redisConnection, redisKeyspace, keyCodec, valueCodec, replication);
+                default:
+                    throw new UnsupportedOperationException("Unknown stash source " + source);
+            }
+        } catch (RuntimeException e) {
+            logger.except(e, "Failed to initialize StashProvider");
+            return null;
+        }
     }
 
 }
@@ -21,6 +21,7 @@ import co.bywarp.lightkit.util.Closable;
 
 import java.util.Map;
 import java.util.function.BiPredicate;
+import java.util.function.Predicate;
 
 public interface StashProvider<K, T> extends Closable {
 
@@ -71,6 +72,21 @@ public interface StashProvider<K, T> extends Closable {
      */
     T store(K key, T element);
 
+    /**
+     * Stores (and updates if found) an object of type T
+     * using the provided key of type K, and attaches the
+     * provided tags to it for use in {@link StashProvider#evictByTag(String)}.
+     *
+     * Tags belong to the stored object only, and are dropped
+     * once the key is written again, or removed.
+     *
+     * @param key the key used to retrieve the object
+     * @param element the object to cache
+     * @param tags the tags to attach to the cached object
+     * @return the cached object
+     */
+    T store(K key, T element, String... tags);
+
     /**
      * Updates a cached value (if found) in the Stash.
      *
@@ -101,12 +117,62 @@ public interface StashProvider<K, T> extends Closable {
      */
     boolean evict(K key, T element);
 
+    /**
+     * Atomically replaces a cached element, only if it is
+     * currently equal to the expected element.
+     *
+     * An expected element of null matches an absent element, so that
+     * the new element is only stored if none is present.
+     *
+     * @param key the key of the element
+     * @param expected the element that is expected to be cached
+     * @param element the new element to cache under the key
+     * @return if the element was replaced
+     */
+    boolean compareAndSet(K key, T expected, T element);
+
+    /**
+     * Atomically evicts a cached element, only if it is
+     * currently equal to the expected element.
+     *
+     * Unlike {@link StashProvider#evict(Object, Object)}, elements are never
+     * compared by reference, and the comparison and eviction can not be
+     * interleaved with any other write.
+     *
+     * @param key the key to evict
+     * @param expected the element that is expected to be cached
+     * @return if the element was evicted
+     */
+    boolean compareAndEvict(K key, T expected);
+
     /**
      * Evicts all elements that match the specified predicate.
+     *
+     * Implementations may test the predicate in parallel, from several
+     * threads at once, so it must be thread-safe.
+     *
      * @param predicate the condition to meet for eviction
      */
     void evictIf(BiPredicate<K, T> predicate);
 
+    /**
+     * Evicts all elements whose keys match the specified predicate.
+     *
+     * Unlike {@link StashProvider#evictIf(BiPredicate)}, cached values
+     * are never retrieved in order to test the predicate. Like it, the
+     * predicate may be tested in parallel.
+     *
+     * @param predicate the condition to meet for eviction
+     */
+    void evictKeysIf(Predicate<K> predicate);
+
+    /**
+     * Evicts all elements which were stored with the specified tag.
+     * @param tag the tag to evict
+     * @return the amount of evicted elements
+     */
+    long evictByTag(String tag);
+
     /**
      * Evicts all cached elements.
      */
@@ -119,4 +185,26 @@ public interface StashProvider<K, T> extends Closable {
      */
     boolean contains(K key);
 
+    /**
+     * Begins a batch of writes which are committed together.
+     *
+     * By default, the writes of a batch are applied one at a time once every
+     * update has been checked, so they are not atomic. Providers which can
+     * apply a batch atomically override this method.
+     *
+     * @return the empty batch
+     */
+    default StashBatch<K, T> batch() {
+        return new StashBatch<>(batch -> {
+            batch.verify(this::contains);
+            for (StashBatch.Write<K, T> write : batch.getWrites()) {
+                if (write.isEviction()) {
+                    evict(write.getKey());
+                } else {
+                    store(write.getKey(), write.getElement());
+                }
+            }
+        });
+    }
+
 }
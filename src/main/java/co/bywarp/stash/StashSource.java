@@ -17,29 +17,12 @@
 
 package co.bywarp.stash;
 
-import co.bywarp.stash.element.ElementExpiryPolicy;
-import co.bywarp.stash.memory.MemoryStash;
-import co.bywarp.stash.redis.RedisConnection;
-import co.bywarp.stash.redis.RedisKeyspace;
-import co.bywarp.stash.redis.RedisStash;
-import co.bywarp.stash.redis.RedisTypeAdapter;
-
-import lombok.AccessLevel;
-import lombok.Getter;
-
-@Getter(AccessLevel.PROTECTED)
-@SuppressWarnings("rawtypes")
 public enum StashSource {
 
-    MEMORY(MemoryStash.class, ElementExpiryPolicy.class),
-    REDIS(RedisStash.class, ElementExpiryPolicy.class, RedisConnection.class, RedisKeyspace.class, RedisTypeAdapter.class, RedisTypeAdapter.class);
-
-    private final Class<? extends StashProvider> provider;
-    private final Class<?>[] constructorTypes;
-
-    StashSource(Class<? extends StashProvider> provider, Class<?>... constructorTypes) {
-        this.provider = provider;
-        this.constructorTypes = constructorTypes;
-    }
+    MEMORY,
+    OFF_HEAP,
+    DISK,
+    REDIS,
+    REPLICATED
 
 }
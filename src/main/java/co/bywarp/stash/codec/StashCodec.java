@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.codec;
+
+import co.bywarp.stash.redis.RedisTypeAdapter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.function.Function;
+
+public interface StashCodec<T> {
+
+    /**
+     * Encodes an element into it's binary form.
+     * @param element the element to encode
+     * @return the encoded bytes
+     */
+    byte[] encode(T element);
+
+    /**
+     * Decodes an element from it's binary form.
+     * @param bytes the encoded bytes
+     * @return the decoded element
+     */
+    T decode(byte[] bytes);
+
+    /**
+     * Creates a codec from a pair of conversion functions.
+     *
+     * @param encoder converts elements to bytes
+     * @param decoder converts bytes to elements
+     * @param <T> the element type
+     * @return the codec
+     */
+    static <T> StashCodec<T> of(Function<T, byte[]> encoder, Function<byte[], T> decoder) {
+        return new StashCodec<T>() {
+            @Override
+            public byte[] encode(T element) {
+                return encoder.apply(element);
+            }
+
+            @Override
+            public T decode(byte[] bytes) {
+                return decoder.apply(bytes);
+            }
+        };
+    }
+
+    /**
+     * Creates a codec which stores the UTF-8 encoded output of
+     * the serializers of a {@link co.bywarp.stash.redis.RedisStash}.
+     *
+     * @param typeSerializer the type serializer
+     * @param resultSerializer the result serializer
+     * @param <T> the element type
+     * @return the codec
+     */
+    static <T> StashCodec<T> adapt(RedisTypeAdapter<T, String> typeSerializer,
+                                   RedisTypeAdapter<String, T> resultSerializer) {
+        return of(element -> typeSerializer.adapt(element).getBytes(StandardCharsets.UTF_8),
+                bytes -> resultSerializer.adapt(new String(bytes, StandardCharsets.UTF_8)));
+    }
+
+    static StashCodec<String> string() {
+        return of(string -> string.getBytes(StandardCharsets.UTF_8),
+                bytes -> new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    static StashCodec<Long> longs() {
+        return of(value -> ByteBuffer.allocate(Long.BYTES).putLong(value).array(),
+                bytes -> ByteBuffer.wrap(bytes).getLong());
+    }
+
+    static StashCodec<UUID> uuid() {
+        return of(uuid -> ByteBuffer.allocate(Long.BYTES * 2)
+                        .putLong(uuid.getMostSignificantBits())
+                        .putLong(uuid.getLeastSignificantBits())
+                        .array(),
+                bytes -> {
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                    return new UUID(buffer.getLong(), buffer.getLong());
+                });
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.disk;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * The position of a live record in the log.
+ */
+@Getter
+@AllArgsConstructor
+class DiskLocation {
+
+    private DiskSegment segment;
+    private int offset;
+    private int length;
+    private volatile long expiresAt;
+
+    boolean isExpired(long now) {
+        return expiresAt <= now;
+    }
+
+    void touch(long expiresAt) {
+        this.expiresAt = expiresAt;
+        this.segment.touch(offset, expiresAt);
+    }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.disk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import lombok.Getter;
+
+/**
+ * A fixed size, append-only log file which is mapped into memory.
+ *
+ * Records are laid out as follows, where a value length of -1 marks
+ * a tombstone, and a record length of zero marks the end of the log:
+ * <pre>
+ * [int recordLength][int crc32][int keyLength][int valueLength][long expiresAt][key][value]
+ * </pre>
+ * The checksum covers the lengths, key and value, but not the expiration
+ * time, which may be rewritten in place when an element is accessed.
+ */
+@Getter
+class DiskSegment {
+
+    static final int HEADER_SIZE = 24;
+    static final int TOMBSTONE = -1;
+
+    private static final int CRC = 4;
+    private static final int KEY_LENGTH = 8;
+    private static final int VALUE_LENGTH = 12;
+    private static final int EXPIRES_AT = 16;
+
+    private final long id;
+    private final Path path;
+    private final MappedByteBuffer buffer;
+
+    private int position;
+    private long liveBytes;
+
+    private DiskSegment(long id, Path path, MappedByteBuffer buffer) {
+        this.id = id;
+        this.path = path;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Creates, or opens, the segment file with the provided id.
+     *
+     * @param directory the log directory
+     * @param id the segment id
+     * @param size the size of newly created segments
+     * @throws IOException thrown if the file could not be mapped
+     * @return the segment
+     */
+    static DiskSegment open(Path directory, long id, int size) throws IOException {
+        Path path = directory.resolve(String.format("segment-%016d.log", id));
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            long length = Math.max(size, channel.size());
+            return new DiskSegment(id, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, length));
+        }
+    }
+
+    static int recordSize(byte[] key, byte[] value) {
+        return HEADER_SIZE + key.length + (value == null ? 0 : value.length);
+    }
+
+    /**
+     * Appends a record to this segment.
+     *
+     * @param key the encoded key
+     * @param value the encoded value, or null for a tombstone
+     * @param expiresAt the expiration time, in epoch milliseconds
+     * @return the offset of the record, or -1 if the segment is full
+     */
+    int append(byte[] key, byte[] value, long expiresAt) {
+        int length = recordSize(key, value);
+        if (position + length + Integer.BYTES > buffer.capacity()) {
+            return -1;
+        }
+
+        int valueLength = value == null ? TOMBSTONE : value.length;
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putInt(key.length).putInt(valueLength).array());
+        crc.update(key);
+        if (value != null) {
+            crc.update(value);
+        }
+
+        ByteBuffer view = buffer.duplicate();
+        view.position(position + CRC);
+        view.putInt((int) crc.getValue())
+                .putInt(key.length)
+                .putInt(valueLength)
+                .putLong(expiresAt)
+                .put(key);
+
+        if (value != null) {
+            view.put(value);
+        }
+
+        // The length is written last, so that a torn record is never mistaken for a complete one
+        buffer.putInt(position, length);
+
+        int offset = position;
+        position += length;
+        return offset;
+    }
+
+    /**
+     * Reads the record at the provided offset, or returns
+     * null if there is no intact record at that offset.
+     *
+     * @param offset the record offset
+     * @return the record
+     */
+    DiskRecord read(int offset) {
+        if (offset + HEADER_SIZE > buffer.capacity()) {
+            return null;
+        }
+
+        int length = buffer.getInt(offset);
+        int keyLength = buffer.getInt(offset + KEY_LENGTH);
+        int valueLength = buffer.getInt(offset + VALUE_LENGTH);
+        if (length <= 0 || offset + length > buffer.capacity() || keyLength < 0
+                || length != HEADER_SIZE + keyLength + Math.max(0, valueLength)) {
+            return null;
+        }
+
+        byte[] key = new byte[keyLength];
+        byte[] value = valueLength == TOMBSTONE ? null : new byte[valueLength];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + HEADER_SIZE);
+        view.get(key);
+        if (value != null) {
+            view.get(value);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putInt(keyLength).putInt(valueLength).array());
+        crc.update(key);
+        if (value != null) {
+            crc.update(value);
+        }
+
+        if ((int) crc.getValue() != buffer.getInt(offset + CRC)) {
+            return null;
+        }
+
+        return new DiskRecord(key, value, buffer.getLong(offset + EXPIRES_AT), length);
+    }
+
+    byte[] readValue(int offset) {
+        int keyLength = buffer.getInt(offset + KEY_LENGTH);
+        byte[] value = new byte[buffer.getInt(offset + VALUE_LENGTH)];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + HEADER_SIZE + keyLength);
+        view.get(value);
+        return value;
+    }
+
+    void touch(int offset, long expiresAt) {
+        buffer.putLong(offset + EXPIRES_AT, expiresAt);
+    }
+
+    void seek(int position) {
+        this.position = position;
+    }
+
+    void addLiveBytes(long bytes) {
+        this.liveBytes += bytes;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    void delete() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+}
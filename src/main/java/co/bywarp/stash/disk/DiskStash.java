@@ -0,0 +1,536 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.disk;
+
+import co.bywarp.lightkit.util.logger.Logger;
+import co.bywarp.stash.StashProvider;
+import co.bywarp.stash.codec.StashCodec;
+import co.bywarp.stash.element.ElementExpiryPolicy;
+import co.bywarp.stash.memory.MemoryTagIndex;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import lombok.Getter;
+
+/**
+ * A stash which keeps elements in a log of memory-mapped segment files on disk,
+ * and only their keys and locations in memory.
+ *
+ * Writes and evictions are appended to the newest segment, and the key index
+ * is rebuilt from the log when a stash is opened on an existing directory.
+ * Segments which are mostly made up of superseded, evicted or expired records
+ * are compacted in the background, by copying their live records forward.
+ */
+@Getter
+public class DiskStash<K, T> implements StashProvider<K, T> {
+
+    public static final int SEGMENT_SIZE = 64 << 20;
+
+    private static final double COMPACTION_THRESHOLD = 0.5;
+    private static final long COMPACTION_INTERVAL = 30;
+
+    private Logger logger;
+    private ElementExpiryPolicy expiryPolicy;
+    private Path directory;
+    private StashCodec<K> keyCodec;
+    private StashCodec<T> valueCodec;
+    private int segmentSize;
+
+    private Map<K, DiskLocation> index;
+    private TreeMap<Long, DiskSegment> segments;
+    private DiskSegment active;
+    private MemoryTagIndex<K> tagIndex;
+
+    private ScheduledExecutorService executorService;
+    private ScheduledFuture<?> compactor;
+
+    public DiskStash(ElementExpiryPolicy expiryPolicy,
+                     Path directory,
+                     StashCodec<K> keyCodec,
+                     StashCodec<T> valueCodec) {
+        this(expiryPolicy, directory, keyCodec, valueCodec, SEGMENT_SIZE);
+    }
+
+    DiskStash(ElementExpiryPolicy expiryPolicy,
+              Path directory,
+              StashCodec<K> keyCodec,
+              StashCodec<T> valueCodec,
+              int segmentSize) {
+        this.logger = new Logger("Disk Stash " + directory.getFileName());
+        this.expiryPolicy = expiryPolicy;
+        this.directory = directory;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.segmentSize = segmentSize;
+        this.index = new ConcurrentHashMap<>();
+        this.segments = new TreeMap<>();
+        this.tagIndex = new MemoryTagIndex<>();
+
+        try {
+            Files.createDirectories(directory);
+            this.recover();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open disk stash at " + directory, e);
+        }
+
+        this.executorService = Executors.newSingleThreadScheduledExecutor();
+        this.compactor = executorService.scheduleAtFixedRate(this::compact,
+                COMPACTION_INTERVAL, COMPACTION_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public T retrieve(K key) {
+        DiskLocation location = live(key);
+        if (location == null) {
+            return null;
+        }
+
+        if (expiryPolicy.isAfterAccess()) {
+            location.touch(System.currentTimeMillis() + expiryPolicy.toMillis());
+        }
+
+        return read(location);
+    }
+
+    @Override
+    public T retrieveOrElse(K key, T orElse) {
+        T element = retrieve(key);
+        if (element == null) {
+            return orElse;
+        }
+
+        return element;
+    }
+
+    @Override
+    public T retrieveOrSet(K key, T newValue) {
+        T local = retrieve(key);
+        if (local == null) {
+            return store(key, newValue);
+        }
+
+        return local;
+    }
+
+    @Override
+    public Map<K, T> retrieveAll() {
+        long now = System.currentTimeMillis();
+        Map<K, T> all = new HashMap<>();
+        index.forEach((key, location) -> {
+            if (!location.isExpired(now)) {
+                all.put(key, valueCodec.decode(location.getSegment().readValue(location.getOffset())));
+            }
+        });
+
+        return all;
+    }
+
+    @Override
+    public T store(K key, T element) {
+        storeUntil(key, element, System.currentTimeMillis() + expiryPolicy.toMillis());
+        return element;
+    }
+
+    @Override
+    public T store(K key, T element, String... tags) {
+        store(key, element);
+        tagIndex.tag(key, tags, this::contains);
+        return element;
+    }
+
+    /**
+     * Stores an object which expires at a specific time, rather
+     * than after the period specified by the expiry policy.
+     *
+     * @param key the key used to retrieve the object
+     * @param element the object to cache
+     * @param expiresAt the expiration time, in epoch milliseconds
+     * @return the cached object
+     */
+    public synchronized T storeUntil(K key, T element, long expiresAt) {
+        byte[] encoded = keyCodec.encode(key);
+        byte[] value = valueCodec.encode(element);
+        DiskLocation location = append(encoded, value, expiresAt);
+        release(index.put(key, location));
+        tagIndex.untag(key);
+        return element;
+    }
+
+    @Override
+    public synchronized T update(K key, T element) throws NullPointerException {
+        if (live(key) == null) {
+            throw new NullPointerException("No element for key \"" + key.toString() + "\"");
+        }
+
+        return store(key, element);
+    }
+
+    @Override
+    public synchronized boolean evict(K key) {
+        DiskLocation location = index.remove(key);
+        tagIndex.untag(key);
+        if (location == null) {
+            return false;
+        }
+
+        // The tombstone only needs to outlive the record it shadows
+        append(keyCodec.encode(key), null, location.getExpiresAt());
+        release(location);
+        return !location.isExpired(System.currentTimeMillis());
+    }
+
+    /**
+     * Evicts a cached item by it's key, and expected value.
+     *
+     * Elements are compared by their encoded form, rather than by reference.
+     *
+     * @param key the key to evict
+     * @param element the item that is expected to be there
+     * @return if the element was successfully evicted
+     */
+    @Override
+    public synchronized boolean evict(K key, T element) {
+        DiskLocation location = live(key);
+        if (location == null) {
+            return false;
+        }
+
+        byte[] remote = location.getSegment().readValue(location.getOffset());
+        if (!Arrays.equals(remote, valueCodec.encode(element))) {
+            return false;
+        }
+
+        return evict(key);
+    }
+
+    /**
+     * Atomically replaces a cached element, only if it is
+     * currently equal to the expected element.
+     *
+     * Elements are compared by their encoded form.
+     *
+     * @param key the key of the element
+     * @param expected the element that is expected to be cached, or null if none is
+     * @param element the new element to cache under the key
+     * @return if the element was replaced
+     */
+    @Override
+    public synchronized boolean compareAndSet(K key, T expected, T element) {
+        DiskLocation location = live(key);
+        if (location == null ? expected != null : expected == null) {
+            return false;
+        }
+
+        if (location != null) {
+            byte[] remote = location.getSegment().readValue(location.getOffset());
+            if (!Arrays.equals(remote, valueCodec.encode(expected))) {
+                return false;
+            }
+        }
+
+        store(key, element);
+        return true;
+    }
+
+    @Override
+    public boolean compareAndEvict(K key, T expected) {
+        return expected != null && evict(key, expected);
+    }
+
+    @Override
+    public void evictIf(BiPredicate<K, T> predicate) {
+        retrieveAll().forEach((key, element) -> {
+            if (predicate.test(key, element)) {
+                evict(key);
+            }
+        });
+    }
+
+    @Override
+    public void evictKeysIf(Predicate<K> predicate) {
+        List<K> evict = index
+                .keySet()
+                .stream()
+                .filter(predicate)
+                .collect(Collectors.toList());
+
+        evict.forEach(this::evict);
+    }
+
+    @Override
+    public long evictByTag(String tag) {
+        long evicted = 0;
+        for (K key : tagIndex.remove(tag)) {
+            if (evict(key)) {
+                evicted++;
+            }
+        }
+
+        return evicted;
+    }
+
+    @Override
+    public synchronized void evictAll() {
+        index.clear();
+        tagIndex.clear();
+        for (DiskSegment segment : segments.values()) {
+            deleteSegment(segment);
+        }
+
+        segments.clear();
+        this.active = null;
+        this.roll();
+    }
+
+    @Override
+    public boolean contains(K key) {
+        return live(key) != null;
+    }
+
+    /**
+     * Returns the location of a live record, which identifies
+     * it until it is superseded, evicted or compacted.
+     *
+     * @param key the key of the element
+     * @return the location of the record, or null if the element is not cached
+     */
+    DiskLocation locate(K key) {
+        return live(key);
+    }
+
+    /**
+     * Reads the element held by a record.
+     * @param location the location of the record
+     * @return the element
+     */
+    T read(DiskLocation location) {
+        return valueCodec.decode(location.getSegment().readValue(location.getOffset()));
+    }
+
+    /**
+     * Evicts an element, only if it is still held by the provided record.
+     *
+     * @param key the key to evict
+     * @param location the location of the expected record
+     * @return if the record was evicted
+     */
+    synchronized boolean evict(K key, DiskLocation location) {
+        return index.get(key) == location && evict(key);
+    }
+
+    /**
+     * Returns the expiration time of a cached element.
+     * @param key the key of the element
+     * @return the expiration time in epoch milliseconds, or -1 if the element is not cached
+     */
+    public long getExpiration(K key) {
+        DiskLocation location = live(key);
+        return location == null ? -1 : location.getExpiresAt();
+    }
+
+    @Override
+    public synchronized void close() {
+        this.compactor.cancel(false);
+        this.executorService.shutdown();
+        this.segments.values().forEach(DiskSegment::force);
+    }
+
+    /**
+     * Compacts every segment, except for the active one, which is made
+     * up of less than {@link DiskStash#COMPACTION_THRESHOLD} live records.
+     */
+    synchronized void compact() {
+        long now = System.currentTimeMillis();
+
+        // Expired records are only discovered lazily, so account for them first
+        index.entrySet().removeIf(entry -> {
+            if (!entry.getValue().isExpired(now)) {
+                return false;
+            }
+
+            release(entry.getValue());
+            return true;
+        });
+
+        List<DiskSegment> candidates = segments
+                .values()
+                .stream()
+                .filter(segment -> segment != active)
+                .filter(segment -> segment.getLiveBytes() < segment.getPosition() * COMPACTION_THRESHOLD)
+                .collect(Collectors.toList());
+
+        for (DiskSegment segment : candidates) {
+            boolean oldest = segment == segments.firstEntry().getValue();
+            for (int offset = 0; ; ) {
+                DiskRecord record = segment.read(offset);
+                if (record == null) {
+                    break;
+                }
+
+                if (record.isTombstone()) {
+                    // A tombstone can be dropped once nothing older can be resurrected by it, and must be
+                    // dropped if the key was stored again since, as the copy would shadow the newer record
+                    if (!oldest && record.getExpiresAt() > now
+                            && !index.containsKey(keyCodec.decode(record.getKey()))) {
+                        append(record.getKey(), null, record.getExpiresAt());
+                    }
+                } else {
+                    K key = keyCodec.decode(record.getKey());
+                    DiskLocation location = index.get(key);
+                    if (location != null && location.getSegment() == segment && location.getOffset() == offset) {
+                        index.put(key, append(record.getKey(), record.getValue(), location.getExpiresAt()));
+                        release(location);
+                    }
+                }
+
+                offset += record.getLength();
+            }
+
+            segments.remove(segment.getId());
+            deleteSegment(segment);
+        }
+
+        this.active.force();
+    }
+
+    /**
+     * Rebuilds the key index from every segment in the log, oldest first.
+     * @throws IOException thrown if a segment could not be read
+     */
+    private void recover() throws IOException {
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(directory)) {
+            files = stream
+                    .filter(path -> path.getFileName().toString().matches("segment-\\d+\\.log"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        long now = System.currentTimeMillis();
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long id = Long.parseLong(name.substring("segment-".length(), name.length() - ".log".length()));
+            DiskSegment segment = DiskSegment.open(directory, id, segmentSize);
+            segments.put(id, segment);
+
+            int offset = 0;
+            for (DiskRecord record = segment.read(offset); record != null; record = segment.read(offset)) {
+                K key = keyCodec.decode(record.getKey());
+                DiskLocation previous;
+                if (record.isTombstone() || record.getExpiresAt() <= now) {
+                    previous = index.remove(key);
+                } else {
+                    previous = index.put(key, new DiskLocation(segment, offset,
+                            record.getLength(), record.getExpiresAt()));
+                    segment.addLiveBytes(record.getLength());
+                }
+
+                release(previous);
+                offset += record.getLength();
+            }
+
+            segment.seek(offset);
+            this.active = segment;
+        }
+
+        if (active == null) {
+            this.roll();
+        }
+
+        logger.info("Recovered " + index.size() + " elements from " + segments.size() + " segments");
+    }
+
+    private DiskLocation live(K key) {
+        DiskLocation location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+
+        if (location.isExpired(System.currentTimeMillis())) {
+            return null;
+        }
+
+        return location;
+    }
+
+    private DiskLocation append(byte[] key, byte[] value, long expiresAt) {
+        int length = DiskSegment.recordSize(key, value);
+        if (length + Integer.BYTES > segmentSize) {
+            throw new IllegalArgumentException("Record of " + length + " bytes exceeds the segment size");
+        }
+
+        int offset = active.append(key, value, expiresAt);
+        if (offset == -1) {
+            this.roll();
+            offset = active.append(key, value, expiresAt);
+        }
+
+        if (value != null) {
+            active.addLiveBytes(length);
+        }
+
+        return new DiskLocation(active, offset, length, expiresAt);
+    }
+
+    private void release(DiskLocation location) {
+        if (location != null) {
+            location.getSegment().addLiveBytes(-location.getLength());
+        }
+    }
+
+    private void roll() {
+        long id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        try {
+            if (active != null) {
+                active.force();
+            }
+
+            this.active = DiskSegment.open(directory, id, segmentSize);
+            this.segments.put(id, active);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create segment " + id, e);
+        }
+    }
+
+    private void deleteSegment(DiskSegment segment) {
+        try {
+            segment.delete();
+        } catch (IOException e) {
+            logger.except(e, "Failed to delete segment " + segment.getPath());
+        }
+    }
+
+}
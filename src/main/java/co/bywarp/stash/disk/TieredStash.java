@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.disk;
+
+import co.bywarp.stash.StashProvider;
+import co.bywarp.stash.element.ElementExpiryPolicy;
+import co.bywarp.stash.memory.MemoryStash;
+import co.bywarp.stash.memory.MemoryTagIndex;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+
+import lombok.Getter;
+
+/**
+ * A bounded {@link MemoryStash} which overflows onto a {@link DiskStash}.
+ *
+ * Elements evicted from memory for exceeding it's maximum size are spilled to
+ * disk with their remaining time to live, and are promoted back into memory
+ * when they are next accessed. An element only ever lives in one of the tiers.
+ *
+ * Writes to a key share a striped lock, which a promotion of the key takes
+ * exclusively, so an element read from disk is never promoted over a newer one.
+ */
+@Getter
+public class TieredStash<K, T> implements StashProvider<K, T> {
+
+    private static final int LOCK_STRIPES = 64;
+
+    private MemoryStash<K, T> memory;
+    private DiskStash<K, T> disk;
+    private MemoryTagIndex<K> tagIndex;
+    private ReadWriteLock[] stripes;
+
+    public TieredStash(ElementExpiryPolicy expiryPolicy, int maximumSize, DiskStash<K, T> disk) {
+        this.disk = disk;
+        this.memory = new MemoryStash<>(expiryPolicy, maximumSize, disk::storeUntil);
+        this.tagIndex = new MemoryTagIndex<>();
+        this.stripes = new ReadWriteLock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    @Override
+    public T retrieve(K key) {
+        T element = memory.retrieve(key);
+        if (element != null) {
+            return element;
+        }
+
+        return promote(key);
+    }
+
+    @Override
+    public T retrieveOrElse(K key, T orElse) {
+        T element = retrieve(key);
+        if (element == null) {
+            return orElse;
+        }
+
+        return element;
+    }
+
+    @Override
+    public T retrieveOrSet(K key, T newValue) {
+        T element = retrieve(key);
+        if (element == null) {
+            return store(key, newValue);
+        }
+
+        return element;
+    }
+
+    @Override
+    public Map<K, T> retrieveAll() {
+        Map<K, T> all = new HashMap<>(disk.retrieveAll());
+        all.putAll(memory.retrieveAll());
+        return all;
+    }
+
+    @Override
+    public T store(K key, T element) {
+        Lock lock = writeLock(key);
+        lock.lock();
+        try {
+            DiskLocation location = disk.locate(key);
+            memory.store(key, element);
+            if (location != null) {
+                disk.evict(key, location);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        tagIndex.untag(key);
+        return element;
+    }
+
+    @Override
+    public T store(K key, T element, String... tags) {
+        store(key, element);
+        tagIndex.tag(key, tags, this::contains);
+        return element;
+    }
+
+    @Override
+    public T update(K key, T element) throws NullPointerException {
+        if (!contains(key)) {
+            throw new NullPointerException("No element for key \"" + key.toString() + "\"");
+        }
+
+        return store(key, element);
+    }
+
+    @Override
+    public boolean evict(K key) {
+        Lock lock = writeLock(key);
+        lock.lock();
+        boolean evicted;
+        try {
+            boolean memoryEvicted = memory.evict(key);
+            boolean diskEvicted = disk.evict(key);
+            evicted = memoryEvicted || diskEvicted;
+        } finally {
+            lock.unlock();
+        }
+
+        tagIndex.untag(key);
+        return evicted;
+    }
+
+    @Override
+    public boolean evict(K key, T element) {
+        Lock lock = writeLock(key);
+        lock.lock();
+        boolean evicted;
+        try {
+            evicted = memory.evict(key, element) || disk.evict(key, element);
+        } finally {
+            lock.unlock();
+        }
+
+        if (evicted) {
+            tagIndex.untag(key);
+        }
+
+        return evicted;
+    }
+
+    /**
+     * Atomically replaces a cached element, only if it is
+     * currently equal to the expected element.
+     *
+     * An element held on disk is promoted into memory first,
+     * where the comparison takes place.
+     *
+     * @param key the key of the element
+     * @param expected the element that is expected to be cached, or null if none is
+     * @param element the new element to cache under the key
+     * @return if the element was replaced
+     */
+    @Override
+    public boolean compareAndSet(K key, T expected, T element) {
+        if (memory.retrieve(key) == null) {
+            promote(key);
+        }
+
+        Lock lock = writeLock(key);
+        lock.lock();
+        boolean replaced;
+        try {
+            replaced = memory.compareAndSet(key, expected, element);
+        } finally {
+            lock.unlock();
+        }
+
+        if (replaced) {
+            tagIndex.untag(key);
+        }
+
+        return replaced;
+    }
+
+    @Override
+    public boolean compareAndEvict(K key, T expected) {
+        if (memory.retrieve(key) == null) {
+            promote(key);
+        }
+
+        Lock lock = writeLock(key);
+        lock.lock();
+        boolean evicted;
+        try {
+            evicted = memory.compareAndEvict(key, expected);
+        } finally {
+            lock.unlock();
+        }
+
+        if (evicted) {
+            tagIndex.untag(key);
+        }
+
+        return evicted;
+    }
+
+    @Override
+    public void evictIf(BiPredicate<K, T> predicate) {
+        Set<K> matched = ConcurrentHashMap.newKeySet();
+        BiPredicate<K, T> tracked = (key, element) -> {
+            if (!predicate.test(key, element)) {
+                return false;
+            }
+
+            matched.add(key);
+            return true;
+        };
+
+        lockAll();
+        try {
+            memory.evictIf(tracked);
+            disk.evictIf(tracked);
+        } finally {
+            unlockAll();
+        }
+
+        matched.forEach(tagIndex::untag);
+    }
+
+    @Override
+    public void evictKeysIf(Predicate<K> predicate) {
+        Set<K> matched = ConcurrentHashMap.newKeySet();
+        Predicate<K> tracked = key -> {
+            if (!predicate.test(key)) {
+                return false;
+            }
+
+            matched.add(key);
+            return true;
+        };
+
+        lockAll();
+        try {
+            memory.evictKeysIf(tracked);
+            disk.evictKeysIf(tracked);
+        } finally {
+            unlockAll();
+        }
+
+        matched.forEach(tagIndex::untag);
+    }
+
+    @Override
+    public long evictByTag(String tag) {
+        long evicted = 0;
+        for (K key : tagIndex.remove(tag)) {
+            if (evict(key)) {
+                evicted++;
+            }
+        }
+
+        return evicted;
+    }
+
+    @Override
+    public void evictAll() {
+        lockAll();
+        try {
+            memory.evictAll();
+            disk.evictAll();
+            tagIndex.clear();
+        } finally {
+            unlockAll();
+        }
+    }
+
+    @Override
+    public boolean contains(K key) {
+        return memory.contains(key) || disk.contains(key);
+    }
+
+    @Override
+    public void close() {
+        memory.close();
+        disk.close();
+    }
+
+    /**
+     * Moves an element from disk into memory, keeping it's expiration time.
+     *
+     * Writes to the key are held off for the duration, and the element is only
+     * put into memory if nothing was stored there since the caller missed it.
+     * The record on disk is only evicted if it is still the one that was read.
+     *
+     * @param key the key of the element
+     * @return the promoted element, or null if it is not on disk
+     */
+    private T promote(K key) {
+        Lock lock = stripe(key).writeLock();
+        lock.lock();
+        try {
+            DiskLocation location = disk.locate(key);
+            if (location == null) {
+                return null;
+            }
+
+            T element = disk.read(location);
+            if (!memory.storeIfAbsent(key, element, location.getExpiresAt())) {
+                return memory.retrieve(key);
+            }
+
+            disk.evict(key, location);
+            return element;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the lock stripe of a key.
+     * @param key the key
+     * @return the lock stripe
+     */
+    private ReadWriteLock stripe(K key) {
+        return stripes[Math.floorMod(key.hashCode(), LOCK_STRIPES)];
+    }
+
+    /**
+     * Returns the lock taken by writes to a key. Writes to the same key
+     * may run concurrently, but never alongside a promotion of it.
+     *
+     * @param key the key
+     * @return the write lock
+     */
+    private Lock writeLock(K key) {
+        return stripe(key).readLock();
+    }
+
+    /**
+     * Takes the write lock of every stripe, for writes spanning all keys.
+     */
+    private void lockAll() {
+        for (ReadWriteLock stripe : stripes) {
+            stripe.readLock().lock();
+        }
+    }
+
+    /**
+     * Releases the locks taken by {@link #lockAll()}.
+     */
+    private void unlockAll() {
+        for (ReadWriteLock stripe : stripes) {
+            stripe.readLock().unlock();
+        }
+    }
+
+}
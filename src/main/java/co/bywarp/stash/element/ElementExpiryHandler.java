@@ -19,4 +19,18 @@ package co.bywarp.stash.element;
 
 public interface ElementExpiryHandler<T, K> {
     void onExpire(K key, T element, long now);
+
+    /**
+     * Handles an element which was removed for the provided reason.
+     *
+     * By default, the reason is ignored.
+     *
+     * @param key the key of the element
+     * @param element the element, or null if it is no longer known
+     * @param reason the reason the element was removed
+     * @param now the time at which the removal was observed
+     */
+    default void onExpire(K key, T element, ElementExpiryReason reason, long now) {
+        onExpire(key, element, now);
+    }
 }
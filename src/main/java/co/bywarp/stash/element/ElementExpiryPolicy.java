@@ -19,20 +19,68 @@ package co.bywarp.stash.element;
 
 import java.util.concurrent.TimeUnit;
 
+import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 
 @Data
-@AllArgsConstructor(staticName = "of")
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
 public class ElementExpiryPolicy {
 
     public static final ElementExpiryPolicy DEFAULT = of(5, TimeUnit.MINUTES);
 
+    private static final long MIN_REFRESH_MILLIS = 50;
+    private static final long MAX_REFRESH_MILLIS = 1000;
+
     private long amount;
     private TimeUnit unit;
+    private ElementExpiryMode mode;
+
+    /**
+     * Creates a policy which expires elements a fixed amount
+     * of time after they were last written.
+     *
+     * @param amount the amount of time elements live for
+     * @param unit the unit of the provided amount
+     * @return the expire-after-write policy
+     */
+    public static ElementExpiryPolicy of(long amount, TimeUnit unit) {
+        return new ElementExpiryPolicy(amount, unit, ElementExpiryMode.AFTER_WRITE);
+    }
+
+    /**
+     * Creates a policy which expires elements a fixed amount
+     * of time after they were last read or written.
+     *
+     * @param amount the amount of time idle elements live for
+     * @param unit the unit of the provided amount
+     * @return the expire-after-access policy
+     */
+    public static ElementExpiryPolicy afterAccess(long amount, TimeUnit unit) {
+        return new ElementExpiryPolicy(amount, unit, ElementExpiryMode.AFTER_ACCESS);
+    }
 
     public int toSeconds() {
         return (int) unit.toSeconds(amount);
     }
 
+    public long toMillis() {
+        return unit.toMillis(amount);
+    }
+
+    public boolean isAfterAccess() {
+        return mode == ElementExpiryMode.AFTER_ACCESS;
+    }
+
+    /**
+     * Returns how often buffered accesses should be applied
+     * to an expire-after-access stash, so that an element is
+     * refreshed well before its idle time runs out.
+     *
+     * @return the refresh interval in milliseconds
+     */
+    public long toRefreshMillis() {
+        return Math.max(MIN_REFRESH_MILLIS, Math.min(MAX_REFRESH_MILLIS, toMillis() / 4));
+    }
+
 }
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.element;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * A cached element along with the version it was written at.
+ *
+ * Every write of an element produces a new version, so that a
+ * versioned element can be used for optimistic concurrency,
+ * even if the element was replaced by an equal one in between.
+ *
+ * @param <T> the element type
+ */
+@Getter
+@AllArgsConstructor(staticName = "of")
+public class VersionedElement<T> {
+
+    private T element;
+    private long version;
+
+}
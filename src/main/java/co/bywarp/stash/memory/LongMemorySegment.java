@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.memory;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.BiPredicate;
+import java.util.function.LongPredicate;
+
+/**
+ * One lock-protected partition of a {@link LongMemoryStash}.
+ *
+ * Entries are kept in parallel arrays of primitive keys, values and
+ * expiration times, indexed by open addressing with linear probing
+ * and backward-shift deletion. An empty slot holds a null value.
+ *
+ * @param <T> the type of cached elements
+ */
+class LongMemorySegment<T> {
+
+    private static final int INITIAL_CAPACITY = 1 << 6;
+    private static final long PURGE_INTERVAL = 1000;
+
+    private final long ttl;
+    private final boolean afterAccess;
+
+    private long[] keys;
+    private Object[] values;
+    private long[] expirations;
+    private int mask;
+    private int size;
+    private long nextPurge;
+
+    LongMemorySegment(long ttl, boolean afterAccess) {
+        this.ttl = ttl;
+        this.afterAccess = afterAccess;
+        this.reset();
+    }
+
+    /**
+     * Mixes all bits of a key into an int, so that keys which only
+     * differ in their high bits do not share a probe sequence.
+     *
+     * @param key the key
+     * @return the key hash
+     */
+    static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xFF51AFD7ED558CCDL;
+        key ^= key >>> 33;
+        return (int) (key ^ (key >>> 32));
+    }
+
+    @SuppressWarnings("unchecked")
+    synchronized T get(long key, long now) {
+        int slot = find(key);
+        if (slot == -1) {
+            return null;
+        }
+
+        if (expirations[slot] <= now) {
+            delete(slot);
+            return null;
+        }
+
+        if (afterAccess) {
+            expirations[slot] = now + ttl;
+        }
+
+        return (T) values[slot];
+    }
+
+    synchronized boolean contains(long key, long now) {
+        int slot = find(key);
+        if (slot == -1) {
+            return false;
+        }
+
+        if (expirations[slot] <= now) {
+            delete(slot);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Stores an entry, replacing any previous entry for the same key.
+     *
+     * @param key the key
+     * @param value the value
+     * @param now the current time
+     * @param replaceOnly if the entry should only be stored when a live entry already exists
+     * @return if the entry was stored
+     */
+    synchronized boolean put(long key, T value, long now, boolean replaceOnly) {
+        int slot = find(key);
+        if (slot != -1 && expirations[slot] > now) {
+            values[slot] = value;
+            expirations[slot] = now + ttl;
+            return true;
+        }
+
+        if (replaceOnly) {
+            if (slot != -1) {
+                delete(slot);
+            }
+
+            return false;
+        }
+
+        if (slot == -1) {
+            if (size + 1 > (keys.length >> 2) * 3) {
+                grow(now);
+            }
+
+            slot = insert(key);
+            size++;
+        }
+
+        values[slot] = value;
+        expirations[slot] = now + ttl;
+        return true;
+    }
+
+    /**
+     * Stores an entry only if no live entry exists for its key.
+     *
+     * @param key the key
+     * @param value the value to store if absent
+     * @param now the current time
+     * @return the live value, or null if the provided value was stored
+     */
+    synchronized T putIfAbsent(long key, T value, long now) {
+        T existing = get(key, now);
+        if (existing != null) {
+            return existing;
+        }
+
+        put(key, value, now, false);
+        return null;
+    }
+
+    /**
+     * Stores an entry only if the live value for its key equals the expected value.
+     *
+     * @param key the key
+     * @param expected the expected live value, or null if no live entry is expected
+     * @param value the value to store
+     * @param now the current time
+     * @return if the entry was stored
+     */
+    synchronized boolean replace(long key, T expected, T value, long now) {
+        if (!Objects.equals(get(key, now), expected)) {
+            return false;
+        }
+
+        return put(key, value, now, false);
+    }
+
+    synchronized boolean remove(long key, Object expected, long now) {
+        int slot = find(key);
+        if (slot == -1) {
+            return false;
+        }
+
+        if (expected != null && !Objects.equals(values[slot], expected)) {
+            return false;
+        }
+
+        boolean live = expirations[slot] > now;
+        delete(slot);
+        return live;
+    }
+
+    /**
+     * Removes every live entry matching the provided predicate.
+     *
+     * @param predicate the condition to meet for removal
+     * @param now the current time
+     * @return the amount of removed entries
+     */
+    @SuppressWarnings("unchecked")
+    synchronized int removeIf(BiPredicate<Long, T> predicate, long now) {
+        int removed = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            while (values[slot] != null) {
+                if (expirations[slot] > now && !predicate.test(keys[slot], (T) values[slot])) {
+                    break;
+                }
+
+                // Deleting shifts the next entry of the probe sequence into this slot
+                delete(slot);
+                removed++;
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Removes every live entry whose key matches the provided predicate.
+     *
+     * @param predicate the condition to meet for removal
+     * @param now the current time
+     * @return the amount of removed entries
+     */
+    synchronized int removeKeysIf(LongPredicate predicate, long now) {
+        int removed = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            while (values[slot] != null) {
+                if (expirations[slot] > now && !predicate.test(keys[slot])) {
+                    break;
+                }
+
+                delete(slot);
+                removed++;
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Copies every live entry into the provided map.
+     * @param target the map to copy into
+     * @param now the current time
+     */
+    @SuppressWarnings("unchecked")
+    synchronized void copyInto(Map<Long, T> target, long now) {
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (values[slot] != null && expirations[slot] > now) {
+                target.put(keys[slot], (T) values[slot]);
+            }
+        }
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized void clear() {
+        reset();
+    }
+
+    /**
+     * Makes room for another entry, by purging expired entries
+     * at most once per interval, or else by doubling the table.
+     *
+     * @param now the current time
+     */
+    private void grow(long now) {
+        if (now >= nextPurge) {
+            this.nextPurge = now + PURGE_INTERVAL;
+            for (int slot = 0; slot < keys.length; slot++) {
+                while (values[slot] != null && expirations[slot] <= now) {
+                    delete(slot);
+                }
+            }
+
+            if (size + 1 <= (keys.length >> 2) * 3) {
+                return;
+            }
+        }
+
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        long[] oldExpirations = expirations;
+        allocate(keys.length << 1);
+
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldValues[slot] != null) {
+                int target = insert(oldKeys[slot]);
+                values[target] = oldValues[slot];
+                expirations[target] = oldExpirations[slot];
+            }
+        }
+    }
+
+    private int find(long key) {
+        for (int slot = hash(key) & mask; values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Claims the first empty slot of the probe sequence of a key.
+     * @param key the key
+     * @return the claimed slot
+     */
+    private int insert(long key) {
+        int slot = hash(key) & mask;
+        while (values[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = key;
+        return slot;
+    }
+
+    private void delete(int slot) {
+        size--;
+
+        int gap = slot;
+        for (int next = (gap + 1) & mask; values[next] != null; next = (next + 1) & mask) {
+            int ideal = hash(keys[next]) & mask;
+            if (((next - ideal) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                expirations[gap] = expirations[next];
+                gap = next;
+            }
+        }
+
+        keys[gap] = 0;
+        values[gap] = null;
+        expirations[gap] = 0;
+    }
+
+    private void reset() {
+        allocate(INITIAL_CAPACITY);
+        this.size = 0;
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+        this.expirations = new long[capacity];
+        this.mask = capacity - 1;
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.memory;
+
+import co.bywarp.stash.LongStashProvider;
+import co.bywarp.stash.element.ElementExpiryPolicy;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiPredicate;
+import java.util.function.LongPredicate;
+
+import lombok.Getter;
+
+/**
+ * An in-memory stash keyed by primitive longs.
+ *
+ * Entries are held in open-addressing tables of primitive keys, so that
+ * lookups neither box their keys nor allocate entry nodes. The stash is
+ * split into independently locked segments by key hash. Null marks an
+ * empty slot in those tables, so null elements are rejected.
+ *
+ * @param <T> the type of cached elements
+ */
+@Getter
+public class LongMemoryStash<T> implements LongStashProvider<T> {
+
+    private static final int SEGMENT_COUNT = 16;
+    private static final int SEGMENT_SHIFT = 28;
+
+    private ElementExpiryPolicy expiryPolicy;
+    private LongMemorySegment<T>[] segments;
+
+    public LongMemoryStash(ElementExpiryPolicy expiryPolicy) {
+        this.expiryPolicy = expiryPolicy;
+        @SuppressWarnings("unchecked")
+        LongMemorySegment<T>[] segments = (LongMemorySegment<T>[]) new LongMemorySegment<?>[SEGMENT_COUNT];
+        this.segments = segments;
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new LongMemorySegment<>(expiryPolicy.toMillis(), expiryPolicy.isAfterAccess());
+        }
+    }
+
+    @Override
+    public T retrieve(long key) {
+        return segment(key).get(key, System.currentTimeMillis());
+    }
+
+    @Override
+    public T retrieveOrElse(long key, T orElse) {
+        T element = retrieve(key);
+        if (element == null) {
+            return orElse;
+        }
+
+        return element;
+    }
+
+    @Override
+    public T retrieveOrSet(long key, T newValue) {
+        T local = segment(key).putIfAbsent(key, requireElement(newValue), System.currentTimeMillis());
+        if (local == null) {
+            return newValue;
+        }
+
+        return local;
+    }
+
+    @Override
+    public Map<Long, T> retrieveAll() {
+        long now = System.currentTimeMillis();
+        Map<Long, T> all = new HashMap<>();
+        for (LongMemorySegment<T> segment : segments) {
+            segment.copyInto(all, now);
+        }
+
+        return all;
+    }
+
+    @Override
+    public T store(long key, T element) {
+        segment(key).put(key, requireElement(element), System.currentTimeMillis(), false);
+        return element;
+    }
+
+    @Override
+    public T update(long key, T element) throws NullPointerException {
+        if (!segment(key).put(key, requireElement(element), System.currentTimeMillis(), true)) {
+            throw new NullPointerException("No element for key \"" + key + "\"");
+        }
+
+        return element;
+    }
+
+    @Override
+    public boolean evict(long key) {
+        return segment(key).remove(key, null, System.currentTimeMillis());
+    }
+
+    @Override
+    public boolean evict(long key, T element) {
+        return segment(key).remove(key, element, System.currentTimeMillis());
+    }
+
+    @Override
+    public boolean compareAndSet(long key, T expected, T element) {
+        return segment(key).replace(key, expected, requireElement(element), System.currentTimeMillis());
+    }
+
+    @Override
+    public boolean compareAndEvict(long key, T expected) {
+        return expected != null && evict(key, expected);
+    }
+
+    @Override
+    public void evictIf(BiPredicate<Long, T> predicate) {
+        long now = System.currentTimeMillis();
+        for (LongMemorySegment<T> segment : segments) {
+            segment.removeIf(predicate, now);
+        }
+    }
+
+    @Override
+    public void evictKeysIf(LongPredicate predicate) {
+        long now = System.currentTimeMillis();
+        for (LongMemorySegment<T> segment : segments) {
+            segment.removeKeysIf(predicate, now);
+        }
+    }
+
+    @Override
+    public void evictAll() {
+        for (LongMemorySegment<T> segment : segments) {
+            segment.clear();
+        }
+    }
+
+    @Override
+    public boolean contains(long key) {
+        return segment(key).contains(key, System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the amount of entries held by this stash,
+     * including expired entries which have not been purged yet.
+     *
+     * @return the amount of held entries
+     */
+    public int size() {
+        int size = 0;
+        for (LongMemorySegment<T> segment : segments) {
+            size += segment.size();
+        }
+
+        return size;
+    }
+
+    @Override
+    public void close() {
+        this.evictAll();
+    }
+
+    private LongMemorySegment<T> segment(long key) {
+        return segments[LongMemorySegment.hash(key) >>> SEGMENT_SHIFT];
+    }
+
+    private static <T> T requireElement(T element) {
+        if (element == null) {
+            throw new NullPointerException("Elements of a long memory stash can not be null");
+        }
+
+        return element;
+    }
+
+}
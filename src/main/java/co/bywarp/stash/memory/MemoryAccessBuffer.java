@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.memory;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * A bounded, lossy ring buffer of recently accessed keys.
+ *
+ * Recording never blocks: if the buffer is full, or another
+ * thread is recording at the same moment, the access is dropped.
+ * Draining must only ever be performed by one thread at a time.
+ *
+ * @param <K> the key type
+ */
+class MemoryAccessBuffer<K> {
+
+    private final AtomicReferenceArray<K> buffer;
+    private final int mask;
+    private final AtomicLong writeCounter;
+    private volatile long readCounter;
+
+    MemoryAccessBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1) << 1);
+        this.buffer = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.writeCounter = new AtomicLong();
+    }
+
+    /**
+     * Records an access to the provided key.
+     * @param key the accessed key
+     * @return if the access was recorded, or false if it was dropped
+     */
+    boolean record(K key) {
+        long head = readCounter;
+        long tail = writeCounter.get();
+        if (tail - head >= buffer.length()) {
+            return false;
+        }
+
+        if (!writeCounter.compareAndSet(tail, tail + 1)) {
+            return false;
+        }
+
+        buffer.lazySet((int) (tail & mask), key);
+        return true;
+    }
+
+    /**
+     * Returns whether or not enough accesses are pending that the buffer should be drained.
+     * @return if the buffer is at least half full
+     */
+    boolean shouldDrain() {
+        return writeCounter.get() - readCounter >= buffer.length() >> 1;
+    }
+
+    /**
+     * Drains all published accesses into the provided consumer.
+     * @param consumer the consumer to apply each accessed key to
+     */
+    void drain(Consumer<K> consumer) {
+        long head = readCounter;
+        long tail = writeCounter.get();
+        for (; head < tail; head++) {
+            int index = (int) (head & mask);
+            K key = buffer.get(index);
+            if (key == null) {
+                // The slot was claimed but is not yet published
+                break;
+            }
+
+            buffer.lazySet(index, null);
+            consumer.accept(key);
+        }
+
+        readCounter = head;
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.memory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free counter of a {@link MemoryStash}, which expires
+ * a fixed amount of time after it was last written.
+ *
+ * A counter is either integral or floating, depending on the
+ * operation which created it. Floating counters keep the raw
+ * bits of their double value.
+ */
+class MemoryCounter {
+
+    private final AtomicLong value;
+    private final boolean floating;
+    private volatile long expiresAt;
+
+    MemoryCounter(boolean floating, long expiresAt) {
+        this.value = new AtomicLong(floating ? Double.doubleToRawLongBits(0D) : 0L);
+        this.floating = floating;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Adds to this integral counter.
+     *
+     * @param delta the amount to add
+     * @param expiresAt the new expiration time
+     * @throws IllegalStateException thrown if this counter is floating
+     * @return the new value
+     */
+    long add(long delta, long expiresAt) throws IllegalStateException {
+        if (floating) {
+            throw new IllegalStateException("Counter is not an integer");
+        }
+
+        this.expiresAt = expiresAt;
+        return value.addAndGet(delta);
+    }
+
+    /**
+     * Adds to this floating counter.
+     *
+     * @param delta the amount to add
+     * @param expiresAt the new expiration time
+     * @throws IllegalStateException thrown if this counter is integral
+     * @return the new value
+     */
+    double add(double delta, long expiresAt) throws IllegalStateException {
+        if (!floating) {
+            throw new IllegalStateException("Counter is not a float");
+        }
+
+        this.expiresAt = expiresAt;
+        long bits;
+        double next;
+        do {
+            bits = value.get();
+            next = Double.longBitsToDouble(bits) + delta;
+        } while (!value.compareAndSet(bits, Double.doubleToRawLongBits(next)));
+
+        return next;
+    }
+
+    /**
+     * Returns the value of this counter, truncated if floating.
+     * @return the counter value
+     */
+    long get() {
+        long current = value.get();
+        return floating ? (long) Double.longBitsToDouble(current) : current;
+    }
+
+    void touch(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    boolean isFloating() {
+        return floating;
+    }
+
+    boolean isExpired(long now) {
+        return expiresAt <= now;
+    }
+
+}
@@ -0,0 +1,512 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.memory;
+
+import co.bywarp.stash.element.VersionedElement;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * A map which passively expires it's entries a fixed amount of time after they were
+ * last put, like {@link org.apache.commons.collections4.map.PassiveExpiringMap}, but
+ * which also exposes the expiration time of every entry.
+ *
+ * If bounded, the least recently used entry is removed once the maximum
+ * size is exceeded, and handed to the eviction listener.
+ *
+ * Every put stamps its entry with a new version, which
+ * refreshing an entry's expiration time keeps.
+ *
+ * This map is not thread-safe, and writes must be guarded by the caller.
+ * Unbounded maps do not need to keep their entries in access order though,
+ * so their live entries may be walked through {@link #liveSpliterator()}
+ * while they are being written to.
+ *
+ * Null keys are rejected by writes, whether or not the map is bounded,
+ * and are never present for reads.
+ *
+ * While a restore is in progress, the keys of every write and removal are
+ * remembered, so that restored entries never replace or resurrect them.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+class MemoryExpiringMap<K, V> extends AbstractMap<K, V> {
+
+    private final Map<K, Node<V>> nodes;
+    private final boolean concurrent;
+    private final long ttl;
+    private long version;
+
+    private Set<Object> written;
+    private boolean cleared;
+
+    MemoryExpiringMap(long ttl) {
+        this(ttl, Integer.MAX_VALUE, null);
+    }
+
+    MemoryExpiringMap(long ttl, int maximumSize, EntryConsumer<K, V> evictionListener) {
+        this.ttl = ttl;
+        this.concurrent = maximumSize == Integer.MAX_VALUE;
+        if (concurrent) {
+            this.nodes = new ConcurrentHashMap<>();
+            return;
+        }
+
+        this.nodes = new LinkedHashMap<K, Node<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Entry<K, Node<V>> eldest) {
+                if (size() <= maximumSize) {
+                    return false;
+                }
+
+                Node<V> node = eldest.getValue();
+                if (evictionListener != null && node.expiresAt > System.currentTimeMillis()) {
+                    evictionListener.accept(eldest.getKey(), node.value, node.expiresAt);
+                }
+
+                return true;
+            }
+        };
+    }
+
+    @Override
+    public V get(Object key) {
+        Node<V> node = live(key, System.currentTimeMillis());
+        return node == null ? null : node.value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return live(key, System.currentTimeMillis()) != null;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        return put(key, value, System.currentTimeMillis() + ttl);
+    }
+
+    /**
+     * Puts an entry which expires at a specific time.
+     *
+     * @param key the key
+     * @param value the value
+     * @param expiresAt the expiration time, in epoch milliseconds
+     * @return the previous live value, or null if there was none
+     */
+    V put(K key, V value, long expiresAt) {
+        if (key == null) {
+            throw new NullPointerException("Keys of a memory stash can not be null");
+        }
+
+        written(key);
+        Node<V> previous = nodes.put(key, new Node<>(value, expiresAt, ++version));
+        if (previous == null || previous.expiresAt <= System.currentTimeMillis()) {
+            return null;
+        }
+
+        return previous.value;
+    }
+
+    /**
+     * Starts remembering the keys which are written or removed, until the restore is finished.
+     */
+    void beginRestore() {
+        this.written = new HashSet<>();
+        this.cleared = false;
+    }
+
+    /**
+     * Puts a restored entry, unless it's key was written or removed,
+     * or the map was cleared, since the restore began.
+     *
+     * @param key the key
+     * @param value the restored value
+     * @param expiresAt the expiration time, in epoch milliseconds
+     * @return if the entry was restored
+     */
+    boolean restore(K key, V value, long expiresAt) {
+        if (written == null || cleared || written.contains(key) || live(key, System.currentTimeMillis()) != null) {
+            return false;
+        }
+
+        nodes.put(key, new Node<>(value, expiresAt, ++version));
+        return true;
+    }
+
+    void finishRestore() {
+        this.written = null;
+    }
+
+    /**
+     * Resets the expiration time of a live entry, keeping it's version.
+     * @param key the key
+     * @return if there was a live entry to refresh
+     */
+    boolean refresh(K key) {
+        long now = System.currentTimeMillis();
+        Node<V> node = live(key, now);
+        if (node == null) {
+            return false;
+        }
+
+        nodes.put(key, new Node<>(node.value, now + ttl, node.version));
+        return true;
+    }
+
+    /**
+     * Returns the value of a live entry along with it's version.
+     * @param key the key
+     * @return the versioned value, or null if there is no live entry
+     */
+    VersionedElement<V> getVersioned(K key) {
+        Node<V> node = live(key, System.currentTimeMillis());
+        return node == null ? null : VersionedElement.of(node.value, node.version);
+    }
+
+    /**
+     * Returns the version of a live entry.
+     * @param key the key
+     * @return the version, or -1 if there is no live entry
+     */
+    long getVersion(K key) {
+        Node<V> node = live(key, System.currentTimeMillis());
+        return node == null ? -1 : node.version;
+    }
+
+    /**
+     * Returns the expiration time of a live entry.
+     * @param key the key
+     * @return the expiration time in epoch milliseconds, or -1 if there is no live entry
+     */
+    long getExpiration(K key) {
+        Node<V> node = live(key, System.currentTimeMillis());
+        return node == null ? -1 : node.expiresAt;
+    }
+
+    @Override
+    public V remove(Object key) {
+        if (key == null) {
+            return null;
+        }
+
+        written(key);
+        Node<V> node = nodes.remove(key);
+        if (node == null || node.expiresAt <= System.currentTimeMillis()) {
+            return null;
+        }
+
+        return node.value;
+    }
+
+    @Override
+    public void clear() {
+        this.cleared = written != null;
+        nodes.clear();
+    }
+
+    @Override
+    public int size() {
+        removeAllExpired(System.currentTimeMillis());
+        return nodes.size();
+    }
+
+    /**
+     * Performs an action for every live entry.
+     * @param consumer the action to perform
+     */
+    void forEachLive(EntryConsumer<K, V> consumer) {
+        long now = System.currentTimeMillis();
+        nodes.forEach((key, node) -> {
+            if (node.expiresAt > now) {
+                consumer.accept(key, node.value, node.expiresAt);
+            }
+        });
+    }
+
+    /**
+     * Returns whether or not the live entries of this map can
+     * be walked without holding the lock which guards it's writes.
+     * @return if this map is unbounded
+     */
+    boolean isConcurrent() {
+        return concurrent;
+    }
+
+    /**
+     * Returns a weakly consistent, splittable view of the live entries of an unbounded
+     * map. The view reflects some, but not necessarily all, writes made while it is
+     * being walked, never throws {@link java.util.ConcurrentModificationException},
+     * and does not require the caller to hold any lock.
+     *
+     * @throws IllegalStateException thrown if this map is bounded
+     * @return the view of live entries
+     */
+    Spliterator<LiveEntry<K, V>> liveSpliterator() {
+        if (!concurrent) {
+            throw new IllegalStateException("Bounded maps can not be walked concurrently");
+        }
+
+        return new LiveSpliterator<>(nodes.entrySet().spliterator(), System.currentTimeMillis());
+    }
+
+    /**
+     * Collects the live entries of this map, without copying their values.
+     * @return the live entries
+     */
+    List<LiveEntry<K, V>> liveEntries() {
+        long now = System.currentTimeMillis();
+        List<LiveEntry<K, V>> live = new ArrayList<>(nodes.size());
+        nodes.forEach((key, node) -> {
+            if (node.expiresAt > now) {
+                live.add(new LiveEntry<>(key, node));
+            }
+        });
+
+        return live;
+    }
+
+    /**
+     * Removes an entry, only if it has not been written since it was walked.
+     * @param entry the walked entry
+     * @return if the entry was removed
+     */
+    boolean removeUnchanged(LiveEntry<K, V> entry) {
+        Node<V> node = nodes.get(entry.getKey());
+        if (node == null || node.version != entry.version) {
+            return false;
+        }
+
+        written(entry.getKey());
+        nodes.remove(entry.getKey());
+        return true;
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        removeAllExpired(System.currentTimeMillis());
+        return new AbstractSet<Entry<K, V>>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                Iterator<Entry<K, Node<V>>> iterator = nodes.entrySet().iterator();
+                return new Iterator<Entry<K, V>>() {
+                    private Entry<K, Node<V>> last;
+
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Entry<K, V> next() {
+                        Entry<K, Node<V>> entry = iterator.next();
+                        this.last = entry;
+                        return new SimpleEntry<K, V>(entry.getKey(), entry.getValue().value) {
+                            @Override
+                            public V setValue(V value) {
+                                written(entry.getKey());
+                                entry.getValue().value = value;
+                                entry.getValue().version = ++version;
+                                return super.setValue(value);
+                            }
+                        };
+                    }
+
+                    @Override
+                    public void remove() {
+                        iterator.remove();
+                        written(last.getKey());
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return nodes.size();
+            }
+        };
+    }
+
+    private Node<V> live(Object key, long now) {
+        if (key == null) {
+            return null;
+        }
+
+        Node<V> node = nodes.get(key);
+        if (node == null) {
+            return null;
+        }
+
+        if (node.expiresAt <= now) {
+            nodes.remove(key);
+            return null;
+        }
+
+        return node;
+    }
+
+    private void written(Object key) {
+        if (written != null) {
+            written.add(key);
+        }
+    }
+
+    private void removeAllExpired(long now) {
+        nodes.values().removeIf(node -> node.expiresAt <= now);
+    }
+
+    interface EntryConsumer<K, V> {
+        void accept(K key, V value, long expiresAt);
+    }
+
+    /**
+     * A live entry which was walked, whose value is read
+     * from the map, rather than copied out of it.
+     */
+    static class LiveEntry<K, V> implements Entry<K, V> {
+
+        private final K key;
+        private final Node<V> node;
+        private final long version;
+
+        private LiveEntry(K key, Node<V> node) {
+            this.key = key;
+            this.node = node;
+            this.version = node.version;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return node.value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            throw new UnsupportedOperationException("Walked entries are read-only");
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Entry)) {
+                return false;
+            }
+
+            Entry<?, ?> entry = (Entry<?, ?>) other;
+            return Objects.equals(key, entry.getKey()) && Objects.equals(getValue(), entry.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(key) ^ Objects.hashCode(getValue());
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + getValue();
+        }
+
+    }
+
+    /**
+     * Splits the entries of an unbounded map, skipping those which had
+     * expired by the time the walk started.
+     */
+    private static class LiveSpliterator<K, V> implements Spliterator<LiveEntry<K, V>> {
+
+        private final Spliterator<Entry<K, Node<V>>> nodes;
+        private final long now;
+        private Entry<K, Node<V>> current;
+
+        private LiveSpliterator(Spliterator<Entry<K, Node<V>>> nodes, long now) {
+            this.nodes = nodes;
+            this.now = now;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super LiveEntry<K, V>> action) {
+            while (nodes.tryAdvance(entry -> current = entry)) {
+                Node<V> node = current.getValue();
+                if (node.expiresAt > now) {
+                    action.accept(new LiveEntry<>(current.getKey(), node));
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super LiveEntry<K, V>> action) {
+            nodes.forEachRemaining(entry -> {
+                Node<V> node = entry.getValue();
+                if (node.expiresAt > now) {
+                    action.accept(new LiveEntry<>(entry.getKey(), node));
+                }
+            });
+        }
+
+        @Override
+        public Spliterator<LiveEntry<K, V>> trySplit() {
+            Spliterator<Entry<K, Node<V>>> split = nodes.trySplit();
+            return split == null ? null : new LiveSpliterator<>(split, now);
+        }
+
+        @Override
+        public long estimateSize() {
+            return nodes.estimateSize();
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.CONCURRENT | Spliterator.DISTINCT | Spliterator.NONNULL;
+        }
+
+    }
+
+    private static class Node<V> {
+
+        private volatile V value;
+        private final long expiresAt;
+        private volatile long version;
+
+        private Node(V value, long expiresAt, long version) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.version = version;
+        }
+
+    }
+
+}
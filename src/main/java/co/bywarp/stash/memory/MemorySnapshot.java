@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.memory;
+
+import co.bywarp.lightkit.util.logger.Logger;
+import co.bywarp.stash.codec.StashCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+import lombok.Getter;
+
+/**
+ * Persists the live elements of a {@link MemoryStash} to a file, so
+ * that a restarted stash can be warmed up with it's previous contents.
+ *
+ * A snapshot file is laid out as a header followed by independently
+ * checksummed chunks, which are written and read through memory-mapped
+ * regions, and decoded in parallel:
+ * <pre>
+ * [int magic][int version][int chunkCount]
+ * chunk: [int entryCount][int length][long crc32][entries]
+ * entry: [long expiresAt][int keyLength][key][int valueLength][value]
+ * </pre>
+ *
+ * @param <K> the key type
+ * @param <T> the element type
+ */
+@Getter
+public class MemorySnapshot<K, T> {
+
+    private static final int MAGIC = 0x53545348;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final int CHUNK_HEADER_SIZE = 16;
+    private static final int CHUNK_ENTRIES = 4096;
+
+    private Logger logger;
+    private Path path;
+    private StashCodec<K> keyCodec;
+    private StashCodec<T> valueCodec;
+    private long interval;
+    private TimeUnit unit;
+
+    private MemorySnapshot(Path path, StashCodec<K> keyCodec, StashCodec<T> valueCodec, long interval, TimeUnit unit) {
+        this.logger = new Logger("Memory Snapshot " + path.getFileName());
+        this.path = path;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.interval = interval;
+        this.unit = unit;
+    }
+
+    /**
+     * Creates a snapshot configuration.
+     *
+     * @param path the snapshot file
+     * @param keyCodec the codec used to store keys
+     * @param valueCodec the codec used to store elements
+     * @param interval the delay between periodic snapshots
+     * @param unit the unit of the provided interval
+     * @param <K> the key type
+     * @param <T> the element type
+     * @return the snapshot configuration
+     */
+    public static <K, T> MemorySnapshot<K, T> of(Path path,
+                                                 StashCodec<K> keyCodec,
+                                                 StashCodec<T> valueCodec,
+                                                 long interval,
+                                                 TimeUnit unit) {
+        return new MemorySnapshot<>(path, keyCodec, valueCodec, interval, unit);
+    }
+
+    /**
+     * Replaces the snapshot file with the provided entries.
+     *
+     * The file is written next to the snapshot and then moved
+     * over it, so a crash never leaves a partial snapshot behind.
+     *
+     * @param entries the entries to persist
+     * @return if the snapshot was written
+     */
+    boolean save(List<MemoryEntry<K, T>> entries) {
+        List<byte[]> chunks = IntStream
+                .range(0, (entries.size() + CHUNK_ENTRIES - 1) / CHUNK_ENTRIES)
+                .parallel()
+                .mapToObj(chunk -> encode(entries.subList(
+                        chunk * CHUNK_ENTRIES,
+                        Math.min(entries.size(), (chunk + 1) * CHUNK_ENTRIES))))
+                .collect(Collectors.toList());
+
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(chunks.size());
+            header.force();
+
+            long offset = HEADER_SIZE;
+            for (int i = 0; i < chunks.size(); i++) {
+                byte[] payload = chunks.get(i);
+                int count = Math.min(CHUNK_ENTRIES, entries.size() - i * CHUNK_ENTRIES);
+
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, offset,
+                        CHUNK_HEADER_SIZE + payload.length);
+                region.putInt(count).putInt(payload.length).putLong(crc.getValue()).put(payload);
+                region.force();
+                offset += CHUNK_HEADER_SIZE + payload.length;
+            }
+        } catch (IOException e) {
+            logger.except(e, "Failed to write snapshot");
+            return false;
+        }
+
+        try {
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            logger.except(e, "Failed to replace snapshot");
+            return false;
+        }
+    }
+
+    /**
+     * Reads all unexpired entries from the snapshot file, decoding chunks in parallel.
+     *
+     * Every chunk is decoded completely before any of it's entries are applied, so that
+     * a chunk which fails it's checksum, or can not be decoded, is skipped as a whole,
+     * rather than failing the whole load, or being partially applied.
+     *
+     * @param consumer the consumer to apply each entry to, which may be called concurrently
+     * @return the amount of loaded entries
+     */
+    int load(MemoryExpiringMap.EntryConsumer<K, T> consumer) {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+
+        AtomicInteger loaded = new AtomicInteger();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                logger.info("Ignoring incompatible snapshot " + path);
+                return 0;
+            }
+
+            // Walk the chunk headers first, so that the chunks themselves can be read in parallel
+            int chunkCount = header.getInt();
+            long size = channel.size();
+            List<long[]> regions = new ArrayList<>();
+            long offset = HEADER_SIZE;
+            for (int i = 0; i < chunkCount; i++) {
+                ByteBuffer chunkHeader = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+                channel.read(chunkHeader, offset);
+                chunkHeader.flip();
+                int length = chunkHeader.remaining() < CHUNK_HEADER_SIZE ? -1 : chunkHeader.getInt(4);
+
+                // A corrupt length hides where every later chunk starts, so only the earlier ones can be loaded
+                if (length < 0 || offset + CHUNK_HEADER_SIZE + length > size) {
+                    logger.info("Skipping " + (chunkCount - i) + " truncated snapshot chunks from offset " + offset);
+                    break;
+                }
+
+                regions.add(new long[] { offset, length, chunkHeader.getLong(8) });
+                offset += CHUNK_HEADER_SIZE + length;
+            }
+
+            long now = System.currentTimeMillis();
+            regions.parallelStream().forEach(region -> {
+                List<MemoryEntry<K, T>> chunk;
+                try {
+                    chunk = decode(channel, region, now);
+                } catch (IOException | RuntimeException e) {
+                    logger.except(e, "Skipping corrupt snapshot chunk at offset " + region[0]);
+                    return;
+                }
+
+                for (MemoryEntry<K, T> entry : chunk) {
+                    consumer.accept(entry.getKey(), entry.getValue(), entry.getExpiresAt());
+                }
+
+                loaded.addAndGet(chunk.size());
+            });
+        } catch (IOException e) {
+            logger.except(e, "Failed to read snapshot");
+        }
+
+        return loaded.get();
+    }
+
+    /**
+     * Decodes the unexpired entries of a single chunk.
+     *
+     * @param channel the snapshot file
+     * @param region the offset, payload length and checksum of the chunk
+     * @param now the current time
+     * @throws IOException thrown if the chunk could not be read, or fails it's checksum
+     * @return the unexpired entries of the chunk
+     */
+    private List<MemoryEntry<K, T>> decode(FileChannel channel, long[] region, long now) throws IOException {
+        MappedByteBuffer payload = channel.map(FileChannel.MapMode.READ_ONLY, region[0] + CHUNK_HEADER_SIZE, region[1]);
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        if (crc.getValue() != region[2]) {
+            throw new IOException("Checksum mismatch");
+        }
+
+        List<MemoryEntry<K, T>> entries = new ArrayList<>();
+        while (payload.hasRemaining()) {
+            long expiresAt = payload.getLong();
+            byte[] key = new byte[payload.getInt()];
+            payload.get(key);
+            byte[] value = new byte[payload.getInt()];
+            payload.get(value);
+            if (expiresAt > now) {
+                entries.add(new MemoryEntry<>(keyCodec.decode(key), valueCodec.decode(value), expiresAt));
+            }
+        }
+
+        return entries;
+    }
+
+    private byte[] encode(List<MemoryEntry<K, T>> entries) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            for (MemoryEntry<K, T> entry : entries) {
+                byte[] key = keyCodec.encode(entry.getKey());
+                byte[] value = valueCodec.encode(entry.getValue());
+                output.writeLong(entry.getExpiresAt());
+                output.writeInt(key.length);
+                output.write(key);
+                output.writeInt(value.length);
+                output.write(value);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+}
@@ -17,55 +17,326 @@
 
 package co.bywarp.stash.memory;
 
-import co.bywarp.lightkit.util.CollectionUtils;
-import co.bywarp.stash.StashProvider;
+import co.bywarp.stash.CountingStashProvider;
+import co.bywarp.stash.StashBatch;
 import co.bywarp.stash.element.ElementExpiryPolicy;
+import co.bywarp.stash.element.VersionedElement;
+import co.bywarp.stash.trace.StashPhase;
+import co.bywarp.stash.trace.StashTrace;
+import co.bywarp.stash.trace.StashTracing;
 
-import org.apache.commons.collections4.map.PassiveExpiringMap;
-
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class MemoryStash<K, T> implements CountingStashProvider<K, T> {
 
-public class MemoryStash<K, T> implements StashProvider<K, T> {
+    private static final int ACCESS_BUFFER_SIZE = 1024;
+    private static final long COUNTER_PURGE_MILLIS = 1000;
+    private static final int EVICTION_BATCH_SIZE = 1024;
 
+    private MemoryExpiringMap<K, T> entries;
     private Map<K, T> cache;
+    private ElementExpiryPolicy expiryPolicy;
+    private MemoryTagIndex<K> tagIndex;
+
+    private MemoryAccessBuffer<K> accessBuffer;
+    private ScheduledExecutorService executorService;
+    private ScheduledFuture<?> accessDrainer;
+
+    private MemoryEvictionListener<K, T> evictionListener;
+    private Queue<MemoryEntry<K, T>> evicted;
+
+    private MemorySnapshot<K, T> snapshot;
+    private CompletableFuture<Void> restoration;
+    private volatile List<BiPredicate<K, T>> restoreFilters;
+    private ScheduledFuture<?> snapshotter;
+
+    private Map<K, MemoryCounter> counters;
+    private Map<Map.Entry<K, String>, MemoryCounter> fieldCounters;
+    private ScheduledFuture<?> counterPurger;
+
+    private String name;
+    private StashTracing tracing;
 
     public MemoryStash(ElementExpiryPolicy expiryPolicy) {
-        this.cache = Collections.synchronizedMap(new PassiveExpiringMap<>(
-                expiryPolicy.getAmount(), expiryPolicy.getUnit()
-        ));
+        this(expiryPolicy, Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * Creates a stash which holds at most the provided amount of elements, evicting
+     * the least recently used element, and passing it to the provided listener,
+     * whenever that amount is exceeded.
+     *
+     * @param expiryPolicy the expiry policy for cache elements
+     * @param maximumSize the maximum amount of elements
+     * @param evictionListener the listener for evicted elements, or null
+     */
+    public MemoryStash(ElementExpiryPolicy expiryPolicy,
+                       int maximumSize,
+                       MemoryEvictionListener<K, T> evictionListener) {
+        this.expiryPolicy = expiryPolicy;
+        this.evictionListener = evictionListener;
+        this.evicted = new ConcurrentLinkedQueue<>();
+        this.entries = new MemoryExpiringMap<>(expiryPolicy.toMillis(), maximumSize,
+                (key, element, expiresAt) -> {
+                    tagIndex.untag(key);
+                    if (this.evictionListener != null) {
+                        evicted.add(new MemoryEntry<>(key, element, expiresAt));
+                    }
+                });
+        this.cache = Collections.synchronizedMap(entries);
+        this.tagIndex = new MemoryTagIndex<>();
+        this.counters = new ConcurrentHashMap<>();
+        this.fieldCounters = new ConcurrentHashMap<>();
+        this.name = "Memory Stash " + Integer.toHexString(System.identityHashCode(this));
+        this.tracing = StashTracing.DISABLED;
+
+        if (expiryPolicy.isAfterAccess()) {
+            long period = expiryPolicy.toRefreshMillis();
+            this.accessBuffer = new MemoryAccessBuffer<>(ACCESS_BUFFER_SIZE);
+            this.accessDrainer = executor().scheduleAtFixedRate(
+                    this::drainAccesses, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Creates a stash which is persisted to the provided snapshot periodically and when
+     * closed, and which is warmed up in the background from any existing snapshot.
+     *
+     * @param expiryPolicy the expiry policy for cache elements
+     * @param snapshot the snapshot configuration
+     */
+    public MemoryStash(ElementExpiryPolicy expiryPolicy, MemorySnapshot<K, T> snapshot) {
+        this(expiryPolicy);
+        this.snapshot = snapshot;
+        this.restoreFilters = new ArrayList<>();
+        this.entries.beginRestore();
+        this.restoration = CompletableFuture.runAsync(this::restoreSnapshot, executor());
+        this.snapshotter = executor().scheduleAtFixedRate(this::saveSnapshot,
+                snapshot.getInterval(), snapshot.getInterval(), snapshot.getUnit());
     }
 
     @Override
     public T retrieve(K key) {
-        return cache.get(key);
+        StashTrace trace = tracing.begin(name, "retrieve", key);
+        long mark = trace.mark();
+        T element = cache.get(key);
+        trace.record(StashPhase.EXECUTE, mark, 0);
+        trace.end();
+
+        if (element != null) {
+            recordAccess(key);
+        }
+
+        return element;
     }
 
     @Override
     public T retrieveOrElse(K key, T orElse) {
-        return cache.getOrDefault(key, orElse);
+        T element = retrieve(key);
+        if (element == null) {
+            return orElse;
+        }
+
+        return element;
     }
 
     @Override
     public T retrieveOrSet(K key, T newValue) {
-        T local = cache.get(key);
+        T local = retrieve(key);
         if (local == null) {
-            return cache.put(key, newValue);
+            T previous = cache.put(key, newValue);
+            tagIndex.untag(key);
+            dispatchEvictions();
+            return previous;
         }
 
         return local;
     }
 
+    /**
+     * Retrieves all cached elements.
+     *
+     * Unbounded stashes are copied through a weakly consistent walk, without
+     * blocking concurrent reads and writes, while bounded stashes are copied
+     * under the stash's lock.
+     *
+     * @return all cached elements
+     */
     @Override
     public Map<K, T> retrieveAll() {
-        return new HashMap<>(cache);
+        if (!entries.isConcurrent()) {
+            synchronized (cache) {
+                return new HashMap<>(entries);
+            }
+        }
+
+        Map<K, T> all = new HashMap<>();
+        forEach(all::put);
+        return all;
+    }
+
+    /**
+     * Performs an action for every live element, in no particular order.
+     *
+     * The walk is weakly consistent: it reflects the stash as it was at some point
+     * during the walk, may or may not include elements written while it is in
+     * progress, and never blocks concurrent reads and writes of an unbounded stash.
+     *
+     * @param action the action to perform
+     */
+    public void forEach(BiConsumer<K, T> action) {
+        spliterator().forEachRemaining(entry -> action.accept(entry.getKey(), entry.getValue()));
+    }
+
+    /**
+     * Returns a weakly consistent, splittable view of the live elements of this stash.
+     *
+     * An unbounded stash is walked in place. A bounded stash keeps it's elements
+     * in access order, which every read changes, so it's live entries are first
+     * collected under the stash's lock, without copying their values.
+     *
+     * @return the view of live elements, whose entries are read-only
+     */
+    @SuppressWarnings("unchecked")
+    public Spliterator<Map.Entry<K, T>> spliterator() {
+        return (Spliterator<Map.Entry<K, T>>) (Spliterator<?>) liveSpliterator();
+    }
+
+    /**
+     * Returns a weakly consistent stream of the live elements of this stash.
+     * @return the sequential stream of live elements
+     * @see MemoryStash#spliterator()
+     */
+    public Stream<Map.Entry<K, T>> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * Returns a weakly consistent stream of the live elements of this stash,
+     * which is split across the common fork-join pool.
+     * @return the parallel stream of live elements
+     * @see MemoryStash#spliterator()
+     */
+    public Stream<Map.Entry<K, T>> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
     }
 
     @Override
     public T store(K key, T element) {
-        return cache.put(key, element);
+        T previous = put(key, element);
+        dispatchEvictions();
+        return previous;
+    }
+
+    @Override
+    public T store(K key, T element, String... tags) {
+        T previous = store(key, element);
+        tagIndex.tag(key, tags, cache::containsKey);
+        return previous;
+    }
+
+    /**
+     * Stores an object which expires at a specific time, rather
+     * than after the period specified by the expiry policy.
+     *
+     * @param key the key used to retrieve the object
+     * @param element the object to cache
+     * @param expiresAt the expiration time, in epoch milliseconds
+     * @return the previously cached object
+     */
+    public T storeUntil(K key, T element, long expiresAt) {
+        T previous;
+        synchronized (cache) {
+            previous = entries.put(key, element, expiresAt);
+        }
+
+        tagIndex.untag(key);
+        dispatchEvictions();
+        return previous;
+    }
+
+    /**
+     * Stores an object which expires at a specific time, only if no element is cached under it's key.
+     *
+     * @param key the key used to retrieve the object
+     * @param element the object to cache
+     * @param expiresAt the expiration time, in epoch milliseconds
+     * @return if the object was stored
+     */
+    public boolean storeIfAbsent(K key, T element, long expiresAt) {
+        synchronized (cache) {
+            if (entries.containsKey(key)) {
+                return false;
+            }
+
+            entries.put(key, element, expiresAt);
+        }
+
+        tagIndex.untag(key);
+        dispatchEvictions();
+        return true;
+    }
+
+    /**
+     * Stores an object which expires at a specific time, and attaches
+     * the provided tags to it for use in {@link MemoryStash#evictByTag(String)}.
+     *
+     * @param key the key used to retrieve the object
+     * @param element the object to cache
+     * @param expiresAt the expiration time, in epoch milliseconds
+     * @param tags the tags to attach to the cached object
+     * @return the previously cached object
+     */
+    public T storeUntil(K key, T element, long expiresAt, String... tags) {
+        T previous = storeUntil(key, element, expiresAt);
+        tagIndex.tag(key, tags, cache::containsKey);
+        return previous;
+    }
+
+    /**
+     * Retrieves all live elements along with their expiration times,
+     * as they were at a single point in time.
+     *
+     * @return the live elements, in no particular order
+     */
+    public List<MemoryEntry<K, T>> retrieveEntries() {
+        List<MemoryEntry<K, T>> live = new ArrayList<>();
+        synchronized (cache) {
+            entries.forEachLive((key, element, expiresAt) ->
+                    live.add(new MemoryEntry<>(key, element, expiresAt)));
+        }
+
+        return live;
+    }
+
+    /**
+     * Returns the tags an element is currently stored with.
+     * @param key the key of the element
+     * @return the tags of the element, which are empty if it has none
+     */
+    public String[] getTags(K key) {
+        return tagIndex.tagsOf(key);
     }
 
     @Override
@@ -74,38 +345,566 @@ public class MemoryStash<K, T> implements StashProvider<K, T> {
             throw new NullPointerException("No element for key \"" + key.toString() + "\"");
         }
 
-        return cache.replace(key, element);
+        T previous = cache.replace(key, element);
+        tagIndex.untag(key);
+        return previous;
     }
 
     @Override
     public boolean evict(K key) {
-        return cache.remove(key) != null;
+        return remove(key);
     }
 
     @Override
     public boolean evict(K key, T element) {
-        return cache.remove(key, element);
+        if (!cache.remove(key, element)) {
+            return false;
+        }
+
+        tagIndex.untag(key);
+        return true;
+    }
+
+    @Override
+    public boolean compareAndSet(K key, T expected, T element) {
+        synchronized (cache) {
+            if (!Objects.equals(entries.get(key), expected)) {
+                return false;
+            }
+
+            entries.put(key, element);
+        }
+
+        tagIndex.untag(key);
+        dispatchEvictions();
+        return true;
+    }
+
+    @Override
+    public boolean compareAndEvict(K key, T expected) {
+        synchronized (cache) {
+            T element = entries.get(key);
+            if (element == null || !element.equals(expected)) {
+                return false;
+            }
+
+            entries.remove(key);
+        }
+
+        tagIndex.untag(key);
+        return true;
+    }
+
+    /**
+     * Begins a batch of writes, which is committed under a single
+     * acquisition of the stash's lock, so that readers observe
+     * either none or all of it's writes.
+     *
+     * @return the empty batch
+     */
+    @Override
+    public StashBatch<K, T> batch() {
+        return new StashBatch<>(batch -> {
+            synchronized (cache) {
+                batch.verify(entries::containsKey);
+                for (StashBatch.Write<K, T> write : batch.getWrites()) {
+                    if (write.isEviction()) {
+                        remove(write.getKey());
+                    } else {
+                        put(write.getKey(), write.getElement());
+                    }
+                }
+            }
+
+            dispatchEvictions();
+        });
+    }
+
+    /**
+     * Retrieves a cached element along with the version it was written at.
+     *
+     * @param key the key mapped to the cached object
+     * @return the versioned element, or null if it does not exist
+     */
+    public VersionedElement<T> retrieveVersioned(K key) {
+        VersionedElement<T> element;
+        synchronized (cache) {
+            element = entries.getVersioned(key);
+        }
+
+        if (element != null) {
+            recordAccess(key);
+        }
+
+        return element;
+    }
+
+    /**
+     * Atomically replaces a cached element, only if it has not been
+     * written since it was retrieved at the expected version.
+     *
+     * @param key the key of the element
+     * @param version the expected version, as returned by {@link MemoryStash#retrieveVersioned(Object)}
+     * @param element the new element to cache under the key
+     * @return if the element was replaced
+     */
+    public boolean compareVersionAndSet(K key, long version, T element) {
+        synchronized (cache) {
+            if (entries.getVersion(key) != version) {
+                return false;
+            }
+
+            entries.put(key, element);
+        }
+
+        tagIndex.untag(key);
+        dispatchEvictions();
+        return true;
+    }
+
+    @Override
+    public long increment(K key) {
+        return add(key, 1L);
+    }
+
+    /**
+     * Adds to the counter under the provided key, creating it if it does not exist.
+     *
+     * @param key the key of the counter
+     * @param delta the amount to add, which may be negative
+     * @throws IllegalStateException thrown if the counter was created as a floating-point counter
+     * @return the new counter value
+     */
+    @Override
+    public long add(K key, long delta) throws IllegalStateException {
+        long now = System.currentTimeMillis();
+        MemoryCounter counter;
+        long value;
+        do {
+            counter = counter(counters, key, false, now);
+            value = counter.add(delta, now + expiryPolicy.toMillis());
+        } while (counters.get(key) != counter);
+
+        return value;
+    }
+
+    @Override
+    public long getAndAdd(K key, long delta) throws IllegalStateException {
+        return add(key, delta) - delta;
+    }
+
+    /**
+     * Adds to the floating-point counter under the provided key,
+     * creating it if it does not exist.
+     *
+     * @param key the key of the counter
+     * @param delta the amount to add, which may be negative
+     * @throws IllegalStateException thrown if the counter was created as an integral counter
+     * @return the new counter value
+     */
+    @Override
+    public double add(K key, double delta) throws IllegalStateException {
+        long now = System.currentTimeMillis();
+        MemoryCounter counter;
+        double value;
+        do {
+            counter = counter(counters, key, true, now);
+            value = counter.add(delta, now + expiryPolicy.toMillis());
+        } while (counters.get(key) != counter);
+
+        return value;
+    }
+
+    @Override
+    public long add(K key, String field, long delta) {
+        long now = System.currentTimeMillis();
+        Map.Entry<K, String> groupKey = new AbstractMap.SimpleImmutableEntry<>(key, field);
+        MemoryCounter counter;
+        long value;
+        do {
+            counter = counter(fieldCounters, groupKey, false, now);
+            value = counter.add(delta, now + expiryPolicy.toMillis());
+        } while (fieldCounters.get(groupKey) != counter);
+
+        return value;
+    }
+
+    @Override
+    public long count(K key) {
+        return read(counters.get(key));
+    }
+
+    @Override
+    public long count(K key, String field) {
+        return read(fieldCounters.get(new AbstractMap.SimpleImmutableEntry<>(key, field)));
     }
 
+    /**
+     * Evicts all elements that match the specified predicate.
+     *
+     * The predicate is tested in parallel, over a weakly consistent walk of the
+     * stash, and matching elements are then evicted in short batches under the
+     * stash's lock. An element which is written again after it was tested is
+     * not evicted.
+     *
+     * @param predicate the condition to meet for eviction
+     */
     @Override
     public void evictIf(BiPredicate<K, T> predicate) {
-        CollectionUtils.removeIf(cache, predicate);
+        filterRestore(predicate);
+        evictMatching(entry -> predicate.test(entry.getKey(), entry.getValue()));
+    }
+
+    /**
+     * Evicts all elements whose keys match the specified predicate.
+     *
+     * Like {@link MemoryStash#evictIf(BiPredicate)}, the predicate is tested in parallel,
+     * without holding the stash's lock.
+     *
+     * @param predicate the condition to meet for eviction
+     */
+    @Override
+    public void evictKeysIf(Predicate<K> predicate) {
+        filterRestore((key, element) -> predicate.test(key));
+        evictMatching(entry -> predicate.test(entry.getKey()));
+    }
+
+    @Override
+    public long evictByTag(String tag) {
+        long evicted = 0;
+        for (K key : tagIndex.remove(tag)) {
+            if (remove(key)) {
+                evicted++;
+            }
+        }
+
+        return evicted;
     }
 
     @Override
     public void evictAll() {
         cache.clear();
+        tagIndex.clear();
+        counters.clear();
+        fieldCounters.clear();
     }
 
     @Override
     public boolean contains(K key) {
-        return cache.containsKey(key);
+        StashTrace trace = tracing.begin(name, "contains", key);
+        long mark = trace.mark();
+        boolean contains = cache.containsKey(key);
+        trace.record(StashPhase.EXECUTE, mark, 0);
+        trace.end();
+        return contains;
     }
 
     @Override
     public void close() {
+        if (accessDrainer != null) {
+            this.accessDrainer.cancel(true);
+        }
+
+        if (counterPurger != null) {
+            this.counterPurger.cancel(false);
+        }
+
+        if (snapshot != null) {
+            this.snapshotter.cancel(false);
+            this.restoration.exceptionally(throwable -> null).join();
+            this.saveSnapshot();
+        }
+
+        if (executorService != null) {
+            this.executorService.shutdown();
+        }
+
         this.cache.clear();
         this.cache = null;
+        this.tagIndex.clear();
+        this.counters.clear();
+        this.fieldCounters.clear();
+    }
+
+    /**
+     * Traces the time spent in single-key operations against this stash.
+     *
+     * @param tracing the tracing configuration
+     */
+    public void enableTracing(StashTracing tracing) {
+        this.tracing = tracing;
+    }
+
+    /**
+     * Returns whether or not this stash has finished warming up from it's snapshot.
+     * @return if the snapshot has been restored, or if there is no snapshot
+     */
+    public boolean isRestored() {
+        return restoration == null || restoration.isDone();
+    }
+
+    /**
+     * Loads all unexpired elements from the snapshot, skipping any element whose key was
+     * written or evicted while it was loading, which matches a predicate evicted by while
+     * it was loading, or which was loaded after the stash was cleared.
+     */
+    private void restoreSnapshot() {
+        try {
+            snapshot.load((key, element, expiresAt) -> {
+                synchronized (cache) {
+                    for (BiPredicate<K, T> filter : restoreFilters) {
+                        if (filter.test(key, element)) {
+                            return;
+                        }
+                    }
+
+                    entries.restore(key, element, expiresAt);
+                }
+            });
+        } finally {
+            synchronized (cache) {
+                entries.finishRestore();
+                this.restoreFilters = null;
+            }
+        }
+    }
+
+    /**
+     * Applies an eviction predicate to the elements which are yet to be restored from the snapshot.
+     *
+     * It is registered under the stash's lock, so that every restored element
+     * is either tested against it, or visible to the eviction's walk.
+     *
+     * @param predicate the condition to meet for eviction
+     */
+    private void filterRestore(BiPredicate<K, T> predicate) {
+        if (restoreFilters == null) {
+            return;
+        }
+
+        synchronized (cache) {
+            if (restoreFilters != null) {
+                restoreFilters.add(predicate);
+            }
+        }
+    }
+
+    /**
+     * Writes all live elements, along with their expiration times, to the snapshot.
+     */
+    private void saveSnapshot() {
+        snapshot.save(retrieveEntries());
+    }
+
+    /**
+     * Writes an element, without dispatching the evictions it caused,
+     * so that it may be called while holding the stash's lock.
+     *
+     * @param key the key used to retrieve the object
+     * @param element the object to cache
+     * @return the previously cached object
+     */
+    private T put(K key, T element) {
+        StashTrace trace = tracing.begin(name, "store", key);
+        long mark = trace.mark();
+        T previous = cache.put(key, element);
+        trace.record(StashPhase.EXECUTE, mark, 0);
+        trace.end();
+
+        tagIndex.untag(key);
+        return previous;
+    }
+
+    /**
+     * Removes an element, along with it's tags.
+     *
+     * @param key the key to evict
+     * @return if a live element was removed
+     */
+    private boolean remove(K key) {
+        StashTrace trace = tracing.begin(name, "evict", key);
+        long mark = trace.mark();
+        boolean evicted = cache.remove(key) != null;
+        trace.record(StashPhase.EXECUTE, mark, 0);
+        trace.end();
+
+        tagIndex.untag(key);
+        return evicted;
+    }
+
+    /**
+     * Removes a walked element, along with it's tags, only if it
+     * has not been written since it was walked.
+     *
+     * @param entry the walked entry
+     * @return if the element was removed
+     */
+    private boolean removeUnchanged(MemoryExpiringMap.LiveEntry<K, T> entry) {
+        StashTrace trace = tracing.begin(name, "evict", entry.getKey());
+        long mark = trace.mark();
+        boolean evicted = entries.removeUnchanged(entry);
+        trace.record(StashPhase.EXECUTE, mark, 0);
+        trace.end();
+
+        if (evicted) {
+            tagIndex.untag(entry.getKey());
+        }
+
+        return evicted;
+    }
+
+    /**
+     * Hands all elements evicted for exceeding the maximum size to the
+     * eviction listener, outside of the lock they were evicted under.
+     *
+     * Dispatching threads take turns, so the listener sees evictions in the
+     * order they happened, and an older eviction of a key is never handed
+     * over after a newer one.
+     */
+    private void dispatchEvictions() {
+        synchronized (evicted) {
+            MemoryEntry<K, T> entry;
+            while ((entry = evicted.poll()) != null) {
+                evictionListener.onEvict(entry.getKey(), entry.getValue(), entry.getExpiresAt());
+            }
+        }
+    }
+
+    /**
+     * Returns the live counter under the provided key, replacing it
+     * with a new counter if it does not exist or has expired.
+     *
+     * A counter may still be purged between being returned and written to,
+     * so writers retry on the new counter if it is no longer mapped afterwards.
+     *
+     * @param counters the counters to look in
+     * @param key the key of the counter
+     * @param floating if a new counter should be floating
+     * @param now the current time
+     * @return the live counter
+     */
+    private <C> MemoryCounter counter(Map<C, MemoryCounter> counters, C key, boolean floating, long now) {
+        MemoryCounter counter = counters.get(key);
+        if (counter != null && !counter.isExpired(now)) {
+            return counter;
+        }
+
+        if (counterPurger == null) {
+            schedulePurge();
+        }
+
+        return counters.compute(key, (k, existing) -> existing == null || existing.isExpired(now)
+                ? new MemoryCounter(floating, now + expiryPolicy.toMillis())
+                : existing);
+    }
+
+    private long read(MemoryCounter counter) {
+        long now = System.currentTimeMillis();
+        if (counter == null || counter.isExpired(now)) {
+            return 0;
+        }
+
+        if (expiryPolicy.isAfterAccess()) {
+            counter.touch(now + expiryPolicy.toMillis());
+        }
+
+        return counter.get();
+    }
+
+    /**
+     * Starts periodically removing expired counters, once the first counter is created.
+     */
+    private void schedulePurge() {
+        synchronized (counters) {
+            if (counterPurger != null) {
+                return;
+            }
+
+            long period = Math.max(COUNTER_PURGE_MILLIS, expiryPolicy.toMillis());
+            this.counterPurger = executor().scheduleAtFixedRate(() -> {
+                long now = System.currentTimeMillis();
+                purge(counters, now);
+                purge(fieldCounters, now);
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Removes every expired counter, checking the expiry again under the lock of
+     * the key, so that a counter written or replaced since the scan is kept.
+     *
+     * @param counters the counters to purge
+     * @param now the current time
+     */
+    private static <C> void purge(Map<C, MemoryCounter> counters, long now) {
+        for (C key : counters.keySet()) {
+            counters.computeIfPresent(key, (k, counter) -> counter.isExpired(now) ? null : counter);
+        }
+    }
+
+    private ScheduledExecutorService executor() {
+        if (executorService == null) {
+            this.executorService = Executors.newSingleThreadScheduledExecutor();
+        }
+
+        return executorService;
+    }
+
+    /**
+     * Tests every live entry in parallel, and evicts those which match,
+     * unless they have been written since they were tested.
+     *
+     * @param predicate the condition to meet for eviction
+     */
+    private void evictMatching(Predicate<MemoryExpiringMap.LiveEntry<K, T>> predicate) {
+        List<MemoryExpiringMap.LiveEntry<K, T>> matching = StreamSupport.stream(liveSpliterator(), true)
+                .filter(predicate)
+                .collect(Collectors.toList());
+
+        // Evictions are applied in batches, so that readers never wait behind the whole eviction
+        for (int start = 0; start < matching.size(); start += EVICTION_BATCH_SIZE) {
+            int end = Math.min(matching.size(), start + EVICTION_BATCH_SIZE);
+            synchronized (cache) {
+                matching.subList(start, end).forEach(this::removeUnchanged);
+            }
+        }
+    }
+
+    private Spliterator<MemoryExpiringMap.LiveEntry<K, T>> liveSpliterator() {
+        if (entries.isConcurrent()) {
+            return entries.liveSpliterator();
+        }
+
+        synchronized (cache) {
+            return entries.liveEntries().spliterator();
+        }
+    }
+
+    /**
+     * Records a read of the provided key, so that its
+     * expiry is pushed back the next time accesses are drained.
+     *
+     * @param key the accessed key
+     */
+    private void recordAccess(K key) {
+        if (accessBuffer == null) {
+            return;
+        }
+
+        accessBuffer.record(key);
+        if (accessBuffer.shouldDrain()) {
+            drainAccesses();
+        }
+    }
+
+    /**
+     * Refreshes every element with a buffered access, which
+     * resets its expiration time in the underlying map.
+     */
+    private void drainAccesses() {
+        synchronized (cache) {
+            accessBuffer.drain(entries::refresh);
+        }
     }
 
 }
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.memory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * A secondary index of the keys stored under each tag.
+ *
+ * Tags belong to the element they were stored with, so a key must be
+ * untagged whenever it is written again, or removed, by it's stash.
+ *
+ * Keys are never removed when their elements expire; instead, a tag's
+ * key set is pruned of dead keys whenever it has doubled in size since
+ * it was last pruned, which keeps the cost of cleanup amortized.
+ *
+ * @param <K> the key type
+ */
+public class MemoryTagIndex<K> {
+
+    private static final int MIN_PRUNE_THRESHOLD = 64;
+
+    private final Map<String, TagGroup<K>> groups;
+    private final Map<K, Set<String>> memberships;
+
+    public MemoryTagIndex() {
+        this.groups = new ConcurrentHashMap<>();
+        this.memberships = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Attaches the provided tags to a key, replacing any tags it was stored with before.
+     *
+     * @param key the tagged key
+     * @param tags the tags to attach
+     * @param live tests whether a key still refers to a cached element
+     */
+    public void tag(K key, String[] tags, Predicate<K> live) {
+        Set<String> attached = ConcurrentHashMap.newKeySet(tags.length);
+        attached.addAll(Arrays.asList(tags));
+
+        Set<String> previous = attached.isEmpty() ? memberships.remove(key) : memberships.put(key, attached);
+        if (previous != null) {
+            previous.stream()
+                    .filter(tag -> !attached.contains(tag))
+                    .forEach(tag -> leave(tag, key));
+        }
+
+        List<K> pruned = new ArrayList<>();
+        for (String tag : attached) {
+            TagGroup<K> group = groups.compute(tag, (name, existing) -> {
+                TagGroup<K> joined = existing == null ? new TagGroup<>() : existing;
+                joined.keys.add(key);
+                return joined;
+            });
+
+            // The live test may take the stash's lock, under which keys are untagged, so it runs unlocked
+            group.prune(live, pruned);
+        }
+
+        // Dead keys lose all of their tags, unless they have been stored again since
+        pruned.stream()
+                .filter(live.negate())
+                .forEach(this::untag);
+    }
+
+    /**
+     * Detaches all tags from a key, once it has been written again, or removed.
+     * @param key the key to untag
+     */
+    public void untag(K key) {
+        if (memberships.isEmpty()) {
+            return;
+        }
+
+        memberships.computeIfPresent(key, (k, tags) -> {
+            tags.forEach(tag -> leave(tag, k));
+            return null;
+        });
+    }
+
+    /**
+     * Returns the tags a key is currently stored with.
+     * @param key the key
+     * @return the tags of the key, which are empty if it has none
+     */
+    public String[] tagsOf(K key) {
+        Set<String> tags = memberships.get(key);
+        return tags == null ? new String[0] : tags.toArray(new String[0]);
+    }
+
+    /**
+     * Removes a tag from the index.
+     * @param tag the tag to remove
+     * @return the keys which were stored under the tag
+     */
+    public Set<K> remove(String tag) {
+        TagGroup<K> group = groups.remove(tag);
+        if (group == null) {
+            return Collections.emptySet();
+        }
+
+        group.keys.forEach(key -> memberships.computeIfPresent(key, (k, tags) -> {
+            tags.remove(tag);
+            return tags.isEmpty() ? null : tags;
+        }));
+
+        return group.keys;
+    }
+
+    public void clear() {
+        groups.clear();
+        memberships.clear();
+    }
+
+    private void leave(String tag, K key) {
+        groups.computeIfPresent(tag, (name, group) -> {
+            group.keys.remove(key);
+            return group.keys.isEmpty() ? null : group;
+        });
+    }
+
+    private static class TagGroup<K> {
+
+        private final Set<K> keys = ConcurrentHashMap.newKeySet();
+        private volatile int pruneThreshold = MIN_PRUNE_THRESHOLD;
+
+        private void prune(Predicate<K> live, List<K> pruned) {
+            if (keys.size() < pruneThreshold) {
+                return;
+            }
+
+            keys.removeIf(k -> {
+                if (live.test(k)) {
+                    return false;
+                }
+
+                pruned.add(k);
+                return true;
+            });
+
+            pruneThreshold = Math.max(MIN_PRUNE_THRESHOLD, keys.size() * 2);
+        }
+
+    }
+
+}
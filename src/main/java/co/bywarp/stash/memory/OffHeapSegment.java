@@ -0,0 +1,479 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.memory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+
+/**
+ * One lock-protected partition of an {@link OffHeapStash}.
+ *
+ * Records live in slab memory, and are located through an open-addressing
+ * index of key hashes and record addresses, using linear probing and
+ * backward-shift deletion. A record is laid out as:
+ * <pre>
+ * [int keyLength][int valueLength][long expiresAt][int hash][key][value]
+ * </pre>
+ *
+ * The keys of live records removed by a predicate, or evicted to make room,
+ * are handed to the removal listener while the segment's lock is still held.
+ */
+class OffHeapSegment {
+
+    private static final int HEADER_SIZE = 20;
+    private static final int VALUE_LENGTH = 4;
+    private static final int EXPIRES_AT = 8;
+    private static final int HASH = 16;
+
+    private static final int INITIAL_CAPACITY = 1 << 10;
+    private static final long PURGE_INTERVAL = 1000;
+
+    private final OffHeapSlabAllocator allocator;
+    private final long ttl;
+    private final boolean afterAccess;
+    private final Consumer<byte[]> removalListener;
+
+    private int[] hashes;
+    private long[] addresses;
+    private int mask;
+    private int size;
+    private long nextPurge;
+
+    OffHeapSegment(int maxSlabs, long ttl, boolean afterAccess, Consumer<byte[]> removalListener) {
+        this.allocator = new OffHeapSlabAllocator(maxSlabs);
+        this.ttl = ttl;
+        this.afterAccess = afterAccess;
+        this.removalListener = removalListener;
+        this.reset();
+    }
+
+    synchronized byte[] get(byte[] key, int hash, long now) {
+        int slot = find(key, hash);
+        if (slot == -1) {
+            return null;
+        }
+
+        long address = addresses[slot];
+        ByteBuffer buffer = allocator.buffer(address);
+        int offset = OffHeapSlabAllocator.offset(address);
+        if (buffer.getLong(offset + EXPIRES_AT) <= now) {
+            delete(slot);
+            return null;
+        }
+
+        if (afterAccess) {
+            buffer.putLong(offset + EXPIRES_AT, now + ttl);
+        }
+
+        return read(buffer, offset + HEADER_SIZE + key.length, buffer.getInt(offset + VALUE_LENGTH));
+    }
+
+    synchronized boolean contains(byte[] key, int hash, long now) {
+        int slot = find(key, hash);
+        if (slot == -1) {
+            return false;
+        }
+
+        if (isExpired(addresses[slot], now)) {
+            delete(slot);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Stores a record, replacing any previous record for the same key.
+     *
+     * @param key the encoded key
+     * @param hash the key hash
+     * @param value the encoded value
+     * @param now the current time
+     * @param replaceOnly if the record should only be stored when a live record already exists
+     * @return if the record was stored
+     */
+    synchronized boolean put(byte[] key, int hash, byte[] value, long now, boolean replaceOnly) {
+        if (replaceOnly && !contains(key, hash, now)) {
+            return false;
+        }
+
+        int sizeClass = OffHeapSlabAllocator.sizeClass(HEADER_SIZE + key.length + value.length);
+        if (sizeClass == -1) {
+            throw new IllegalArgumentException("Element of " + value.length + " bytes exceeds the slab size");
+        }
+
+        long address = allocate(sizeClass, now);
+        if (address == -1) {
+            return false;
+        }
+
+        ByteBuffer buffer = allocator.buffer(address);
+        int offset = OffHeapSlabAllocator.offset(address);
+        buffer.putInt(offset, key.length);
+        buffer.putInt(offset + VALUE_LENGTH, value.length);
+        buffer.putLong(offset + EXPIRES_AT, now + ttl);
+        buffer.putInt(offset + HASH, hash);
+        write(buffer, offset + HEADER_SIZE, key);
+        write(buffer, offset + HEADER_SIZE + key.length, value);
+
+        // Allocation may have evicted or moved records, so the slot is found afterwards
+        int slot = find(key, hash);
+        if (slot != -1) {
+            allocator.free(addresses[slot]);
+            addresses[slot] = address;
+            return true;
+        }
+
+        if (size + 1 > (hashes.length >> 2) * 3) {
+            resize(hashes.length << 1);
+        }
+
+        insert(hash, address);
+        size++;
+        return true;
+    }
+
+    /**
+     * Stores a record only if the live record for the same key holds the expected value.
+     *
+     * @param key the encoded key
+     * @param hash the key hash
+     * @param expected the expected encoded value, or null if no live record is expected
+     * @param value the encoded value
+     * @param now the current time
+     * @return if the record was stored
+     */
+    synchronized boolean replace(byte[] key, int hash, byte[] expected, byte[] value, long now) {
+        int slot = find(key, hash);
+        if (slot != -1 && isExpired(addresses[slot], now)) {
+            delete(slot);
+            slot = -1;
+        }
+
+        if (slot == -1 ? expected != null : expected == null || !holds(slot, key, expected)) {
+            return false;
+        }
+
+        return put(key, hash, value, now, false);
+    }
+
+    synchronized boolean remove(byte[] key, int hash, byte[] expected) {
+        int slot = find(key, hash);
+        if (slot == -1) {
+            return false;
+        }
+
+        if (expected != null && !holds(slot, key, expected)) {
+            return false;
+        }
+
+        boolean live = !isExpired(addresses[slot], System.currentTimeMillis());
+        delete(slot);
+        return live;
+    }
+
+    /**
+     * Removes every live record matching the provided predicate,
+     * which is tested against the encoded key and value.
+     *
+     * @param predicate the condition to meet for removal
+     * @param now the current time
+     * @return the amount of removed records
+     */
+    synchronized int removeIf(BiPredicate<byte[], byte[]> predicate, long now) {
+        int removed = 0;
+        for (int slot = 0; slot < hashes.length; slot++) {
+            while (hashes[slot] != 0) {
+                long address = addresses[slot];
+                if (isExpired(address, now)) {
+                    delete(slot);
+                    removed++;
+                    continue;
+                }
+
+                byte[] key = readKey(address);
+                if (!predicate.test(key, readValue(address))) {
+                    break;
+                }
+
+                // Deleting shifts the next record of the probe sequence into this slot
+                delete(slot);
+                removalListener.accept(key);
+                removed++;
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Removes every expired record.
+     * @param now the current time
+     */
+    private void purge(long now) {
+        for (int slot = 0; slot < hashes.length; slot++) {
+            while (hashes[slot] != 0 && isExpired(addresses[slot], now)) {
+                delete(slot);
+            }
+        }
+    }
+
+    /**
+     * Copies every live record out of slab memory.
+     * @param now the current time
+     * @return pairs of encoded keys and values
+     */
+    synchronized List<byte[][]> entries(long now) {
+        List<byte[][]> entries = new ArrayList<>(size);
+        for (int slot = 0; slot < hashes.length; slot++) {
+            if (hashes[slot] != 0 && !isExpired(addresses[slot], now)) {
+                entries.add(new byte[][] { readKey(addresses[slot]), readValue(addresses[slot]) });
+            }
+        }
+
+        return entries;
+    }
+
+    synchronized void clear() {
+        allocator.clear();
+        reset();
+    }
+
+    synchronized long allocatedBytes() {
+        return allocator.allocatedBytes();
+    }
+
+    /**
+     * Allocates a chunk, making room by purging expired records, compacting
+     * sparse slabs, and finally evicting live records if memory is exhausted.
+     *
+     * @param sizeClass the size class to allocate
+     * @param now the current time
+     * @return the address of the chunk, or -1 if no room could be made
+     */
+    private long allocate(int sizeClass, long now) {
+        long address = allocator.allocate(sizeClass);
+        if (address != -1) {
+            return address;
+        }
+
+        if (now >= nextPurge) {
+            this.nextPurge = now + PURGE_INTERVAL;
+            purge(now);
+            compact();
+
+            address = allocator.allocate(sizeClass);
+            if (address != -1) {
+                return address;
+            }
+        }
+
+        long victim = allocator.victim(sizeClass);
+        if (victim != -1) {
+            evict(victim);
+            return allocator.allocate(sizeClass);
+        }
+
+        // No chunk of this size class is in use, so take over another class's sparsest slab
+        int slab = allocator.sparsestSlab(-1);
+        if (slab == -1) {
+            return -1;
+        }
+
+        allocator.retire(slab);
+        for (long chunk : allocator.liveChunks(slab)) {
+            evict(chunk);
+        }
+
+        allocator.release(slab);
+        return allocator.allocate(sizeClass);
+    }
+
+    /**
+     * Deletes a record to make room, notifying the removal listener of it's key.
+     * @param address the address of the record
+     */
+    private void evict(long address) {
+        byte[] key = readKey(address);
+        delete(slotOf(address));
+        removalListener.accept(key);
+    }
+
+    /**
+     * Moves the live records of sparsely used slabs into the free chunks
+     * of other slabs of the same size class, and releases the emptied slabs.
+     */
+    private void compact() {
+        for (int sizeClass = 0; sizeClass < OffHeapSlabAllocator.CLASS_COUNT; sizeClass++) {
+            while (allocator.isCompactable(sizeClass)) {
+                int slab = allocator.sparsestSlab(sizeClass);
+                allocator.retire(slab);
+                for (long chunk : allocator.liveChunks(slab)) {
+                    relocate(chunk, allocator.allocate(sizeClass));
+                }
+
+                allocator.release(slab);
+            }
+        }
+    }
+
+    private void relocate(long from, long to) {
+        ByteBuffer source = allocator.buffer(from);
+        int sourceOffset = OffHeapSlabAllocator.offset(from);
+        int length = HEADER_SIZE + source.getInt(sourceOffset) + source.getInt(sourceOffset + VALUE_LENGTH);
+
+        ByteBuffer view = source.duplicate();
+        view.limit(sourceOffset + length).position(sourceOffset);
+        ByteBuffer target = allocator.buffer(to).duplicate();
+        target.position(OffHeapSlabAllocator.offset(to));
+        target.put(view);
+
+        addresses[slotOf(from)] = to;
+        allocator.free(from);
+    }
+
+    private int find(byte[] key, int hash) {
+        for (int slot = hash & mask; hashes[slot] != 0; slot = (slot + 1) & mask) {
+            if (hashes[slot] != hash) {
+                continue;
+            }
+
+            long address = addresses[slot];
+            ByteBuffer buffer = allocator.buffer(address);
+            int offset = OffHeapSlabAllocator.offset(address);
+            if (buffer.getInt(offset) == key.length && matches(buffer, offset + HEADER_SIZE, key)) {
+                return slot;
+            }
+        }
+
+        return -1;
+    }
+
+    private int slotOf(long address) {
+        int hash = allocator.buffer(address).getInt(OffHeapSlabAllocator.offset(address) + HASH);
+        int slot = hash & mask;
+        while (addresses[slot] != address || hashes[slot] == 0) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    private void insert(int hash, long address) {
+        int slot = hash & mask;
+        while (hashes[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+
+        hashes[slot] = hash;
+        addresses[slot] = address;
+    }
+
+    private void delete(int slot) {
+        allocator.free(addresses[slot]);
+        size--;
+
+        int gap = slot;
+        for (int next = (gap + 1) & mask; hashes[next] != 0; next = (next + 1) & mask) {
+            int ideal = hashes[next] & mask;
+            if (((next - ideal) & mask) >= ((next - gap) & mask)) {
+                hashes[gap] = hashes[next];
+                addresses[gap] = addresses[next];
+                gap = next;
+            }
+        }
+
+        hashes[gap] = 0;
+        addresses[gap] = 0;
+    }
+
+    private void reset() {
+        this.hashes = new int[INITIAL_CAPACITY];
+        this.addresses = new long[INITIAL_CAPACITY];
+        this.mask = INITIAL_CAPACITY - 1;
+        this.size = 0;
+    }
+
+    private void resize(int capacity) {
+        int[] oldHashes = hashes;
+        long[] oldAddresses = addresses;
+        this.hashes = new int[capacity];
+        this.addresses = new long[capacity];
+        this.mask = capacity - 1;
+
+        for (int slot = 0; slot < oldHashes.length; slot++) {
+            if (oldHashes[slot] != 0) {
+                insert(oldHashes[slot], oldAddresses[slot]);
+            }
+        }
+    }
+
+    private boolean holds(int slot, byte[] key, byte[] value) {
+        long address = addresses[slot];
+        ByteBuffer buffer = allocator.buffer(address);
+        int offset = OffHeapSlabAllocator.offset(address);
+        return buffer.getInt(offset + VALUE_LENGTH) == value.length
+                && matches(buffer, offset + HEADER_SIZE + key.length, value);
+    }
+
+    private boolean isExpired(long address, long now) {
+        return allocator.buffer(address).getLong(OffHeapSlabAllocator.offset(address) + EXPIRES_AT) <= now;
+    }
+
+    private byte[] readKey(long address) {
+        ByteBuffer buffer = allocator.buffer(address);
+        int offset = OffHeapSlabAllocator.offset(address);
+        return read(buffer, offset + HEADER_SIZE, buffer.getInt(offset));
+    }
+
+    private byte[] readValue(long address) {
+        ByteBuffer buffer = allocator.buffer(address);
+        int offset = OffHeapSlabAllocator.offset(address);
+        return read(buffer,
+                offset + HEADER_SIZE + buffer.getInt(offset),
+                buffer.getInt(offset + VALUE_LENGTH));
+    }
+
+    private static byte[] read(ByteBuffer buffer, int position, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        view.get(bytes);
+        return bytes;
+    }
+
+    private static void write(ByteBuffer buffer, int position, byte[] bytes) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        view.put(bytes);
+    }
+
+    private static boolean matches(ByteBuffer buffer, int position, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(position + i) != bytes[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.memory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Hands out fixed size chunks of direct memory, grouped by size class.
+ *
+ * Memory is reserved one slab at a time, and every slab is cut into
+ * chunks of a single size class when it is first needed. Slabs which
+ * are emptied through compaction or eviction are released, and can then
+ * be reassigned to any size class.
+ *
+ * The first four bytes of every free chunk hold {@link OffHeapSlabAllocator#FREE}.
+ * Addresses pack the slab index into the upper 32 bits, and the offset
+ * within that slab into the lower 32 bits.
+ */
+class OffHeapSlabAllocator {
+
+    static final int SLAB_SIZE = 1 << 20;
+    static final int FREE = -1;
+
+    private static final int MIN_CHUNK_SHIFT = 5;
+    private static final int MAX_CHUNK_SHIFT = 20;
+    static final int CLASS_COUNT = MAX_CHUNK_SHIFT - MIN_CHUNK_SHIFT + 1;
+
+    private final int maxSlabs;
+    private final List<ByteBuffer> slabs;
+    private final Deque<Integer> releasedSlabs;
+    private final ChunkStack[] freeChunks;
+    private final long[] clockHands;
+
+    private int[] slabClasses;
+    private int[] liveChunks;
+    private boolean[] retired;
+
+    OffHeapSlabAllocator(int maxSlabs) {
+        this.maxSlabs = maxSlabs;
+        this.slabs = new ArrayList<>();
+        this.releasedSlabs = new ArrayDeque<>();
+        this.freeChunks = new ChunkStack[CLASS_COUNT];
+        this.clockHands = new long[CLASS_COUNT];
+        this.slabClasses = new int[0];
+        this.liveChunks = new int[0];
+        this.retired = new boolean[0];
+
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            freeChunks[i] = new ChunkStack();
+        }
+    }
+
+    static long address(int slab, int offset) {
+        return ((long) slab << 32) | offset;
+    }
+
+    static int slab(long address) {
+        return (int) (address >>> 32);
+    }
+
+    static int offset(long address) {
+        return (int) address;
+    }
+
+    /**
+     * Returns the size class which fits a record of the provided size.
+     * @param size the record size
+     * @return the size class, or -1 if the record is larger than a slab
+     */
+    static int sizeClass(int size) {
+        if (size > SLAB_SIZE) {
+            return -1;
+        }
+
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(1, size - 1));
+        return Math.max(MIN_CHUNK_SHIFT, shift) - MIN_CHUNK_SHIFT;
+    }
+
+    static int chunkSize(int sizeClass) {
+        return 1 << (sizeClass + MIN_CHUNK_SHIFT);
+    }
+
+    ByteBuffer buffer(long address) {
+        return slabs.get(slab(address));
+    }
+
+    /**
+     * Allocates a chunk of the provided size class.
+     * @param sizeClass the size class
+     * @return the address of the chunk, or -1 if no memory is available
+     */
+    long allocate(int sizeClass) {
+        ChunkStack free = freeChunks[sizeClass];
+        if (free.isEmpty() && !carve(sizeClass)) {
+            return -1;
+        }
+
+        long address = free.pop();
+        liveChunks[slab(address)]++;
+        return address;
+    }
+
+    /**
+     * Returns a chunk to it's size class.
+     * @param address the address of the chunk
+     */
+    void free(long address) {
+        int slab = slab(address);
+        slabs.get(slab).putInt(offset(address), FREE);
+        liveChunks[slab]--;
+        if (!retired[slab]) {
+            freeChunks[slabClasses[slab]].push(address);
+        }
+    }
+
+    /**
+     * Selects a live chunk of the provided size class to evict,
+     * by sweeping a clock hand over all slabs of that class.
+     *
+     * @param sizeClass the size class
+     * @return the address of the chunk, or -1 if the class has no live chunks
+     */
+    long victim(int sizeClass) {
+        if (slabs.isEmpty()) {
+            return -1;
+        }
+
+        int chunkSize = chunkSize(sizeClass);
+        int start = slab(clockHands[sizeClass]) % slabs.size();
+        int offset = offset(clockHands[sizeClass]);
+        for (int i = 0; i <= slabs.size(); i++, offset = 0) {
+            int slab = (start + i) % slabs.size();
+            if (slabClasses[slab] != sizeClass || retired[slab]) {
+                continue;
+            }
+
+            ByteBuffer buffer = slabs.get(slab);
+            for (; offset + chunkSize <= SLAB_SIZE; offset += chunkSize) {
+                if (buffer.getInt(offset) != FREE) {
+                    clockHands[sizeClass] = address(slab, offset + chunkSize);
+                    return address(slab, offset);
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns whether or not the live chunks of one slab in the provided
+     * size class would fit into the free chunks of it's other slabs.
+     *
+     * @param sizeClass the size class
+     * @return if the size class can be compacted
+     */
+    boolean isCompactable(int sizeClass) {
+        return freeChunks[sizeClass].size() >= SLAB_SIZE / chunkSize(sizeClass);
+    }
+
+    /**
+     * Finds the slab of the provided size class with the fewest live chunks.
+     * @param sizeClass the size class, or -1 to consider all classes
+     * @return the slab index, or -1 if there is no such slab
+     */
+    int sparsestSlab(int sizeClass) {
+        int sparsest = -1;
+        for (int slab = 0; slab < slabs.size(); slab++) {
+            if (slabClasses[slab] == FREE || retired[slab]) {
+                continue;
+            }
+
+            if (sizeClass != -1 && slabClasses[slab] != sizeClass) {
+                continue;
+            }
+
+            if (sparsest == -1 || liveChunks[slab] < liveChunks[sparsest]) {
+                sparsest = slab;
+            }
+        }
+
+        return sparsest;
+    }
+
+    int slabClass(int slab) {
+        return slabClasses[slab];
+    }
+
+    /**
+     * Stops handing out chunks of a slab, so that it can be drained and released.
+     * @param slab the slab index
+     */
+    void retire(int slab) {
+        retired[slab] = true;
+        freeChunks[slabClasses[slab]].removeSlab(slab);
+    }
+
+    /**
+     * Lists the addresses of all live chunks in a slab.
+     * @param slab the slab index
+     * @return the live chunk addresses
+     */
+    long[] liveChunks(int slab) {
+        ByteBuffer buffer = slabs.get(slab);
+        int chunkSize = chunkSize(slabClasses[slab]);
+        long[] live = new long[liveChunks[slab]];
+        int found = 0;
+        for (int offset = 0; offset + chunkSize <= SLAB_SIZE && found < live.length; offset += chunkSize) {
+            if (buffer.getInt(offset) != FREE) {
+                live[found++] = address(slab, offset);
+            }
+        }
+
+        return live;
+    }
+
+    /**
+     * Releases a drained, retired slab so that it can be reassigned to any size class.
+     * @param slab the slab index
+     */
+    void release(int slab) {
+        slabClasses[slab] = FREE;
+        liveChunks[slab] = 0;
+        retired[slab] = false;
+        releasedSlabs.push(slab);
+    }
+
+    /**
+     * Releases every slab, and drops all references to direct memory.
+     */
+    void clear() {
+        slabs.clear();
+        releasedSlabs.clear();
+        slabClasses = new int[0];
+        liveChunks = new int[0];
+        retired = new boolean[0];
+        Arrays.fill(clockHands, 0);
+        for (ChunkStack stack : freeChunks) {
+            stack.clear();
+        }
+    }
+
+    long allocatedBytes() {
+        return (long) (slabs.size() - releasedSlabs.size()) * SLAB_SIZE;
+    }
+
+    /**
+     * Assigns a slab to a size class, and cuts it into free chunks.
+     * @param sizeClass the size class
+     * @return if a slab was available
+     */
+    private boolean carve(int sizeClass) {
+        int slab;
+        if (!releasedSlabs.isEmpty()) {
+            slab = releasedSlabs.pop();
+        } else if (slabs.size() < maxSlabs) {
+            slab = slabs.size();
+            slabs.add(ByteBuffer.allocateDirect(SLAB_SIZE));
+            slabClasses = Arrays.copyOf(slabClasses, slab + 1);
+            liveChunks = Arrays.copyOf(liveChunks, slab + 1);
+            retired = Arrays.copyOf(retired, slab + 1);
+        } else {
+            return false;
+        }
+
+        slabClasses[slab] = sizeClass;
+        ByteBuffer buffer = slabs.get(slab);
+        int chunkSize = chunkSize(sizeClass);
+        for (int offset = SLAB_SIZE - chunkSize; offset >= 0; offset -= chunkSize) {
+            buffer.putInt(offset, FREE);
+            freeChunks[sizeClass].push(address(slab, offset));
+        }
+
+        return true;
+    }
+
+    private static class ChunkStack {
+
+        private long[] addresses = new long[64];
+        private int size;
+
+        private boolean isEmpty() {
+            return size == 0;
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private void push(long address) {
+            if (size == addresses.length) {
+                addresses = Arrays.copyOf(addresses, size * 2);
+            }
+
+            addresses[size++] = address;
+        }
+
+        private long pop() {
+            return addresses[--size];
+        }
+
+        private void removeSlab(int slab) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (slab(addresses[i]) != slab) {
+                    addresses[kept++] = addresses[i];
+                }
+            }
+
+            size = kept;
+        }
+
+        private void clear() {
+            size = 0;
+        }
+
+    }
+
+}
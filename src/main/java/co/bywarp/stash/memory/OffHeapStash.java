@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.memory;
+
+import co.bywarp.stash.StashProvider;
+import co.bywarp.stash.codec.StashCodec;
+import co.bywarp.stash.element.ElementExpiryPolicy;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+
+import lombok.Getter;
+
+/**
+ * An in-memory stash which keeps keys and values outside of the Java heap.
+ *
+ * Keys and values are encoded through their codecs into slabs of direct
+ * memory, so that large caches add next to nothing to garbage collection.
+ * The stash is split into independently locked segments by key hash, and
+ * each segment is given an equal share of the memory limit.
+ */
+@Getter
+public class OffHeapStash<K, T> implements StashProvider<K, T> {
+
+    public static final long DEFAULT_MAX_MEMORY = 256L << 20;
+
+    private static final int SEGMENT_COUNT = 16;
+    private static final int SEGMENT_SHIFT = 28;
+
+    private ElementExpiryPolicy expiryPolicy;
+    private StashCodec<K> keyCodec;
+    private StashCodec<T> valueCodec;
+    private long maxMemory;
+
+    private OffHeapSegment[] segments;
+    private MemoryTagIndex<K> tagIndex;
+
+    public OffHeapStash(ElementExpiryPolicy expiryPolicy,
+                        StashCodec<K> keyCodec,
+                        StashCodec<T> valueCodec,
+                        long maxMemory) {
+        this.expiryPolicy = expiryPolicy;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.maxMemory = maxMemory;
+        this.segments = new OffHeapSegment[SEGMENT_COUNT];
+        this.tagIndex = new MemoryTagIndex<>();
+
+        int slabsPerSegment = (int) Math.max(1, maxMemory / SEGMENT_COUNT / OffHeapSlabAllocator.SLAB_SIZE);
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new OffHeapSegment(slabsPerSegment, expiryPolicy.toMillis(), expiryPolicy.isAfterAccess(),
+                    key -> tagIndex.untag(keyCodec.decode(key)));
+        }
+    }
+
+    @Override
+    public T retrieve(K key) {
+        byte[] encoded = keyCodec.encode(key);
+        int hash = hash(encoded);
+        byte[] value = segment(hash).get(encoded, hash, System.currentTimeMillis());
+        if (value == null) {
+            return null;
+        }
+
+        return valueCodec.decode(value);
+    }
+
+    @Override
+    public T retrieveOrElse(K key, T orElse) {
+        T element = retrieve(key);
+        if (element == null) {
+            return orElse;
+        }
+
+        return element;
+    }
+
+    @Override
+    public T retrieveOrSet(K key, T newValue) {
+        T local = retrieve(key);
+        while (local == null) {
+            if (compareAndSet(key, null, newValue)) {
+                return newValue;
+            }
+
+            // Another element was stored since the read
+            local = retrieve(key);
+        }
+
+        return local;
+    }
+
+    @Override
+    public Map<K, T> retrieveAll() {
+        long now = System.currentTimeMillis();
+        Map<K, T> all = new HashMap<>();
+        for (OffHeapSegment segment : segments) {
+            segment.entries(now).forEach(entry -> all.put(
+                    keyCodec.decode(entry[0]),
+                    valueCodec.decode(entry[1])));
+        }
+
+        return all;
+    }
+
+    @Override
+    public T store(K key, T element) {
+        byte[] encoded = keyCodec.encode(key);
+        int hash = hash(encoded);
+        segment(hash).put(encoded, hash, valueCodec.encode(element), System.currentTimeMillis(), false);
+        tagIndex.untag(key);
+        return element;
+    }
+
+    @Override
+    public T store(K key, T element, String... tags) {
+        store(key, element);
+        tagIndex.tag(key, tags, this::contains);
+        return element;
+    }
+
+    @Override
+    public T update(K key, T element) throws NullPointerException {
+        byte[] encoded = keyCodec.encode(key);
+        int hash = hash(encoded);
+        if (!segment(hash).put(encoded, hash, valueCodec.encode(element), System.currentTimeMillis(), true)) {
+            throw new NullPointerException("No element for key \"" + key.toString() + "\"");
+        }
+
+        tagIndex.untag(key);
+        return element;
+    }
+
+    @Override
+    public boolean evict(K key) {
+        byte[] encoded = keyCodec.encode(key);
+        int hash = hash(encoded);
+        boolean evicted = segment(hash).remove(encoded, hash, null);
+        tagIndex.untag(key);
+        return evicted;
+    }
+
+    /**
+     * Evicts a cached item by it's key, and expected value.
+     *
+     * Elements are compared by their encoded form, rather than by reference.
+     *
+     * @param key the key to evict
+     * @param element the item that is expected to be there
+     * @return if the element was successfully evicted
+     */
+    @Override
+    public boolean evict(K key, T element) {
+        byte[] encoded = keyCodec.encode(key);
+        int hash = hash(encoded);
+        if (!segment(hash).remove(encoded, hash, valueCodec.encode(element))) {
+            return false;
+        }
+
+        tagIndex.untag(key);
+        return true;
+    }
+
+    /**
+     * Atomically replaces a cached element, only if it is
+     * currently equal to the expected element.
+     *
+     * Elements are compared by their encoded form.
+     *
+     * @param key the key of the element
+     * @param expected the element that is expected to be cached, or null if none is
+     * @param element the new element to cache under the key
+     * @return if the element was replaced
+     */
+    @Override
+    public boolean compareAndSet(K key, T expected, T element) {
+        byte[] encoded = keyCodec.encode(key);
+        int hash = hash(encoded);
+        if (!segment(hash).replace(encoded, hash,
+                expected == null ? null : valueCodec.encode(expected),
+                valueCodec.encode(element),
+                System.currentTimeMillis())) {
+            return false;
+        }
+
+        tagIndex.untag(key);
+        return true;
+    }
+
+    @Override
+    public boolean compareAndEvict(K key, T expected) {
+        return expected != null && evict(key, expected);
+    }
+
+    @Override
+    public void evictIf(BiPredicate<K, T> predicate) {
+        long now = System.currentTimeMillis();
+        for (OffHeapSegment segment : segments) {
+            segment.removeIf((key, value) -> predicate.test(
+                    keyCodec.decode(key),
+                    valueCodec.decode(value)), now);
+        }
+    }
+
+    @Override
+    public void evictKeysIf(Predicate<K> predicate) {
+        long now = System.currentTimeMillis();
+        for (OffHeapSegment segment : segments) {
+            segment.removeIf((key, value) -> predicate.test(keyCodec.decode(key)), now);
+        }
+    }
+
+    @Override
+    public long evictByTag(String tag) {
+        long evicted = 0;
+        for (K key : tagIndex.remove(tag)) {
+            if (evict(key)) {
+                evicted++;
+            }
+        }
+
+        return evicted;
+    }
+
+    @Override
+    public void evictAll() {
+        for (OffHeapSegment segment : segments) {
+            segment.clear();
+        }
+
+        tagIndex.clear();
+    }
+
+    @Override
+    public boolean contains(K key) {
+        byte[] encoded = keyCodec.encode(key);
+        int hash = hash(encoded);
+        return segment(hash).contains(encoded, hash, System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the amount of direct memory currently reserved by this stash.
+     * @return the reserved memory in bytes
+     */
+    public long getAllocatedMemory() {
+        long allocated = 0;
+        for (OffHeapSegment segment : segments) {
+            allocated += segment.allocatedBytes();
+        }
+
+        return allocated;
+    }
+
+    @Override
+    public void close() {
+        this.evictAll();
+    }
+
+    private OffHeapSegment segment(int hash) {
+        return segments[(hash >>> SEGMENT_SHIFT) & (SEGMENT_COUNT - 1)];
+    }
+
+    /**
+     * Hashes an encoded key, never returning zero, which marks empty index slots.
+     * @param key the encoded key
+     * @return the key hash
+     */
+    private static int hash(byte[] key) {
+        int hash = Arrays.hashCode(key) * 0x9E3779B9;
+        hash ^= hash >>> 16;
+        return hash == 0 ? 1 : hash;
+    }
+
+}
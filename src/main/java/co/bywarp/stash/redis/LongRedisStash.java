@@ -0,0 +1,366 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.redis;
+
+import co.bywarp.stash.LongStashProvider;
+import co.bywarp.stash.element.ElementExpiryPolicy;
+import co.bywarp.stash.redis.pool.RedisPool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.LongPredicate;
+
+import lombok.Getter;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * A Redis stash keyed by primitive longs.
+ *
+ * Keys are encoded straight into binary remote keys through a
+ * {@link RedisLongKeyspace}, and single-element commands use the
+ * binary Jedis API, so that no key strings are built per call.
+ *
+ * @param <T> the type of cached elements
+ */
+@Getter
+public class LongRedisStash<T> implements LongStashProvider<T> {
+
+    private static final int SCAN_BATCH_SIZE = 1000;
+
+    private static final RedisScript COMPARE_AND_SET = new RedisScript(""
+            + "if (redis.call('GET', KEYS[1]) or '') ~= ARGV[1] then\n"
+            + "  return 0\n"
+            + "end\n"
+            + "redis.call('SET', KEYS[1], ARGV[2], 'EX', ARGV[3])\n"
+            + "return 1");
+
+    private static final RedisScript COMPARE_AND_EVICT = new RedisScript(""
+            + "if redis.call('GET', KEYS[1]) ~= ARGV[1] then\n"
+            + "  return 0\n"
+            + "end\n"
+            + "return redis.call('DEL', KEYS[1])");
+
+    private ElementExpiryPolicy expiryPolicy;
+    private RedisConnection connection;
+    private RedisLongKeyspace keyspace;
+    private RedisTypeAdapter<String, T> resultSerializer;
+    private RedisTypeAdapter<T, String> typeSerializer;
+    private RedisPool<Long, T> pool;
+
+    public LongRedisStash(ElementExpiryPolicy expiryPolicy,
+                          RedisConnection connection,
+                          RedisLongKeyspace keyspace,
+                          RedisTypeAdapter<String, T> resultSerializer,
+                          RedisTypeAdapter<T, String> typeSerializer) {
+        this.expiryPolicy = expiryPolicy;
+        this.connection = connection;
+        this.keyspace = keyspace;
+        this.resultSerializer = resultSerializer;
+        this.typeSerializer = typeSerializer;
+        this.pool = new RedisPool<>(connection);
+    }
+
+    @Override
+    public T retrieve(long key) throws JedisException {
+        byte[] head = keyspace.construct(key);
+        byte[] result;
+        Jedis resource = pool.borrow();
+        try {
+            if (expiryPolicy.isAfterAccess()) {
+                // Refresh the expiry in the same round trip as the read
+                Pipeline pipeline = resource.pipelined();
+                Response<byte[]> response = pipeline.get(head);
+                pipeline.pexpire(head, expiryPolicy.toMillis());
+                pipeline.sync();
+                result = response.get();
+            } else {
+                result = resource.get(head);
+            }
+        } finally {
+            resource.close();
+        }
+
+        return adapt(result);
+    }
+
+    @Override
+    public T retrieveOrElse(long key, T orElse) throws JedisException {
+        T result = retrieve(key);
+        if (result == null) {
+            return orElse;
+        }
+
+        return result;
+    }
+
+    @Override
+    public T retrieveOrSet(long key, T newValue) throws JedisException {
+        T result = retrieve(key);
+        if (result == null) {
+            return store(key, newValue);
+        }
+
+        return result;
+    }
+
+    @Override
+    public Map<Long, T> retrieveAll() throws JedisException {
+        Map<Long, T> results = new HashMap<>();
+        Jedis resource = pool.borrow();
+        try {
+            scan(resource, page -> {
+                Pipeline pipeline = resource.pipelined();
+                List<Response<String>> responses = new ArrayList<>(page.size());
+                page.forEach(head -> responses.add(pipeline.get(head)));
+                pipeline.sync();
+
+                for (int i = 0; i < page.size(); i++) {
+                    String result = responses.get(i).get();
+                    if (result == null || result.isEmpty()) {
+                        continue;
+                    }
+
+                    results.put(keyspace.fromRemote(page.get(i)), resultSerializer.adapt(result));
+                }
+            });
+        } finally {
+            resource.close();
+        }
+
+        return results;
+    }
+
+    @Override
+    public T store(long key, T element) throws JedisException {
+        Jedis resource = pool.borrow();
+        try {
+            resource.setex(keyspace.construct(key),
+                    expiryPolicy.toSeconds(),
+                    SafeEncoder.encode(typeSerializer.adapt(element)));
+        } finally {
+            resource.close();
+        }
+
+        return element;
+    }
+
+    @Override
+    public T update(long key, T element) throws JedisException, NullPointerException {
+        byte[] head = keyspace.construct(key);
+        Jedis resource = pool.borrow();
+        try {
+            if (!resource.exists(head)) {
+                throw new NullPointerException("No element for key \"" + SafeEncoder.encode(head) + "\"");
+            }
+
+            resource.setex(head, expiryPolicy.toSeconds(), SafeEncoder.encode(typeSerializer.adapt(element)));
+        } finally {
+            resource.close();
+        }
+
+        return element;
+    }
+
+    @Override
+    public boolean evict(long key) throws JedisException {
+        Jedis resource = pool.borrow();
+        try {
+            return resource.del(keyspace.construct(key)) > 0;
+        } finally {
+            resource.close();
+        }
+    }
+
+    @Override
+    public boolean evict(long key, T element) throws JedisException {
+        byte[] head = keyspace.construct(key);
+        Jedis resource = pool.borrow();
+        try {
+            T remote = adapt(resource.get(head));
+            if (remote == null || !Objects.equals(remote, element)) {
+                return false;
+            }
+
+            resource.del(head);
+            return true;
+        } finally {
+            resource.close();
+        }
+    }
+
+    /**
+     * Atomically replaces a cached element, only if it is
+     * currently equal to the expected element.
+     *
+     * Elements are compared by their serialized form,
+     * inside of Redis, in a single round trip.
+     *
+     * @param key the key of the element
+     * @param expected the element that is expected to be cached, or null if none is
+     * @param element the new element to cache under the key
+     * @return if the element was replaced
+     */
+    @Override
+    public boolean compareAndSet(long key, T expected, T element) throws JedisException {
+        Jedis resource = pool.borrow();
+        try {
+            Object result = COMPARE_AND_SET.evalBinary(resource,
+                    Collections.singletonList(keyspace.construct(key)),
+                    Arrays.asList(
+                            SafeEncoder.encode(expected == null ? "" : typeSerializer.adapt(expected)),
+                            SafeEncoder.encode(typeSerializer.adapt(element)),
+                            SafeEncoder.encode(String.valueOf(expiryPolicy.toSeconds()))));
+
+            return (Long) result == 1;
+        } finally {
+            resource.close();
+        }
+    }
+
+    /**
+     * Atomically evicts a cached element, only if it is
+     * currently equal to the expected element.
+     *
+     * Elements are compared by their serialized form,
+     * inside of Redis, in a single round trip.
+     *
+     * @param key the key to evict
+     * @param expected the element that is expected to be cached
+     * @return if the element was evicted
+     */
+    @Override
+    public boolean compareAndEvict(long key, T expected) throws JedisException {
+        if (expected == null) {
+            return false;
+        }
+
+        Jedis resource = pool.borrow();
+        try {
+            Object result = COMPARE_AND_EVICT.evalBinary(resource,
+                    Collections.singletonList(keyspace.construct(key)),
+                    Collections.singletonList(SafeEncoder.encode(typeSerializer.adapt(expected))));
+
+            return (Long) result == 1;
+        } finally {
+            resource.close();
+        }
+    }
+
+    @Override
+    public void evictIf(BiPredicate<Long, T> predicate) throws JedisException {
+        Map<Long, T> all = retrieveAll();
+        if (all.isEmpty()) {
+            return;
+        }
+
+        Jedis resource = pool.borrow();
+        try {
+            Pipeline pipeline = resource.pipelined();
+            all.forEach((key, element) -> {
+                if (predicate.test(key, element)) {
+                    pipeline.del(keyspace.construct(key));
+                }
+            });
+
+            pipeline.sync();
+        } finally {
+            resource.close();
+        }
+    }
+
+    @Override
+    public void evictKeysIf(LongPredicate predicate) throws JedisException {
+        Jedis resource = pool.borrow();
+        try {
+            scan(resource, page -> {
+                Pipeline pipeline = resource.pipelined();
+                page.stream()
+                        .filter(head -> predicate.test(keyspace.fromRemote(head)))
+                        .forEach(pipeline::del);
+
+                pipeline.sync();
+            });
+        } finally {
+            resource.close();
+        }
+    }
+
+    @Override
+    public void evictAll() throws JedisException {
+        this.evictKeysIf(key -> true);
+    }
+
+    @Override
+    public boolean contains(long key) throws JedisException {
+        Jedis resource = pool.borrow();
+        try {
+            return resource.exists(keyspace.construct(key));
+        } finally {
+            resource.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        this.pool.close();
+    }
+
+    private T adapt(byte[] result) {
+        if (result == null || result.length == 0) {
+            return null;
+        }
+
+        return resultSerializer.adapt(SafeEncoder.encode(result));
+    }
+
+    /**
+     * Scans all keys of this stash's keyspace, one page at a time.
+     *
+     * @param resource the resource to scan with
+     * @param consumer the consumer of each non-empty page of remote keys
+     */
+    private void scan(Jedis resource, Consumer<List<String>> consumer) {
+        ScanParams params = new ScanParams()
+                .match(keyspace.selectAll())
+                .count(SCAN_BATCH_SIZE);
+
+        String cursor = ScanParams.SCAN_POINTER_START;
+        do {
+            ScanResult<String> page = resource.scan(cursor, params);
+            if (!page.getResult().isEmpty()) {
+                consumer.accept(page.getResult());
+            }
+
+            cursor = page.getStringCursor();
+        } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.redis;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import lombok.Getter;
+
+/**
+ * A client-side Bloom filter over the remote keys of a {@link RedisKeyspace},
+ * which answers lookups of keys that are certainly absent without a round trip.
+ *
+ * The filter learns of local writes immediately, and of writes made by other
+ * clients when it is rebuilt from a scan of the keyspace, once per rebuild
+ * interval. Until the first rebuild completes, every key is assumed present.
+ * Keys are never removed, so evicted keys may still be reported as present
+ * until the next rebuild. Only reads consult the filter, as a key it reports
+ * absent may still have been stored by another client.
+ */
+public class RedisBloomFilter {
+
+    private static final double LN2 = Math.log(2);
+
+    @Getter private int expectedKeys;
+    @Getter private double falsePositiveRate;
+    @Getter private long rebuildInterval;
+    @Getter private TimeUnit unit;
+
+    private int bitCount;
+    private int hashCount;
+
+    private volatile AtomicLongArray bits;
+    private volatile AtomicLongArray rebuilding;
+    private volatile boolean ready;
+
+    /**
+     * Creates a filter sized for the provided amount of keys.
+     *
+     * @param expectedKeys the expected amount of keys in the keyspace
+     * @param falsePositiveRate the rate at which absent keys may be reported as present
+     * @param rebuildInterval the delay between rebuilds
+     * @param unit the unit of the provided delay
+     */
+    public RedisBloomFilter(int expectedKeys, double falsePositiveRate, long rebuildInterval, TimeUnit unit) {
+        this.expectedKeys = expectedKeys;
+        this.falsePositiveRate = falsePositiveRate;
+        this.rebuildInterval = rebuildInterval;
+        this.unit = unit;
+
+        long bits = (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (LN2 * LN2));
+        this.bitCount = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, bits));
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedKeys * LN2));
+        this.bits = new AtomicLongArray((bitCount + 63) >>> 6);
+    }
+
+    /**
+     * Records a remote key as present.
+     *
+     * Keys must be recorded after they have been written, so that a
+     * rebuild which starts in between is certain to scan them.
+     *
+     * @param head the remote key
+     */
+    public void put(String head) {
+        long hash = hash(head);
+        AtomicLongArray current = bits;
+        set(current, hash);
+
+        AtomicLongArray next = rebuilding;
+        if (next != null) {
+            set(next, hash);
+        }
+
+        // A rebuild may have completed after the current filter was read
+        if (bits != current) {
+            set(bits, hash);
+        }
+    }
+
+    /**
+     * Returns whether or not a remote key may be present.
+     * @param head the remote key
+     * @return false if the key is certainly absent, otherwise true
+     */
+    public boolean mightContain(String head) {
+        if (!ready) {
+            return true;
+        }
+
+        AtomicLongArray current = bits;
+        long hash = hash(head);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = index(h1 + i * h2);
+            if ((current.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Starts a rebuild, after which keys are recorded in both
+     * the current filter and the one being rebuilt.
+     */
+    void beginRebuild() {
+        this.rebuilding = new AtomicLongArray(bits.length());
+    }
+
+    /**
+     * Replaces the current filter with the rebuilt one.
+     */
+    void completeRebuild() {
+        this.bits = rebuilding;
+        this.rebuilding = null;
+        this.ready = true;
+    }
+
+    void abortRebuild() {
+        this.rebuilding = null;
+    }
+
+    private void set(AtomicLongArray target, long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = index(h1 + i * h2);
+            int word = bit >>> 6;
+            long mask = 1L << bit;
+            long current;
+            do {
+                current = target.get(word);
+            } while ((current & mask) == 0 && !target.compareAndSet(word, current, current | mask));
+        }
+    }
+
+    private int index(int combined) {
+        return (combined & Integer.MAX_VALUE) % bitCount;
+    }
+
+    /**
+     * Hashes a remote key with 64-bit FNV-1a, followed by a finalizer which
+     * spreads it's bits, so that both halves can be used as independent hashes.
+     *
+     * @param head the remote key
+     * @return the key hash
+     */
+    private static long hash(String head) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < head.length(); i++) {
+            hash ^= head.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.redis;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * The configuration of full-keyspace reads of a {@link RedisStash}.
+ *
+ * The keyspace is split into as many partitions as the parallelism allows,
+ * each of which is read on a connection of its own, through pipelined MGETs
+ * of at most the batch size, and deserialized on the same thread. The first
+ * partition is read by the calling thread, and the rest on the executor.
+ */
+@Getter
+@AllArgsConstructor(staticName = "of")
+public class RedisBulkRead {
+
+    public static final RedisBulkRead DEFAULT = of(4, 500, ForkJoinPool.commonPool());
+
+    private int parallelism;
+    private int batchSize;
+    private Executor executor;
+
+}
@@ -17,12 +17,13 @@
 
 package co.bywarp.stash.redis;
 
-import lombok.AllArgsConstructor;
+import co.bywarp.stash.redis.pool.RedisCircuitBreaker;
+import co.bywarp.stash.redis.pool.RedisConcurrencyLimit;
+
 import lombok.Getter;
 import redis.clients.jedis.Protocol;
 
 @Getter
-@AllArgsConstructor(staticName = "configure")
 public class RedisConnection {
 
     public static final int DEFAULT_PORT = 6379;
@@ -42,6 +43,9 @@ public class RedisConnection {
     private long timeoutMillis;
     private boolean testOnBorrow;
     private boolean blockWhenExhausted;
+    private RedisConcurrencyLimit concurrencyLimit;
+    private RedisCircuitBreaker circuitBreaker;
+    private int prewarmConnections;
 
     public RedisConnection(String host, int port, boolean auth, String password) {
         this.host = host;
@@ -56,4 +60,63 @@ public class RedisConnection {
         this.blockWhenExhausted = true;
     }
 
+    public static RedisConnection configure(String host,
+                                            int port,
+                                            boolean auth,
+                                            String password,
+                                            String delimiter,
+                                            int poolSize,
+                                            int connectTimeout,
+                                            long resourceTimeout,
+                                            long timeoutMillis,
+                                            boolean testOnBorrow,
+                                            boolean blockWhenExhausted) {
+        RedisConnection connection = new RedisConnection(host, port, auth, password);
+        connection.delimiter = delimiter;
+        connection.poolSize = poolSize;
+        connection.connectTimeout = connectTimeout;
+        connection.resourceTimeout = resourceTimeout;
+        connection.timeoutMillis = timeoutMillis;
+        connection.testOnBorrow = testOnBorrow;
+        connection.blockWhenExhausted = blockWhenExhausted;
+        return connection;
+    }
+
+    /**
+     * Limits the amount of connections which may be borrowed from the pool at once,
+     * adapting the limit to the observed latency of Redis.
+     *
+     * @param concurrencyLimit the concurrency limit configuration
+     * @return this connection
+     */
+    public RedisConnection withConcurrencyLimit(RedisConcurrencyLimit concurrencyLimit) {
+        this.concurrencyLimit = concurrencyLimit;
+        return this;
+    }
+
+    /**
+     * Guards the pool with a circuit breaker, so that borrows fail immediately,
+     * rather than waiting out the connection timeout, while Redis is unreachable.
+     *
+     * @param circuitBreaker the circuit breaker configuration
+     * @return this connection
+     */
+    public RedisConnection withCircuitBreaker(RedisCircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+        return this;
+    }
+
+    /**
+     * Opens and validates the provided amount of connections in parallel when a stash
+     * is built, rather than one at a time as the first commands are sent, and keeps
+     * at least that many idle connections in the pool afterwards.
+     *
+     * @param prewarmConnections the amount of connections to open up front
+     * @return this connection
+     */
+    public RedisConnection withPrewarm(int prewarmConnections) {
+        this.prewarmConnections = Math.min(prewarmConnections, poolSize);
+        return this;
+    }
+
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.redis;
+
+import java.util.concurrent.TimeUnit;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * The configuration of hot key tracking in a {@link RedisStash}.
+ *
+ * Reads are sampled into a frequency sketch, which is halved once per window,
+ * so that frequencies reflect recent traffic. The most frequently read keys
+ * are reported through the stash's logger at the end of every window, and
+ * may be promoted into a short-lived in-process copy.
+ */
+@Getter
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class RedisHotKeyPolicy {
+
+    private int sampleRate;
+    private int topKeys;
+    private long windowMillis;
+    private long threshold;
+    private long promotionMillis;
+
+    /**
+     * Creates a policy which tracks, but never promotes, hot keys.
+     *
+     * @param sampleRate the rate at which reads are sampled, as one in this many reads
+     * @param topKeys the amount of hottest keys to keep track of
+     * @param window the period over which frequencies are counted
+     * @param unit the unit of the provided period
+     * @return the tracking policy
+     */
+    public static RedisHotKeyPolicy track(int sampleRate, int topKeys, long window, TimeUnit unit) {
+        return new RedisHotKeyPolicy(sampleRate, topKeys, unit.toMillis(window), Long.MAX_VALUE, 0);
+    }
+
+    /**
+     * Creates a copy of this policy which promotes keys into an in-process copy,
+     * once their estimated reads per window reach the provided threshold.
+     *
+     * @param threshold the estimated amount of reads per window at which a key is hot
+     * @param ttl the amount of time promoted copies live for
+     * @param unit the unit of the provided time
+     * @return the promoting policy
+     */
+    public RedisHotKeyPolicy promoteAbove(long threshold, long ttl, TimeUnit unit) {
+        return new RedisHotKeyPolicy(sampleRate, topKeys, windowMillis, threshold, unit.toMillis(ttl));
+    }
+
+    public boolean isPromoting() {
+        return promotionMillis > 0;
+    }
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.redis;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Estimates the read frequency of remote keys with a Count-Min sketch,
+ * and keeps the most frequently read keys in a small top list.
+ *
+ * Sampled reads are counted in every row of the sketch, and a key's
+ * frequency is estimated as the smallest of it's counters, scaled by
+ * the sampling rate. Aging halves every counter, so that keys which
+ * are no longer read cool down.
+ */
+class RedisHotKeyTracker {
+
+    private static final int DEPTH = 4;
+    private static final int MIN_WIDTH = 1 << 13;
+    private static final int WIDTH_PER_KEY = 256;
+
+    private final RedisHotKeyPolicy policy;
+    private final AtomicIntegerArray counters;
+    private final int mask;
+    private final Map<String, Long> top;
+    private volatile long floor;
+
+    RedisHotKeyTracker(RedisHotKeyPolicy policy) {
+        this.policy = policy;
+
+        int width = Integer.highestOneBit(Math.max(MIN_WIDTH, policy.getTopKeys() * WIDTH_PER_KEY) - 1) << 1;
+        this.counters = new AtomicIntegerArray(width * DEPTH);
+        this.mask = width - 1;
+        this.top = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Records a read of a remote key, if it is sampled.
+     * @param head the remote key
+     * @return if the key has reached the policy's threshold
+     */
+    boolean record(String head) {
+        int sampleRate = policy.getSampleRate();
+        if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return isHot(head);
+        }
+
+        int hash = spread(head.hashCode());
+        int step = spread(hash) | 1;
+        int minimum = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            minimum = Math.min(minimum, counters.incrementAndGet(index(row, hash, step)));
+        }
+
+        long estimate = (long) minimum * Math.max(1, sampleRate);
+        offer(head, estimate);
+        return estimate >= policy.getThreshold();
+    }
+
+    /**
+     * Returns the estimated reads per window of a remote key.
+     * @param head the remote key
+     * @return the estimated frequency
+     */
+    long estimate(String head) {
+        int hash = spread(head.hashCode());
+        int step = spread(hash) | 1;
+        int minimum = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            minimum = Math.min(minimum, counters.get(index(row, hash, step)));
+        }
+
+        return (long) minimum * Math.max(1, policy.getSampleRate());
+    }
+
+    /**
+     * Returns the hottest keys, from hottest to coolest.
+     * @return the remote keys and their estimated frequencies
+     */
+    Map<String, Long> hottest() {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(top.entrySet());
+
+        entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        Map<String, Long> hottest = new LinkedHashMap<>();
+        entries.forEach(entry -> hottest.put(entry.getKey(), entry.getValue()));
+        return hottest;
+    }
+
+    /**
+     * Halves every frequency, and drops keys which have cooled down entirely from the top list.
+     */
+    void age() {
+        for (int i = 0; i < counters.length(); i++) {
+            int current;
+            do {
+                current = counters.get(i);
+            } while (current != 0 && !counters.compareAndSet(i, current, current >>> 1));
+        }
+
+        synchronized (top) {
+            top.replaceAll((head, frequency) -> frequency >>> 1);
+            top.values().removeIf(frequency -> frequency == 0);
+            this.floor = floor >>> 1;
+        }
+    }
+
+    private boolean isHot(String head) {
+        return policy.isPromoting() && estimate(head) >= policy.getThreshold();
+    }
+
+    /**
+     * Offers a key to the top list, replacing the coolest key if the list is full.
+     * @param head the remote key
+     * @param estimate the key's estimated frequency
+     */
+    private void offer(String head, long estimate) {
+        // Most sampled keys are too cool for a full list, and are turned away without locking
+        if (estimate <= floor && top.size() >= policy.getTopKeys() && !top.containsKey(head)) {
+            return;
+        }
+
+        synchronized (top) {
+            if (top.containsKey(head) || top.size() < policy.getTopKeys()) {
+                top.put(head, estimate);
+                return;
+            }
+
+            String coolest = null;
+            long coolestFrequency = Long.MAX_VALUE;
+            for (Map.Entry<String, Long> entry : top.entrySet()) {
+                if (entry.getValue() < coolestFrequency) {
+                    coolest = entry.getKey();
+                    coolestFrequency = entry.getValue();
+                }
+            }
+
+            if (coolestFrequency < estimate) {
+                top.remove(coolest);
+                top.put(head, estimate);
+            } else {
+                this.floor = coolestFrequency;
+            }
+        }
+    }
+
+    private int index(int row, int hash, int step) {
+        // Rows are indexed by double hashing, so that keys which collide in one row rarely collide in the others
+        return row * (mask + 1) + ((hash + row * step) & mask);
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.redis;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * A key filter which is evaluated inside of Redis, so that
+ * neither keys nor values have to be transferred to the client.
+ *
+ * The pattern is a glob relative to the keyspace prefix, and the
+ * condition is one of a fixed set of scripts, whose parameter is
+ * passed as a script argument. Ad-hoc filters therefore reuse the
+ * scripts already loaded into Redis, rather than each loading their own.
+ */
+@Getter
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class RedisKeyFilter {
+
+    private static final String SCAN_SCRIPT = ""
+            + "redis.replicate_commands()\n"
+            + "local function matches(key, argument)\n"
+            + "    %s\n"
+            + "end\n"
+            + "local page = redis.call('SCAN', ARGV[1], 'MATCH', ARGV[2], 'COUNT', ARGV[3])\n"
+            + "local removed = 0\n"
+            + "for _, key in ipairs(page[2]) do\n"
+            + "    if matches(key, ARGV[4]) then\n"
+            + "        redis.call('UNLINK', key)\n"
+            + "        removed = removed + 1\n"
+            + "    end\n"
+            + "end\n"
+            + "return {page[1], removed}";
+
+    private static final RedisScript ALL = scan("return true");
+    private static final RedisScript KEY_MATCHES = scan("return string.find(key, argument) ~= nil");
+    private static final RedisScript VALUE_EQUALS = scan("return redis.pcall('GET', key) == argument");
+    private static final RedisScript IDLE_LONGER_THAN = scan(
+            "return redis.call('OBJECT', 'IDLETIME', key) > tonumber(argument)");
+    private static final RedisScript EXPIRES_WITHIN = scan(
+            "local ttl = redis.call('PTTL', key) return ttl >= 0 and ttl <= tonumber(argument)");
+
+    private String pattern;
+    private RedisScript script;
+    private String argument;
+
+    /**
+     * Creates a filter which matches every key matching the provided glob pattern.
+     * @param pattern the glob pattern, relative to the keyspace prefix
+     * @return the key filter
+     */
+    public static RedisKeyFilter pattern(String pattern) {
+        return new RedisKeyFilter(pattern, ALL, "");
+    }
+
+    /**
+     * Creates a filter which matches every key containing a match of the provided Lua pattern.
+     * @param pattern the Lua pattern, tested against the remote key
+     * @return the key filter
+     */
+    public static RedisKeyFilter keyMatches(String pattern) {
+        return new RedisKeyFilter("*", KEY_MATCHES, pattern);
+    }
+
+    /**
+     * Creates a filter which matches every key holding the provided value.
+     * @param serialized the value, as it is serialized in Redis
+     * @return the key filter
+     */
+    public static RedisKeyFilter valueEquals(String serialized) {
+        return new RedisKeyFilter("*", VALUE_EQUALS, serialized);
+    }
+
+    /**
+     * Creates a filter which matches every key that has not been accessed for longer than the provided time.
+     * Redis does not track idle times under an LFU eviction policy, so the filter fails there.
+     *
+     * @param time the idle time
+     * @param unit the unit of the idle time
+     * @return the key filter
+     */
+    public static RedisKeyFilter idleLongerThan(long time, TimeUnit unit) {
+        return new RedisKeyFilter("*", IDLE_LONGER_THAN, String.valueOf(unit.toSeconds(time)));
+    }
+
+    /**
+     * Creates a filter which matches every key that expires within the provided time.
+     *
+     * @param time the remaining time to live
+     * @param unit the unit of the remaining time to live
+     * @return the key filter
+     */
+    public static RedisKeyFilter expiresWithin(long time, TimeUnit unit) {
+        return new RedisKeyFilter("*", EXPIRES_WITHIN, String.valueOf(unit.toMillis(time)));
+    }
+
+    /**
+     * Narrows this filter down to the keys matching the provided glob pattern.
+     * @param pattern the glob pattern, relative to the keyspace prefix
+     * @return the narrowed key filter
+     */
+    public RedisKeyFilter matching(String pattern) {
+        return new RedisKeyFilter(pattern, script, argument);
+    }
+
+    /**
+     * Returns the arguments of the page eviction script, which scans a single
+     * page of keys, and unlinks all of the keys on that page matching this filter.
+     *
+     * @param cursor the scan cursor
+     * @param selector the remote glob selector to scan
+     * @param batchSize the amount of keys to scan
+     * @return the script arguments
+     */
+    public List<String> toArguments(String cursor, String selector, int batchSize) {
+        return Arrays.asList(cursor, selector, String.valueOf(batchSize), argument);
+    }
+
+    private static RedisScript scan(String condition) {
+        return new RedisScript(String.format(SCAN_SCRIPT, condition));
+    }
+
+}
@@ -17,6 +17,7 @@
 
 package co.bywarp.stash.redis;
 
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
 import lombok.Getter;
@@ -30,12 +31,56 @@ public class RedisKeyspace<K> {
     private Function<K, String> deserializer;
     private Function<String, K> serializer;
 
+    private boolean generational;
+    private volatile long generation;
+
+    private RedisBloomFilter bloomFilter;
+
     public RedisKeyspace(String prefix, RedisConnection connection, Function<K, String> deserializer, Function<String, K> serializer) {
+        this(prefix, connection, deserializer, serializer, false);
+    }
+
+    /**
+     * Creates a keyspace which may be generational.
+     *
+     * The keys of a generational keyspace contain the current generation,
+     * so that every element can be evicted at once by advancing it.
+     *
+     * @param prefix the keyspace prefix
+     * @param connection the connection data
+     * @param deserializer converts keys to their remote form
+     * @param serializer converts remote keys to key objects
+     * @param generational if keys should be versioned by generation
+     */
+    public RedisKeyspace(String prefix,
+                         RedisConnection connection,
+                         Function<K, String> deserializer,
+                         Function<String, K> serializer,
+                         boolean generational) {
         this.prefix = prefix;
         this.delimiter = connection.getDelimiter();
         this.connection = connection;
         this.deserializer = deserializer;
         this.serializer = serializer;
+        this.generational = generational;
+    }
+
+    /**
+     * Attaches a client-side Bloom filter to this keyspace, which lets a
+     * {@link RedisStash} answer lookups of absent keys without a round trip.
+     *
+     * @param expectedKeys the expected amount of keys in this keyspace
+     * @param falsePositiveRate the rate at which absent keys may be looked up remotely anyway
+     * @param rebuildInterval the delay between rebuilds of the filter from a scan of this keyspace
+     * @param unit the unit of the provided delay
+     * @return this keyspace
+     */
+    public RedisKeyspace<K> withBloomFilter(int expectedKeys,
+                                            double falsePositiveRate,
+                                            long rebuildInterval,
+                                            TimeUnit unit) {
+        this.bloomFilter = new RedisBloomFilter(expectedKeys, falsePositiveRate, rebuildInterval, unit);
+        return this;
     }
 
     /**
@@ -44,7 +89,7 @@ public class RedisKeyspace<K> {
      * @return the keyspace path
      */
     public String construct(K key) {
-        return prefix + connection.getDelimiter() + deserializer.apply(key);
+        return head() + deserializer.apply(key);
     }
 
     /**
@@ -53,9 +98,22 @@ public class RedisKeyspace<K> {
      * @return the object key
      */
     public K fromRemote(String head) {
-        return serializer
-                .apply(head
-                .split(prefix + connection.getDelimiter())[1]);
+        String remote = head.substring(prefix.length() + connection.getDelimiter().length());
+        if (generational) {
+            remote = remote.substring(remote.indexOf(connection.getDelimiter())
+                    + connection.getDelimiter().length());
+        }
+
+        return serializer.apply(remote);
+    }
+
+    /**
+     * Returns whether or not a remote key is an element key of the current generation of this keyspace.
+     * @param head the remote key
+     * @return true if the key belongs to this keyspace
+     */
+    public boolean owns(String head) {
+        return head.startsWith(head());
     }
 
     /**
@@ -63,7 +121,194 @@ public class RedisKeyspace<K> {
      * @return the wildcard selector string
      */
     public String selectAll() {
-        return prefix + connection.getDelimiter() + "*";
+        return select("*");
+    }
+
+    /**
+     * Creates a string for use in {@link redis.clients.jedis.Jedis#scan(String, redis.clients.jedis.ScanParams)}
+     * to select all keys in this keyspace matching the provided glob pattern.
+     *
+     * @param pattern the glob pattern, relative to this keyspace
+     * @return the selector string
+     */
+    public String select(String pattern) {
+        return head() + pattern;
+    }
+
+    /**
+     * Creates a string which selects all keys of a specific generation in this keyspace.
+     * @param generation the generation to select
+     * @return the wildcard selector string
+     */
+    public String selectGeneration(long generation) {
+        return head(generation) + "*";
+    }
+
+    /**
+     * Returns the remote key which holds the current generation of this keyspace.
+     *
+     * It is also the name of the channel that generation changes are published on.
+     *
+     * @return the generation key
+     */
+    public String generationKey() {
+        return prefix + connection.getDelimiter() + "generation";
+    }
+
+    /**
+     * Returns the remote key of the set which holds all keys stored under the provided tag.
+     *
+     * Tag keys live outside of this keyspace's selector, so that they are never
+     * mistaken for elements, and belong to the current generation if generational.
+     *
+     * @param tag the tag
+     * @return the tag key
+     */
+    public String tagKey(String tag) {
+        String head = prefix + "#tags" + connection.getDelimiter();
+        if (generational) {
+            head += generation + connection.getDelimiter();
+        }
+
+        return head + tag;
+    }
+
+    /**
+     * Returns the remote key of the set which holds the tags of the element stored under the provided remote key.
+     *
+     * An element only counts as a member of a tag while this set holds the tag, as tag
+     * sets are never pruned when their members are written again, or removed.
+     *
+     * @param head the remote key of the element
+     * @return the member tags key
+     */
+    public String memberTagsKey(String head) {
+        return prefix + "#tagged" + connection.getDelimiter() + head.substring(prefix.length() + connection.getDelimiter().length());
+    }
+
+    /**
+     * Returns the remote key which holds the counter stored under the provided key.
+     *
+     * Like tag keys, counter keys live outside of this keyspace's selector,
+     * and belong to the current generation if generational.
+     *
+     * @param key the key
+     * @return the counter key
+     */
+    public String counterKey(K key) {
+        return counterHead("#counters") + deserializer.apply(key);
+    }
+
+    /**
+     * Returns the remote key which holds the counter group stored under the provided key.
+     *
+     * Counter groups are hashes, so they are kept apart from plain counters,
+     * which would otherwise share a key of a different type.
+     *
+     * @param key the key
+     * @return the counter group key
+     */
+    public String counterGroupKey(K key) {
+        return counterHead("#groups") + deserializer.apply(key);
+    }
+
+    /**
+     * Returns the remote key of the stream which replicates changes to this keyspace between nodes.
+     *
+     * It is also the name of the channel that new changes are announced on.
+     *
+     * @return the stream key
+     */
+    public String streamKey() {
+        return prefix + "#stream";
+    }
+
+    /**
+     * Returns the remote key which holds the latest snapshot of a replicated keyspace.
+     * @return the snapshot key
+     */
+    public String snapshotKey() {
+        return prefix + "#snapshot";
+    }
+
+    /**
+     * Returns the remote key of the lease held by the node which is loading the element of the provided key.
+     *
+     * It is also the name of the channel that the release of the lease is announced on.
+     *
+     * @param key the key
+     * @return the lease key
+     */
+    public String leaseKey(K key) {
+        String head = prefix + "#leases" + connection.getDelimiter();
+        if (generational) {
+            head += generation + connection.getDelimiter();
+        }
+
+        return head + deserializer.apply(key);
+    }
+
+    /**
+     * Creates a pattern which matches the lease keys, and release channels, of this keyspace.
+     * @return the wildcard selector string
+     */
+    public String selectLeases() {
+        return prefix + "#leases" + connection.getDelimiter() + "*";
+    }
+
+    /**
+     * Creates a string which selects all counter keys of the current generation of this keyspace.
+     * @return the wildcard selector string
+     */
+    public String selectCounters() {
+        return counterHead("#counters") + "*";
+    }
+
+    /**
+     * Creates a string which selects all counter group keys of the current generation of this keyspace.
+     * @return the wildcard selector string
+     */
+    public String selectCounterGroups() {
+        return counterHead("#groups") + "*";
+    }
+
+    /**
+     * Advances the locally cached generation of this keyspace.
+     *
+     * Generations only ever move forward, so stale or
+     * reordered notifications are ignored.
+     *
+     * @param generation the observed generation
+     * @return if the cached generation changed
+     */
+    public synchronized boolean advanceGeneration(long generation) {
+        if (generation <= this.generation) {
+            return false;
+        }
+
+        this.generation = generation;
+        return true;
+    }
+
+    private String counterHead(String kind) {
+        String head = prefix + kind + connection.getDelimiter();
+        if (generational) {
+            head += generation + connection.getDelimiter();
+        }
+
+        return head;
+    }
+
+    private String head() {
+        if (generational) {
+            return head(generation);
+        }
+
+        return prefix + connection.getDelimiter();
+    }
+
+    private String head(long generation) {
+        return prefix + connection.getDelimiter() + generation + connection.getDelimiter();
     }
 
 }
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.redis;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import redis.clients.util.SafeEncoder;
+
+/**
+ * An unmodifiable map of elements read in bulk, which holds their raw bytes,
+ * and only deserializes an element once it is accessed.
+ *
+ * If memoized, every element is deserialized at most once, and kept for later
+ * accesses. Otherwise, elements are deserialized again on every access, and
+ * the garbage of elements which were only looked at once can be collected.
+ */
+public class RedisLazyMap<K, T> extends AbstractMap<K, T> {
+
+    private final Map<K, byte[]> raw;
+    private final RedisTypeAdapter<String, T> resultSerializer;
+    private final ConcurrentHashMap<K, T> decoded;
+
+    RedisLazyMap(Map<K, byte[]> raw, RedisTypeAdapter<String, T> resultSerializer, boolean memoize) {
+        this.raw = raw;
+        this.resultSerializer = resultSerializer;
+        this.decoded = memoize ? new ConcurrentHashMap<>() : null;
+    }
+
+    @Override
+    public T get(Object key) {
+        if (decoded != null) {
+            T element = decoded.get(key);
+            if (element != null) {
+                return element;
+            }
+        }
+
+        byte[] bytes = raw.get(key);
+        if (bytes == null) {
+            return null;
+        }
+
+        T element = resultSerializer.adapt(SafeEncoder.encode(bytes));
+        if (decoded != null && element != null) {
+            // Concurrent first accesses may both deserialize, but agree on the element that is kept
+            T previous = decoded.putIfAbsent(cast(key), element);
+            if (previous != null) {
+                return previous;
+            }
+        }
+
+        return element;
+    }
+
+    /**
+     * Returns the serialized form of an element, without deserializing it.
+     * @param key the key of the element
+     * @return the raw bytes of the element, or null if it does not exist
+     */
+    public byte[] getRaw(K key) {
+        return raw.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return raw.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return raw.size();
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return Collections.unmodifiableSet(raw.keySet());
+    }
+
+    @Override
+    public Set<Entry<K, T>> entrySet() {
+        return new AbstractSet<Entry<K, T>>() {
+            @Override
+            public Iterator<Entry<K, T>> iterator() {
+                Iterator<K> keys = raw.keySet().iterator();
+                return new Iterator<Entry<K, T>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return keys.hasNext();
+                    }
+
+                    @Override
+                    public Entry<K, T> next() {
+                        return new LazyEntry(keys.next());
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return raw.size();
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private K cast(Object key) {
+        return (K) key;
+    }
+
+    /**
+     * An entry which deserializes it's element when it's value is first asked for.
+     */
+    private class LazyEntry implements Entry<K, T> {
+
+        private final K key;
+
+        private LazyEntry(K key) {
+            this.key = key;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public T getValue() {
+            return get(key);
+        }
+
+        @Override
+        public T setValue(T value) {
+            throw new UnsupportedOperationException("Lazily retrieved elements are read-only");
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Entry)) {
+                return false;
+            }
+
+            Entry<?, ?> entry = (Entry<?, ?>) other;
+            return key.equals(entry.getKey()) && Objects.equals(getValue(), entry.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ Objects.hashCode(getValue());
+        }
+
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.redis;
+
+import java.nio.charset.StandardCharsets;
+
+import lombok.Getter;
+
+/**
+ * A keyspace for primitive long keys, which encodes keys directly
+ * into their binary remote form.
+ *
+ * Remote keys are identical to those of a {@link RedisKeyspace} which
+ * maps keys through {@link Long#toString(long)}, but are built without
+ * any intermediate strings or string concatenation.
+ */
+@Getter
+public class RedisLongKeyspace {
+
+    private String prefix;
+    private String delimiter;
+    private RedisConnection connection;
+    private byte[] head;
+
+    public RedisLongKeyspace(String prefix, RedisConnection connection) {
+        this.prefix = prefix;
+        this.delimiter = connection.getDelimiter();
+        this.connection = connection;
+        this.head = (prefix + delimiter).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates a binary keyspace path for the provided key.
+     * @param key the key
+     * @return the keyspace path
+     */
+    public byte[] construct(long key) {
+        // Digits are produced from a non-positive value, so that Long.MIN_VALUE cannot overflow
+        long remaining = key < 0 ? key : -key;
+        int digits = 0;
+        for (long probe = remaining; probe != 0 || digits == 0; probe /= 10) {
+            digits++;
+        }
+
+        int length = head.length + digits + (key < 0 ? 1 : 0);
+        byte[] path = new byte[length];
+        System.arraycopy(head, 0, path, 0, head.length);
+
+        int position = length;
+        do {
+            path[--position] = (byte) ('0' - (remaining % 10));
+            remaining /= 10;
+        } while (remaining != 0);
+
+        if (key < 0) {
+            path[--position] = '-';
+        }
+
+        return path;
+    }
+
+    /**
+     * Parses the key of a remote Redis key in this keyspace.
+     * @param remote the remote key
+     * @throws NumberFormatException thrown if the remote key does not end in a number
+     * @return the key
+     */
+    public long fromRemote(String remote) throws NumberFormatException {
+        return Long.parseLong(remote.substring(prefix.length() + delimiter.length()));
+    }
+
+    /**
+     * Creates a string for use in {@link redis.clients.jedis.Jedis#scan(String, redis.clients.jedis.ScanParams)}
+     * to select all keys in this keyspace.
+     *
+     * @return the wildcard selector string
+     */
+    public String selectAll() {
+        return prefix + delimiter + "*";
+    }
+
+}
@@ -0,0 +1,539 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.redis;
+
+import co.bywarp.lightkit.util.logger.Logger;
+import co.bywarp.stash.StashProvider;
+import co.bywarp.stash.codec.StashCodec;
+import co.bywarp.stash.element.ElementExpiryPolicy;
+import co.bywarp.stash.memory.MemoryStash;
+import co.bywarp.stash.redis.pool.RedisPool;
+import co.bywarp.stash.redis.pool.RedisSubscription;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import lombok.Getter;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * A {@link MemoryStash} which holds a full copy of a keyspace on every node,
+ * and replicates changes between nodes through a Redis Stream.
+ *
+ * Reads never leave the process. Writes are applied locally at once, and are
+ * appended to the keyspace's stream in batches of their binary form. Every node
+ * tails the stream from its own offset, woken up by an announcement of each
+ * batch, and applies all changes in stream order, including its own, so
+ * that all nodes converge on the same state.
+ *
+ * Atomic operations are only atomic on the node they are called on, and
+ * are replicated as plain writes. Tags are replicated along with writes,
+ * and snapshots keep the tags and expiration time of every element.
+ */
+@Getter
+public class RedisReplicatedStash<K, T> implements StashProvider<K, T> {
+
+    private static final int READ_BATCH_SIZE = 256;
+    private static final int MAX_BATCH_CHANGES = 1024;
+    private static final long CATCH_UP_SECONDS = 5;
+
+    private static final RedisScript APPEND = new RedisScript(""
+            + "redis.replicate_commands()\n"
+            + "local id = redis.call('XADD', KEYS[1], 'MAXLEN', '~', ARGV[1], '*', 'b', ARGV[2])\n"
+            + "redis.call('PUBLISH', KEYS[1], id)\n"
+            + "return id");
+
+    private static final RedisScript READ = new RedisScript(""
+            + "local first = redis.call('XRANGE', KEYS[1], '-', '+', 'COUNT', 1)\n"
+            + "local entries = redis.call('XRANGE', KEYS[1], ARGV[1], '+', 'COUNT', ARGV[2])\n"
+            + "return {first[1] and first[1][1] or false, entries}");
+
+    private Logger logger;
+    private ElementExpiryPolicy expiryPolicy;
+    private RedisKeyspace<K> keyspace;
+    private StashCodec<K> keyCodec;
+    private StashCodec<T> valueCodec;
+    private RedisReplication replication;
+    private RedisPool<K, T> pool;
+    private MemoryStash<K, T> local;
+    private String node;
+
+    private Queue<RedisReplicationBatch.Change> outbox;
+    private List<RedisReplicationBatch.Change> unsent;
+    private AtomicBoolean flushing;
+
+    private volatile String offset;
+    private AtomicBoolean catchingUp;
+    private AtomicBoolean catchUpRequested;
+
+    private RedisSubscription listener;
+    private ScheduledFuture<?> catchUpTask;
+    private ScheduledFuture<?> snapshotTask;
+
+    public RedisReplicatedStash(ElementExpiryPolicy expiryPolicy,
+                                RedisConnection connection,
+                                RedisKeyspace<K> keyspace,
+                                StashCodec<K> keyCodec,
+                                StashCodec<T> valueCodec,
+                                RedisReplication replication) {
+        this.logger = new Logger("Replicated Stash " + keyspace.getPrefix());
+        this.expiryPolicy = expiryPolicy;
+        this.keyspace = keyspace;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.replication = replication;
+        this.pool = new RedisPool<>(connection);
+        this.local = new MemoryStash<>(expiryPolicy);
+        this.node = UUID.randomUUID().toString();
+        this.outbox = new ConcurrentLinkedQueue<>();
+        this.unsent = new ArrayList<>();
+        this.flushing = new AtomicBoolean();
+        this.catchingUp = new AtomicBoolean();
+        this.catchUpRequested = new AtomicBoolean();
+
+        this.bootstrap();
+        this.listener = new RedisSubscription(pool, keyspace.getPrefix() + " Replication", new JedisPubSub() {
+            @Override
+            public void onSubscribe(String channel, int subscribedChannels) {
+                // Catch up on any changes missed while unsubscribed
+                requestCatchUp();
+            }
+
+            @Override
+            public void onMessage(String channel, String message) {
+                requestCatchUp();
+            }
+        }, false, keyspace.streamKey()).start();
+
+        this.catchUpTask = pool.schedule(() -> {
+            flushChanges();
+            requestCatchUp();
+        }, CATCH_UP_SECONDS, TimeUnit.SECONDS);
+        this.snapshotTask = pool.schedule(this::saveSnapshot, replication.getSnapshotInterval(), replication.getUnit());
+    }
+
+    @Override
+    public T retrieve(K key) {
+        return local.retrieve(key);
+    }
+
+    @Override
+    public T retrieveOrElse(K key, T orElse) {
+        return local.retrieveOrElse(key, orElse);
+    }
+
+    @Override
+    public T retrieveOrSet(K key, T newValue) {
+        T element = local.retrieve(key);
+        if (element == null) {
+            return store(key, newValue);
+        }
+
+        return element;
+    }
+
+    @Override
+    public Map<K, T> retrieveAll() {
+        return local.retrieveAll();
+    }
+
+    @Override
+    public T store(K key, T element) {
+        local.store(key, element);
+        append(RedisReplicationBatch.Change.store(keyCodec.encode(key), valueCodec.encode(element)));
+        return element;
+    }
+
+    @Override
+    public T store(K key, T element, String... tags) {
+        local.store(key, element, tags);
+        append(RedisReplicationBatch.Change.store(keyCodec.encode(key), valueCodec.encode(element), tags));
+        return element;
+    }
+
+    @Override
+    public T update(K key, T element) throws NullPointerException {
+        if (!local.contains(key)) {
+            throw new NullPointerException("No element for key \"" + key.toString() + "\"");
+        }
+
+        return store(key, element);
+    }
+
+    @Override
+    public boolean evict(K key) {
+        boolean evicted = local.evict(key);
+        append(RedisReplicationBatch.Change.evict(keyCodec.encode(key)));
+        return evicted;
+    }
+
+    @Override
+    public boolean evict(K key, T element) {
+        return compareAndEvict(key, element);
+    }
+
+    @Override
+    public boolean compareAndSet(K key, T expected, T element) {
+        if (!local.compareAndSet(key, expected, element)) {
+            return false;
+        }
+
+        append(RedisReplicationBatch.Change.store(keyCodec.encode(key), valueCodec.encode(element)));
+        return true;
+    }
+
+    @Override
+    public boolean compareAndEvict(K key, T expected) {
+        if (!local.compareAndEvict(key, expected)) {
+            return false;
+        }
+
+        append(RedisReplicationBatch.Change.evict(keyCodec.encode(key)));
+        return true;
+    }
+
+    @Override
+    public void evictIf(BiPredicate<K, T> predicate) {
+        local.retrieveAll().forEach((key, element) -> {
+            if (predicate.test(key, element)) {
+                evict(key);
+            }
+        });
+    }
+
+    @Override
+    public void evictKeysIf(Predicate<K> predicate) {
+        List<K> evict = local.retrieveAll()
+                .keySet()
+                .stream()
+                .filter(predicate)
+                .collect(Collectors.toList());
+
+        evict.forEach(this::evict);
+    }
+
+    @Override
+    public long evictByTag(String tag) {
+        long evicted = local.evictByTag(tag);
+        append(RedisReplicationBatch.Change.evictTag(tag));
+        return evicted;
+    }
+
+    @Override
+    public void evictAll() {
+        local.evictAll();
+        append(RedisReplicationBatch.Change.evictAll());
+    }
+
+    @Override
+    public boolean contains(K key) {
+        return local.contains(key);
+    }
+
+    @Override
+    public void close() {
+        this.catchUpTask.cancel(false);
+        this.snapshotTask.cancel(false);
+        this.listener.close();
+        this.flushChanges();
+        this.local.close();
+        this.pool.close();
+    }
+
+    /**
+     * Queues a local change to be appended to the stream, and starts
+     * a flush of the queue unless one is already running.
+     *
+     * @param change the change
+     */
+    private void append(RedisReplicationBatch.Change change) {
+        outbox.add(change);
+        if (flushing.compareAndSet(false, true)) {
+            pool.execute(this::flushChanges);
+        }
+    }
+
+    /**
+     * Appends all queued changes to the stream, in batches, until none are left.
+     *
+     * Changes queued while a batch is being appended are sent in the next
+     * batch, so that batches grow with the rate of writes. A batch which
+     * could not be appended is kept, and retried ahead of any later changes.
+     */
+    private synchronized void flushChanges() {
+        do {
+            try {
+                while (true) {
+                    if (unsent.isEmpty()) {
+                        RedisReplicationBatch.Change change;
+                        while (unsent.size() < MAX_BATCH_CHANGES && (change = outbox.poll()) != null) {
+                            unsent.add(change);
+                        }
+                    }
+
+                    if (unsent.isEmpty()) {
+                        break;
+                    }
+
+                    Jedis resource = pool.borrow();
+                    try {
+                        APPEND.evalBinary(resource,
+                                Collections.singletonList(SafeEncoder.encode(keyspace.streamKey())),
+                                Arrays.asList(
+                                        SafeEncoder.encode(String.valueOf(replication.getMaxLength())),
+                                        RedisReplicationBatch.encode(unsent)));
+                    } finally {
+                        resource.close();
+                    }
+
+                    unsent.clear();
+                }
+            } catch (JedisException e) {
+                logger.except(e, "Failed to append " + unsent.size() + " changes, retrying later");
+                flushing.set(false);
+                return;
+            }
+
+            // Changes queued after draining, but before the flag is cleared, are picked up by the loop condition
+            flushing.set(false);
+        } while (!outbox.isEmpty() && flushing.compareAndSet(false, true));
+    }
+
+    private void requestCatchUp() {
+        catchUpRequested.set(true);
+        if (catchingUp.compareAndSet(false, true)) {
+            pool.execute(this::catchUp);
+        }
+    }
+
+    /**
+     * Applies all changes appended to the stream since this node's offset,
+     * until no further catch up has been requested.
+     */
+    private void catchUp() {
+        do {
+            catchUpRequested.set(false);
+            try {
+                readChanges();
+            } catch (JedisException e) {
+                logger.except(e, "Failed to read changes after " + offset);
+            }
+
+            catchingUp.set(false);
+        } while (catchUpRequested.get() && catchingUp.compareAndSet(false, true));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readChanges() throws JedisException {
+        synchronized (local) {
+            if (offset == null) {
+                bootstrap();
+            }
+
+            boolean rebootstrapped = false;
+            while (offset != null) {
+                List<Object> result;
+                Jedis resource = pool.borrow();
+                try {
+                    result = (List<Object>) READ.evalBinary(resource,
+                            Collections.singletonList(SafeEncoder.encode(keyspace.streamKey())),
+                            Arrays.asList(
+                                    SafeEncoder.encode(offset.isEmpty() ? "-" : next(offset)),
+                                    SafeEncoder.encode(String.valueOf(READ_BATCH_SIZE))));
+                } finally {
+                    resource.close();
+                }
+
+                byte[] first = (byte[]) result.get(0);
+                if (first != null && !offset.isEmpty() && compare(SafeEncoder.encode(first), offset) > 0) {
+                    // The stream was trimmed past this node's offset, so changes were missed
+                    if (rebootstrapped) {
+                        logger.info("Snapshot at " + offset + " is older than the change stream, some changes were lost");
+                        this.offset = "";
+                        continue;
+                    }
+
+                    logger.info("Fell behind the change stream at " + offset + ", bootstrapping from snapshot");
+                    local.evictAll();
+                    bootstrap();
+                    rebootstrapped = true;
+                    continue;
+                }
+
+                List<Object> entries = (List<Object>) result.get(1);
+                for (Object entry : entries) {
+                    List<Object> fields = (List<Object>) entry;
+                    List<Object> values = (List<Object>) fields.get(1);
+                    RedisReplicationBatch.decode((byte[]) values.get(1)).forEach(this::apply);
+                    this.offset = SafeEncoder.encode((byte[]) fields.get(0));
+                }
+
+                if (entries.size() < READ_BATCH_SIZE) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void apply(RedisReplicationBatch.Change change) {
+        switch (change.getOperation()) {
+            case RedisReplicationBatch.STORE:
+                local.store(keyCodec.decode(change.getKey()), valueCodec.decode(change.getElement()), change.getTags());
+                break;
+            case RedisReplicationBatch.STORE_UNTIL:
+                local.storeUntil(keyCodec.decode(change.getKey()), valueCodec.decode(change.getElement()),
+                        change.getExpiresAt(), change.getTags());
+                break;
+            case RedisReplicationBatch.EVICT:
+                local.evict(keyCodec.decode(change.getKey()));
+                break;
+            case RedisReplicationBatch.EVICT_TAG:
+                local.evictByTag(change.getTags()[0]);
+                break;
+            case RedisReplicationBatch.EVICT_ALL:
+                local.evictAll();
+                break;
+            default:
+                logger.info("Skipping change with unknown operation " + change.getOperation());
+        }
+    }
+
+    /**
+     * Loads the latest snapshot, if any, and moves this node's offset
+     * to the last change of the stream which the snapshot contains.
+     *
+     * If the snapshot could not be read, the offset is cleared,
+     * and the next catch up bootstraps again.
+     */
+    private void bootstrap() {
+        synchronized (local) {
+            try {
+                byte[] snapshot;
+                Jedis resource = pool.borrow();
+                try {
+                    snapshot = resource.get(SafeEncoder.encode(keyspace.snapshotKey()));
+                } finally {
+                    resource.close();
+                }
+
+                if (snapshot == null) {
+                    this.offset = "";
+                    return;
+                }
+
+                ByteBuffer buffer = ByteBuffer.wrap(snapshot);
+                byte[] id = new byte[buffer.getInt()];
+                buffer.get(id);
+
+                byte[] changes = new byte[buffer.remaining()];
+                buffer.get(changes);
+                RedisReplicationBatch.decode(changes).forEach(this::apply);
+
+                this.offset = SafeEncoder.encode(id);
+                logger.info("Bootstrapped from snapshot at " + offset);
+            } catch (JedisException e) {
+                this.offset = null;
+                logger.except(e, "Failed to bootstrap from snapshot, retrying later");
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot of this node's copy, as of it's current offset,
+     * unless another node has already done so during this interval.
+     */
+    private void saveSnapshot() {
+        try {
+            Jedis resource = pool.borrow();
+            try {
+                String lease = resource.set(keyspace.snapshotKey() + "#lease", node, "NX", "PX",
+                        replication.getUnit().toMillis(replication.getSnapshotInterval()));
+                if (!"OK".equals(lease)) {
+                    return;
+                }
+
+                byte[] snapshot;
+                synchronized (local) {
+                    if (offset == null || offset.isEmpty()) {
+                        return;
+                    }
+
+                    // Elements keep their tags and expiration time, so that bootstrapped nodes evict the same keys
+                    List<RedisReplicationBatch.Change> changes = new ArrayList<>();
+                    local.retrieveEntries().forEach(entry -> changes.add(RedisReplicationBatch.Change.storeUntil(
+                            keyCodec.encode(entry.getKey()),
+                            valueCodec.encode(entry.getValue()),
+                            entry.getExpiresAt(),
+                            local.getTags(entry.getKey()))));
+
+                    byte[] id = SafeEncoder.encode(offset);
+                    byte[] encoded = RedisReplicationBatch.encode(changes);
+                    snapshot = ByteBuffer.allocate(4 + id.length + encoded.length)
+                            .putInt(id.length)
+                            .put(id)
+                            .put(encoded)
+                            .array();
+                }
+
+                resource.set(SafeEncoder.encode(keyspace.snapshotKey()), snapshot);
+            } finally {
+                resource.close();
+            }
+        } catch (JedisException e) {
+            logger.except(e, "Failed to save snapshot");
+        }
+    }
+
+    /**
+     * Returns the smallest stream entry id after the provided one.
+     * @param id the stream entry id
+     * @return the next id
+     */
+    private static String next(String id) {
+        int separator = id.indexOf('-');
+        return id.substring(0, separator) + "-" + (Long.parseLong(id.substring(separator + 1)) + 1);
+    }
+
+    private static int compare(String a, String b) {
+        int separatorA = a.indexOf('-');
+        int separatorB = b.indexOf('-');
+        int result = Long.compare(Long.parseLong(a.substring(0, separatorA)), Long.parseLong(b.substring(0, separatorB)));
+        if (result != 0) {
+            return result;
+        }
+
+        return Long.compare(Long.parseLong(a.substring(separatorA + 1)), Long.parseLong(b.substring(separatorB + 1)));
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.redis;
+
+import java.util.concurrent.TimeUnit;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * The configuration of a {@link RedisReplicatedStash}.
+ *
+ * The change stream is capped at roughly the maximum length, in batches.
+ * A snapshot of the whole stash is written by one of the nodes once per
+ * snapshot interval, which must be short enough for the stream not to
+ * outgrow its cap in between, so that new or lagging nodes can always
+ * bootstrap from the snapshot, and catch up from the stream.
+ */
+@Getter
+@AllArgsConstructor(staticName = "of")
+public class RedisReplication {
+
+    public static final RedisReplication DEFAULT = of(10000, 1, TimeUnit.MINUTES);
+
+    private long maxLength;
+    private long snapshotInterval;
+    private TimeUnit unit;
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.redis;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * The binary form of a batch of changes, as appended to the stream of a {@link RedisReplicatedStash}.
+ *
+ * A batch is a count, followed by its changes, each of which is an operation
+ * byte followed by the length-prefixed key, element, and tags that it needs.
+ * Stores with an absolute expiration time, as written to snapshots, carry
+ * that time right after their operation byte.
+ */
+final class RedisReplicationBatch {
+
+    static final byte STORE = 0;
+    static final byte EVICT = 1;
+    static final byte EVICT_TAG = 2;
+    static final byte EVICT_ALL = 3;
+    static final byte STORE_UNTIL = 4;
+
+    private RedisReplicationBatch() {
+    }
+
+    static byte[] encode(List<Change> changes) {
+        int size = 4;
+        for (Change change : changes) {
+            size += change.size();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(changes.size());
+        for (Change change : changes) {
+            change.write(buffer);
+        }
+
+        return buffer.array();
+    }
+
+    static List<Change> decode(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int count = buffer.getInt();
+        List<Change> changes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            changes.add(Change.read(buffer));
+        }
+
+        return changes;
+    }
+
+    private static byte[] read(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Getter
+    @AllArgsConstructor(access = AccessLevel.PRIVATE)
+    static class Change {
+
+        private byte operation;
+        private long expiresAt;
+        private byte[] key;
+        private byte[] element;
+        private String[] tags;
+
+        static Change store(byte[] key, byte[] element, String... tags) {
+            return new Change(STORE, 0, key, element, tags);
+        }
+
+        static Change storeUntil(byte[] key, byte[] element, long expiresAt, String... tags) {
+            return new Change(STORE_UNTIL, expiresAt, key, element, tags);
+        }
+
+        static Change evict(byte[] key) {
+            return new Change(EVICT, 0, key, null, new String[0]);
+        }
+
+        static Change evictTag(String tag) {
+            return new Change(EVICT_TAG, 0, null, null, new String[] { tag });
+        }
+
+        static Change evictAll() {
+            return new Change(EVICT_ALL, 0, null, null, new String[0]);
+        }
+
+        private int size() {
+            int size = 1 + 4 + (key == null ? 0 : key.length) + 4 + (element == null ? 0 : element.length) + 4;
+            if (operation == STORE_UNTIL) {
+                size += 8;
+            }
+
+            for (String tag : tags) {
+                size += 4 + tag.getBytes(StandardCharsets.UTF_8).length;
+            }
+
+            return size;
+        }
+
+        private void write(ByteBuffer buffer) {
+            buffer.put(operation);
+            if (operation == STORE_UNTIL) {
+                buffer.putLong(expiresAt);
+            }
+            buffer.putInt(key == null ? 0 : key.length);
+            if (key != null) {
+                buffer.put(key);
+            }
+
+            buffer.putInt(element == null ? 0 : element.length);
+            if (element != null) {
+                buffer.put(element);
+            }
+
+            buffer.putInt(tags.length);
+            for (String tag : tags) {
+                byte[] bytes = tag.getBytes(StandardCharsets.UTF_8);
+                buffer.putInt(bytes.length);
+                buffer.put(bytes);
+            }
+        }
+
+        private static Change read(ByteBuffer buffer) {
+            byte operation = buffer.get();
+            long expiresAt = operation == STORE_UNTIL ? buffer.getLong() : 0;
+            byte[] key = RedisReplicationBatch.read(buffer);
+            byte[] element = RedisReplicationBatch.read(buffer);
+            String[] tags = new String[buffer.getInt()];
+            for (int i = 0; i < tags.length; i++) {
+                tags[i] = new String(RedisReplicationBatch.read(buffer), StandardCharsets.UTF_8);
+            }
+
+            return new Change(operation, expiresAt, key, element, tags);
+        }
+
+    }
+
+}
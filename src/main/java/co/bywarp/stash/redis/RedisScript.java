@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.redis;
+
+import java.util.List;
+
+import lombok.Getter;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.util.SafeEncoder;
+
+@Getter
+public class RedisScript {
+
+    private String source;
+    private volatile String sha;
+
+    public RedisScript(String source) {
+        this.source = source;
+    }
+
+    /**
+     * Evaluates this script by it's cached SHA, loading
+     * the script into Redis first if it is not yet known.
+     *
+     * @param resource the resource to evaluate the script on
+     * @param keys the keys accessed by the script
+     * @param args the arguments of the script
+     * @throws JedisException thrown if the script could not be loaded or evaluated
+     * @return the script result
+     */
+    public Object eval(Jedis resource, List<String> keys, List<String> args) throws JedisException {
+        if (sha == null) {
+            this.sha = resource.scriptLoad(source);
+        }
+
+        try {
+            return resource.evalsha(sha, keys, args);
+        } catch (JedisNoScriptException e) {
+            // The script cache was flushed, or this is a different server
+            this.sha = resource.scriptLoad(source);
+            return resource.evalsha(sha, keys, args);
+        }
+    }
+
+    /**
+     * Evaluates this script with binary keys and arguments, loading
+     * the script into Redis first if it is not yet known.
+     *
+     * @param resource the resource to evaluate the script on
+     * @param keys the keys accessed by the script
+     * @param args the arguments of the script
+     * @throws JedisException thrown if the script could not be loaded or evaluated
+     * @return the script result, with any strings left in binary form
+     */
+    public Object evalBinary(Jedis resource, List<byte[]> keys, List<byte[]> args) throws JedisException {
+        if (sha == null) {
+            this.sha = resource.scriptLoad(source);
+        }
+
+        try {
+            return resource.evalsha(SafeEncoder.encode(sha), keys, args);
+        } catch (JedisNoScriptException e) {
+            this.sha = resource.scriptLoad(source);
+            return resource.evalsha(SafeEncoder.encode(sha), keys, args);
+        }
+    }
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.redis;
+
+import java.util.concurrent.TimeUnit;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * The configuration of the degraded mode of a {@link RedisStash}.
+ *
+ * In degraded mode, the last known elements of recently read and written keys
+ * are kept in a bounded in-process copy, which is served whenever Redis can
+ * not be reached, for as long as the copy is no older than the maximum staleness.
+ */
+@Getter
+@AllArgsConstructor(staticName = "of")
+public class RedisServeStale {
+
+    public static final RedisServeStale DEFAULT = of(10000, 10, TimeUnit.MINUTES);
+
+    private int maximumSize;
+    private long maxStaleness;
+    private TimeUnit unit;
+
+}
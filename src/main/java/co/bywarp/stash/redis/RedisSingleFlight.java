@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.redis;
+
+import java.util.concurrent.TimeUnit;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * The configuration of distributed loading through {@link RedisStash#retrieveOrCompute}.
+ *
+ * The node which loads a missing element holds a lease for it, which is renewed
+ * while the loader runs. Other nodes wait for the lease to be released, checking
+ * for the element once per poll interval in case the announcement is missed,
+ * and load the element themselves once the wait timeout has passed.
+ */
+@Getter
+@AllArgsConstructor(staticName = "of")
+public class RedisSingleFlight {
+
+    public static final RedisSingleFlight DEFAULT = of(10000, 30000, 250, TimeUnit.MILLISECONDS);
+
+    private long leaseTime;
+    private long waitTimeout;
+    private long pollInterval;
+    private TimeUnit unit;
+
+}
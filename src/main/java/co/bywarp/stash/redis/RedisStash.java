@@ -18,26 +18,128 @@
 package co.bywarp.stash.redis;
 
 import co.bywarp.lightkit.util.logger.Logger;
-import co.bywarp.stash.StashProvider;
+import co.bywarp.stash.CountingStashProvider;
+import co.bywarp.stash.StashBatch;
+import co.bywarp.stash.element.ElementExpiryHandler;
 import co.bywarp.stash.element.ElementExpiryPolicy;
+import co.bywarp.stash.element.ElementExpiryReason;
+import co.bywarp.stash.memory.MemoryStash;
 import co.bywarp.stash.redis.pool.RedisPool;
+import co.bywarp.stash.redis.pool.RedisSubscription;
+import co.bywarp.stash.trace.StashPhase;
+import co.bywarp.stash.trace.StashTrace;
+import co.bywarp.stash.trace.StashTracing;
 
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import lombok.Getter;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
 import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
 
 @Getter
-public class RedisStash<K, T> implements StashProvider<K, T> {
+public class RedisStash<K, T> implements CountingStashProvider<K, T> {
+
+    private static final int MAX_TOUCHED_KEYS = 65536;
+    private static final int REFRESH_BATCH_SIZE = 512;
+    private static final int SCAN_BATCH_SIZE = 1000;
+    private static final int MAX_BATCH_ATTEMPTS = 16;
+    private static final long GENERATION_SYNC_SECONDS = 5;
+    private static final int WRITE_EPOCH_STRIPES = 1024;
+    private static final String NOTIFY_KEYSPACE_EVENTS = "notify-keyspace-events";
+    private static final String EXPIRED_EVENTS = "__keyevent@*__:expired";
+    private static final String EVICTED_EVENTS = "__keyevent@*__:evicted";
+
+    private static final RedisScript ADVANCE_GENERATION = new RedisScript(""
+            + "local generation = redis.call('INCR', KEYS[1])\n"
+            + "redis.call('PUBLISH', KEYS[1], generation)\n"
+            + "return generation");
+
+    private static final RedisScript COMPARE_AND_SET = new RedisScript(""
+            + "if (redis.call('GET', KEYS[1]) or '') ~= ARGV[1] then\n"
+            + "  return 0\n"
+            + "end\n"
+            + "redis.call('SET', KEYS[1], ARGV[2], 'EX', ARGV[3])\n"
+            + "redis.call('DEL', KEYS[2])\n"
+            + "return 1");
+
+    private static final RedisScript COMPARE_AND_EVICT = new RedisScript(""
+            + "if redis.call('GET', KEYS[1]) ~= ARGV[1] then\n"
+            + "  return 0\n"
+            + "end\n"
+            + "redis.call('DEL', KEYS[2])\n"
+            + "return redis.call('DEL', KEYS[1])");
+
+    private static final RedisScript EVICT_TAGGED = new RedisScript(""
+            + "local removed = 0\n"
+            + "for i = 2, #KEYS, 2 do\n"
+            + "  if redis.call('SISMEMBER', KEYS[i + 1], ARGV[1]) == 1 then\n"
+            + "    removed = removed + redis.call('DEL', KEYS[i])\n"
+            + "    redis.call('DEL', KEYS[i + 1])\n"
+            + "  end\n"
+            + "  redis.call('SREM', KEYS[1], KEYS[i])\n"
+            + "end\n"
+            + "return removed");
+
+    private static final RedisScript REFRESH_EXPIRY = new RedisScript(""
+            + "for i = 1, #KEYS, 2 do\n"
+            + "  redis.call('PEXPIRE', KEYS[i], ARGV[1])\n"
+            + "  if redis.call('PEXPIRE', KEYS[i + 1], ARGV[1]) == 1 then\n"
+            + "    for _, tag in ipairs(redis.call('SMEMBERS', KEYS[i + 1])) do\n"
+            + "      redis.call('PEXPIRE', ARGV[2] .. tag, ARGV[1])\n"
+            + "    end\n"
+            + "  end\n"
+            + "end\n"
+            + "return 0");
+
+    private static final RedisScript RENEW_LEASE = new RedisScript(""
+            + "if redis.call('GET', KEYS[1]) ~= ARGV[1] then\n"
+            + "  return 0\n"
+            + "end\n"
+            + "return redis.call('PEXPIRE', KEYS[1], ARGV[2])");
+
+    private static final RedisScript RELEASE_LEASE = new RedisScript(""
+            + "if redis.call('GET', KEYS[1]) ~= ARGV[1] then\n"
+            + "  return 0\n"
+            + "end\n"
+            + "redis.call('DEL', KEYS[1])\n"
+            + "redis.call('PUBLISH', KEYS[1], ARGV[1])\n"
+            + "return 1");
 
     private Logger logger;
     private ElementExpiryPolicy expiryPolicy;
@@ -47,6 +149,32 @@ public class RedisStash<K, T> implements StashProvider<K, T> {
     private RedisTypeAdapter<T, String> typeSerializer;
     private RedisPool<K, T> pool;
 
+    private Set<String> touchedKeys;
+    private ScheduledFuture<?> expiryRefresher;
+    private RedisSubscription generationListener;
+
+    private RedisWriteBuffer<T> writeBuffer;
+    private ScheduledFuture<?> writeFlusher;
+
+    private RedisHotKeyTracker hotKeys;
+    private MemoryStash<String, T> promoted;
+    private AtomicLongArray writeEpochs;
+    private ScheduledFuture<?> hotKeyReporter;
+
+    private MemoryStash<String, T> shadow;
+    private RedisBulkRead bulkRead;
+
+    private ElementExpiryHandler<T, K> expiryHandler;
+    private RedisSubscription expiryListener;
+    private Queue<Map.Entry<String, ElementExpiryReason>> removals;
+    private AtomicBoolean dispatching;
+
+    private RedisSingleFlight singleFlight;
+    private StashTracing tracing;
+    private RedisSubscription leaseListener;
+    private Map<String, LeaseWaiter> leaseWaiters;
+    private ScheduledFuture<?> leaseSweeper;
+
     public RedisStash(ElementExpiryPolicy expiryPolicy,
                       RedisConnection connection,
                       RedisKeyspace<K> keyspace,
@@ -59,20 +187,122 @@ public class RedisStash<K, T> implements StashProvider<K, T> {
         this.resultSerializer = resultSerializer;
         this.typeSerializer = typeSerializer;
         this.pool = new RedisPool<>(this);
+        this.bulkRead = RedisBulkRead.DEFAULT;
+        this.singleFlight = RedisSingleFlight.DEFAULT;
+        this.tracing = StashTracing.DISABLED;
+
+        if (keyspace.isGenerational()) {
+            this.syncGeneration();
+            this.pool.schedule(this::syncGeneration, GENERATION_SYNC_SECONDS, TimeUnit.SECONDS);
+            this.generationListener = new RedisSubscription(pool, keyspace.getPrefix(), new JedisPubSub() {
+                @Override
+                public void onSubscribe(String channel, int subscribedChannels) {
+                    // Catch up on any changes missed while unsubscribed
+                    pool.execute(RedisStash.this::syncGeneration);
+                }
+
+                @Override
+                public void onMessage(String channel, String message) {
+                    keyspace.advanceGeneration(Long.parseLong(message));
+                }
+            }, false, keyspace.generationKey()).start();
+        }
+
+        RedisBloomFilter bloomFilter = keyspace.getBloomFilter();
+        if (bloomFilter != null) {
+            this.pool.execute(this::rebuildFilter);
+            this.pool.schedule(this::rebuildFilter, bloomFilter.getRebuildInterval(), bloomFilter.getUnit());
+        }
+
+        if (expiryPolicy.isAfterAccess()) {
+            this.touchedKeys = ConcurrentHashMap.newKeySet();
+            this.expiryRefresher = pool.schedule(this::refreshExpiry,
+                    expiryPolicy.toRefreshMillis(), TimeUnit.MILLISECONDS);
+        }
     }
 
     @Override
     public T retrieve(K key) throws JedisException {
-        Jedis resource = pool.borrow();
-        String result = resource.get(keyspace.construct(key));
+        return retrieve(key, true);
+    }
+
+    /**
+     * Retrieves a cached element, skipping the read if the keyspace's
+     * Bloom filter is consulted, and knows the key is not cached.
+     *
+     * @param key the key of the element
+     * @param filtered if the Bloom filter is consulted, which is only skipped for
+     *                 elements that may have been stored by other clients
+     * @throws JedisException thrown if Redis could not be reached
+     * @return the cached element, or null if it does not exist
+     */
+    private T retrieve(K key, boolean filtered) throws JedisException {
+        String head = keyspace.construct(key);
+        if (writeBuffer != null) {
+            RedisWriteBuffer.Write<T> write = writeBuffer.get(head);
+            if (write != null) {
+                return write.getElement();
+            }
+        }
 
-        resource.close();
+        boolean hot = hotKeys != null && hotKeys.record(head);
+        if (promoted != null) {
+            T local = promoted.retrieve(head);
+            if (local != null) {
+                return local;
+            }
+        }
 
-        if (result == null || result.isEmpty()) {
+        if (filtered && !mightContain(head)) {
             return null;
         }
 
-        return resultSerializer.adapt(result);
+        long epoch = hot && promoted != null ? writeEpoch(head) : 0;
+        StashTrace trace = tracing.begin(keyspace.getPrefix(), "retrieve", key);
+        try {
+            String result;
+            try {
+                long mark = trace.mark();
+                Jedis resource = pool.borrow();
+                trace.record(StashPhase.ACQUIRE, mark, 0);
+                try {
+                    mark = trace.mark();
+                    result = resource.get(head);
+                    trace.record(StashPhase.EXECUTE, mark, result == null ? 0 : result.length());
+                } finally {
+                    resource.close();
+                }
+            } catch (JedisConnectionException e) {
+                // Only failures to reach Redis are served stale, not errors of the command itself
+                T stale = shadow == null ? null : shadow.retrieve(head);
+                if (stale == null) {
+                    throw e;
+                }
+
+                return stale;
+            }
+
+            if (result == null || result.isEmpty()) {
+                if (shadow != null) {
+                    shadow.evict(head);
+                }
+
+                return null;
+            }
+
+            touch(head);
+            long mark = trace.mark();
+            T element = resultSerializer.adapt(result);
+            trace.record(StashPhase.DESERIALIZE, mark, result.length());
+            if (hot && promoted != null) {
+                promote(head, element, epoch);
+            }
+
+            keep(head, element);
+            return element;
+        } finally {
+            trace.end();
+        }
     }
 
     @Override
@@ -87,120 +317,583 @@ public class RedisStash<K, T> implements StashProvider<K, T> {
 
     @Override
     public T retrieveOrSet(K key, T newValue) throws JedisException {
+        if (writeBuffer != null) {
+            T result = retrieve(key);
+            if (result == null) {
+                return store(key, newValue);
+            }
+
+            return result;
+        }
+
+        String head = keyspace.construct(key);
+        String result;
         Jedis resource = pool.borrow();
-        String result = resource.get(keyspace.construct(key));
-        if (result == null || result.isEmpty()) {
-            String fullKey = keyspace.construct(key);
-            resource.set(fullKey, typeSerializer.adapt(newValue));
+        try {
+            result = resource.get(head);
+            while (result == null || result.isEmpty()) {
+                demote(head);
+                String serialized = typeSerializer.adapt(newValue);
+                int ttl = expiryPolicy.toSeconds();
+
+                // NX keeps an element stored by another client since the read, which is returned instead
+                String reply = result == null
+                        ? resource.set(head, serialized, "NX", "EX", ttl)
+                        : resource.setex(head, ttl, serialized);
+
+                if (reply != null) {
+                    resource.del(keyspace.memberTagsKey(head));
+                    remember(head);
+                    keep(head, newValue);
+                    return newValue;
+                }
+
+                result = resource.get(head);
+            }
+        } finally {
             resource.close();
-            return newValue;
         }
 
-        return resultSerializer.adapt(result);
+        touch(head);
+
+        T element = resultSerializer.adapt(result);
+        keep(head, element);
+        return element;
     }
 
+    /**
+     * Retrieves a cached element, or loads it if it does not exist, making sure
+     * that only one node loads the element at a time, across all processes.
+     *
+     * The first node to miss takes a lease on the key, which is renewed while
+     * the loader runs, and stores the loaded element before releasing the lease.
+     * Other nodes wait for the release to be announced, and then read the stored
+     * element. If the lease is released or lost without an element being stored,
+     * a waiting node takes over the lease. Once the wait timeout of the
+     * {@link RedisSingleFlight} configuration has passed, waiting nodes load
+     * the element themselves.
+     *
+     * Loaders which return null store nothing, and their result is not shared.
+     *
+     * @param key the key of the element
+     * @param loader loads the element if it is not cached
+     * @throws JedisException thrown if Redis could not be reached, or the thread was interrupted while waiting
+     * @return the cached or loaded element
+     */
+    public T retrieveOrCompute(K key, Function<K, T> loader) throws JedisException {
+        T element = retrieve(key);
+        if (element != null) {
+            return element;
+        }
+
+        String lease = keyspace.leaseKey(key);
+        String token = UUID.randomUUID().toString();
+        long leaseMillis = singleFlight.getUnit().toMillis(singleFlight.getLeaseTime());
+        long pollMillis = Math.max(1, singleFlight.getUnit().toMillis(singleFlight.getPollInterval()));
+        long deadline = System.currentTimeMillis() + singleFlight.getUnit().toMillis(singleFlight.getWaitTimeout());
+        listenForLeases();
+
+        while (true) {
+            // Waiters register before trying the lease, so that no release can slip in between
+            long now = System.currentTimeMillis();
+            LeaseWaiter released = leaseWaiters.compute(lease, (head, waiter) ->
+                    waiter == null || waiter.isExpired(now) ? new LeaseWaiter(now + leaseMillis) : waiter);
+
+            String acquired;
+            Jedis resource = pool.borrow();
+            try {
+                acquired = resource.set(lease, token, "NX", "PX", leaseMillis);
+            } finally {
+                resource.close();
+            }
+
+            if ("OK".equals(acquired)) {
+                return computeUnderLease(key, loader, lease, token, leaseMillis);
+            }
+
+            try {
+                released.get(Math.min(pollMillis, Math.max(1, deadline - System.currentTimeMillis())), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                // Fall back to polling, in case the release was announced while unsubscribed
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new JedisException("Interrupted while waiting for lease on " + lease, e);
+            }
+
+            // The element may have been stored by another node, which this node's Bloom filter can not know of yet
+            element = retrieveStored(key);
+            if (element != null) {
+                return element;
+            }
+
+            if (System.currentTimeMillis() >= deadline) {
+                T loaded = loader.apply(key);
+                if (loaded != null) {
+                    store(key, loaded);
+                }
+
+                return loaded;
+            }
+        }
+    }
+
+    /**
+     * Retrieves all elements of this stash's keyspace, reading partitions
+     * of the keyspace in parallel, as configured by {@link #configureBulkReads}.
+     *
+     * @throws JedisException thrown if any partition could not be read
+     * @return all cached elements
+     */
     @Override
     public Map<K, T> retrieveAll() throws JedisException {
-        Jedis resource = pool.borrow();
-        String selector = keyspace.selectAll();
-        Set<String> keys = resource.keys(selector);
-        if (keys == null || keys.isEmpty()) {
-            resource.close();
-            return new HashMap<>();
-        }
+        return retrieveAll(bytes -> resultSerializer.adapt(SafeEncoder.encode(bytes)));
+    }
 
-        Map<K, T> ret = CompletableFuture
-                .supplyAsync(() -> {
-                    Map<K, T> results = new HashMap<>();
-                    keys.forEach(key -> {
-                        String result = resource.get(key);
-                        if (result == null || result.isEmpty()) {
-                            return;
-                        }
+    /**
+     * Retrieves all elements of this stash's keyspace, leaving them in their
+     * serialized form until they are accessed through the returned map.
+     *
+     * Elements are read in the same way as by {@link #retrieveAll()}, but are only
+     * deserialized once a caller asks for them, so callers which only inspect keys,
+     * or a few elements, do not pay for deserializing the rest.
+     *
+     * @param memoize if deserialized elements are kept for later accesses,
+     *                rather than deserialized again on every access
+     * @throws JedisException thrown if any partition could not be read
+     * @return an unmodifiable view of all cached elements
+     */
+    public RedisLazyMap<K, T> retrieveAllLazily(boolean memoize) throws JedisException {
+        return new RedisLazyMap<>(retrieveAll(bytes -> bytes), resultSerializer, memoize);
+    }
+
+    /**
+     * Reads all elements of this stash's keyspace in parallel partitions.
+     *
+     * The keyspace is walked with SCAN rather than KEYS, so the server is never
+     * blocked for longer than a single page, and every scanned page is read as
+     * a partition while the scan continues, with at most the configured
+     * parallelism of partitions in flight.
+     *
+     * @param decoder converts the raw bytes of elements, on the thread which read them
+     * @param <V> the type the raw elements are converted to
+     * @throws JedisException thrown if any partition could not be read
+     * @return all cached elements
+     */
+    private <V> Map<K, V> retrieveAll(Function<byte[], V> decoder) throws JedisException {
+        flush();
+        ScanParams params = new ScanParams()
+                .match(keyspace.selectAll())
+                .count(SCAN_BATCH_SIZE);
+
+        int batchSize = Math.max(1, bulkRead.getBatchSize());
+        int parallelism = Math.max(1, bulkRead.getParallelism());
+        Set<String> scanned = new HashSet<>();
+        Deque<CompletableFuture<Map<K, V>>> reads = new ArrayDeque<>(parallelism);
+
+        Map<K, V> results = new HashMap<>();
+        try {
+            String cursor = ScanParams.SCAN_POINTER_START;
+            do {
+                // Pages are scanned on short borrows, so partitions are never starved of connections
+                ScanResult<String> page;
+                Jedis resource = pool.borrow();
+                try {
+                    page = resource.scan(cursor, params);
+                } finally {
+                    resource.close();
+                }
 
-                        results.put(keyspace.fromRemote(key),
-                                resultSerializer.adapt(result));
-                    });
+                // A key may be returned by more than one page
+                List<String> heads = page
+                        .getResult()
+                        .stream()
+                        .filter(scanned::add)
+                        .collect(Collectors.toList());
 
-                    return results;
-                })
-                .exceptionally(throwable -> {
-                    logger.except(new Exception(throwable), "Exception retrieving records");
-                    return new HashMap<>();
-                })
-                .join();
+                if (!heads.isEmpty()) {
+                    if (reads.size() >= parallelism) {
+                        results.putAll(reads.poll().join());
+                    }
 
-        resource.close();
-        return ret;
+                    reads.add(CompletableFuture.supplyAsync(() -> retrievePartition(heads, batchSize, decoder),
+                            bulkRead.getExecutor()));
+                }
+
+                cursor = page.getStringCursor();
+            } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+
+            for (CompletableFuture<Map<K, V>> read : reads) {
+                results.putAll(read.join());
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof JedisException) {
+                throw (JedisException) e.getCause();
+            }
+
+            throw new JedisException("Exception retrieving records", e.getCause());
+        }
+
+        return results;
     }
 
     @Override
     public T store(K key, T element) throws JedisException {
-        Jedis resource = pool.borrow();
         String head = keyspace.construct(key);
-        resource.set(head, typeSerializer.adapt(element));
-        resource.expire(head, expiryPolicy.toSeconds());
-        resource.close();
+        demote(head);
+        if (writeBuffer != null) {
+            writeBuffer.put(head, RedisWriteBuffer.Write.store(element),
+                    () -> pool.execute(this::flushQuietly),
+                    connection.getTimeoutMillis());
+            keep(head, element);
+            return element;
+        }
+
+        StashTrace trace = tracing.begin(keyspace.getPrefix(), "store", key);
+        try {
+            long mark = trace.mark();
+            String serialized = typeSerializer.adapt(element);
+            trace.record(StashPhase.SERIALIZE, mark, serialized.length());
+
+            mark = trace.mark();
+            Jedis resource = pool.borrow();
+            trace.record(StashPhase.ACQUIRE, mark, 0);
+
+            mark = trace.mark();
+            try {
+                // Any tags of the previous element do not carry over to this one
+                Pipeline pipeline = resource.pipelined();
+                pipeline.set(head, serialized);
+                pipeline.expire(head, expiryPolicy.toSeconds());
+                pipeline.del(keyspace.memberTagsKey(head));
+                pipeline.sync();
+            } finally {
+                resource.close();
+            }
+
+            trace.record(StashPhase.EXECUTE, mark, serialized.length());
+        } finally {
+            trace.end();
+        }
 
+        remember(head);
+        keep(head, element);
         return element;
     }
 
     @Override
-    public T update(K key, T element) throws JedisException, NullPointerException {
+    public T store(K key, T element, String... tags) throws JedisException {
+        String head = keyspace.construct(key);
+        settle(head);
+        demote(head);
+
+        int ttl = expiryPolicy.toSeconds();
         Jedis resource = pool.borrow();
+        try {
+            String memberTags = keyspace.memberTagsKey(head);
+            Pipeline pipeline = resource.pipelined();
+            pipeline.set(head, typeSerializer.adapt(element));
+            pipeline.expire(head, ttl);
+            pipeline.del(memberTags);
+            if (tags.length > 0) {
+                pipeline.sadd(memberTags, tags);
+                pipeline.expire(memberTags, ttl);
+            }
+
+            // Every member has the same time to live, so a tag set never expires before its newest member
+            for (String tag : tags) {
+                String tagKey = keyspace.tagKey(tag);
+                pipeline.sadd(tagKey, head);
+                pipeline.expire(tagKey, ttl);
+            }
+
+            pipeline.sync();
+        } finally {
+            resource.close();
+        }
+
+        remember(head);
+        keep(head, element);
+        return element;
+    }
+
+    @Override
+    public T update(K key, T element) throws JedisException, NullPointerException {
+        if (writeBuffer != null) {
+            if (!contains(key)) {
+                throw new NullPointerException("No element for key \"" + keyspace.construct(key) + "\"");
+            }
+
+            return store(key, element);
+        }
+
         String head = keyspace.construct(key);
-        if (!resource.exists(head)) {
-            throw new NullPointerException("No element for key \"" + head + "\"");
+        demote(head);
+        Jedis resource = pool.borrow();
+        try {
+            if (!resource.exists(head)) {
+                throw new NullPointerException("No element for key \"" + head + "\"");
+            }
+
+            Pipeline pipeline = resource.pipelined();
+            pipeline.set(head, typeSerializer.adapt(element));
+            pipeline.expire(head, expiryPolicy.toSeconds());
+            pipeline.del(keyspace.memberTagsKey(head));
+            pipeline.sync();
+        } finally {
+            resource.close();
         }
 
-        resource.set(head, typeSerializer.adapt(element));
-        resource.expire(head, expiryPolicy.toSeconds());
-        resource.close();
+        remember(head);
+        keep(head, element);
         return element;
     }
 
+    /**
+     * Evicts a cached item by it's key.
+     *
+     * In write-behind mode, the eviction is buffered, and is assumed to
+     * succeed unless the element is already known to be evicted.
+     *
+     * @param key the key to evict
+     * @return if the element was successfully evicted
+     */
     @Override
     public boolean evict(K key) throws JedisException {
-        Jedis resource = pool.borrow();
         String head = keyspace.construct(key);
-        if (!resource.exists(head)) {
-            resource.close();
-            return false;
+        demote(head);
+        if (writeBuffer != null) {
+            RedisWriteBuffer.Write<T> write = writeBuffer.get(head);
+            writeBuffer.put(head, RedisWriteBuffer.Write.evict(),
+                    () -> pool.execute(this::flushQuietly),
+                    connection.getTimeoutMillis());
+            return write == null || !write.isEviction();
         }
 
-        long response = resource.del(head);
-        resource.close();
-        return response > 0;
+        StashTrace trace = tracing.begin(keyspace.getPrefix(), "evict", key);
+        try {
+            long mark = trace.mark();
+            Jedis resource = pool.borrow();
+            trace.record(StashPhase.ACQUIRE, mark, 0);
+
+            mark = trace.mark();
+            long response;
+            try {
+                response = resource.exists(head) ? resource.del(head, keyspace.memberTagsKey(head)) : 0;
+            } finally {
+                resource.close();
+            }
+
+            trace.record(StashPhase.EXECUTE, mark, 0);
+            return response > 0;
+        } finally {
+            trace.end();
+        }
     }
 
+    /**
+     * Evicts a cached item by it's key, and expected value.
+     *
+     * Elements are compared by their serialized form.
+     *
+     * @param key the key to evict
+     * @param element the item that is expected to be there
+     * @return if the element was successfully evicted
+     */
     @Override
     public boolean evict(K key, T element) throws JedisException {
-        Jedis resource = pool.borrow();
+        return compareAndEvict(key, element);
+    }
+
+    /**
+     * Atomically replaces a cached element, only if it is
+     * currently equal to the expected element.
+     *
+     * Elements are compared by their serialized form,
+     * inside of Redis, in a single round trip.
+     *
+     * @param key the key of the element
+     * @param expected the element that is expected to be cached, or null if none is
+     * @param element the new element to cache under the key
+     * @return if the element was replaced
+     */
+    @Override
+    public boolean compareAndSet(K key, T expected, T element) throws JedisException {
         String head = keyspace.construct(key);
-        if (!resource.exists(head)) {
+        settle(head);
+        demote(head);
+
+        Object result;
+        Jedis resource = pool.borrow();
+        try {
+            result = COMPARE_AND_SET.eval(resource,
+                    Arrays.asList(head, keyspace.memberTagsKey(head)),
+                    Arrays.asList(
+                            expected == null ? "" : typeSerializer.adapt(expected),
+                            typeSerializer.adapt(element),
+                            String.valueOf(expiryPolicy.toSeconds())));
+        } finally {
             resource.close();
+        }
+
+        if ((Long) result == 0) {
             return false;
         }
 
-        String result = resource.get(head);
-        if (result == null || result.isEmpty()) {
-            resource.close();
+        remember(head);
+        keep(head, element);
+        return true;
+    }
+
+    /**
+     * Atomically evicts a cached element, only if it is
+     * currently equal to the expected element.
+     *
+     * Elements are compared by their serialized form,
+     * inside of Redis, in a single round trip.
+     *
+     * @param key the key to evict
+     * @param expected the element that is expected to be cached
+     * @return if the element was evicted
+     */
+    @Override
+    public boolean compareAndEvict(K key, T expected) throws JedisException {
+        if (expected == null) {
             return false;
         }
 
-        T remote = resultSerializer.adapt(result);
-        if (remote != element) {
+        String head = keyspace.construct(key);
+        settle(head);
+        demote(head);
+        Jedis resource = pool.borrow();
+        try {
+            Object result = COMPARE_AND_EVICT.eval(resource,
+                    Arrays.asList(head, keyspace.memberTagsKey(head)),
+                    Collections.singletonList(typeSerializer.adapt(expected)));
+
+            return (Long) result == 1;
+        } finally {
             resource.close();
-            return false;
         }
+    }
 
-        resource.del(head);
-        resource.close();
-        return true;
+    /**
+     * Begins a batch of writes, which is committed atomically in
+     * a single MULTI/EXEC round trip, with every stored element
+     * written and given it's time to live by a single SETEX.
+     *
+     * Batches which update elements first WATCH and check the updated
+     * keys, and are retried if any of them changes before EXEC. Any
+     * buffered write-behind writes to the batch's keys are sent first.
+     *
+     * @return the empty batch
+     */
+    @Override
+    public StashBatch<K, T> batch() {
+        return new StashBatch<>(this::commit);
+    }
+
+    @Override
+    public long increment(K key) throws JedisException {
+        return add(key, 1L);
+    }
+
+    @Override
+    public long add(K key, long delta) throws JedisException {
+        String counterKey = keyspace.counterKey(key);
+        Jedis resource = pool.borrow();
+        try {
+            Pipeline pipeline = resource.pipelined();
+            Response<Long> response = pipeline.incrBy(counterKey, delta);
+            pipeline.expire(counterKey, expiryPolicy.toSeconds());
+            pipeline.sync();
+            return response.get();
+        } finally {
+            resource.close();
+        }
+    }
+
+    @Override
+    public long getAndAdd(K key, long delta) throws JedisException {
+        return add(key, delta) - delta;
+    }
+
+    @Override
+    public double add(K key, double delta) throws JedisException {
+        String counterKey = keyspace.counterKey(key);
+        Jedis resource = pool.borrow();
+        try {
+            Pipeline pipeline = resource.pipelined();
+            Response<Double> response = pipeline.incrByFloat(counterKey, delta);
+            pipeline.expire(counterKey, expiryPolicy.toSeconds());
+            pipeline.sync();
+            return response.get();
+        } finally {
+            resource.close();
+        }
+    }
+
+    @Override
+    public long add(K key, String field, long delta) throws JedisException {
+        String counterKey = keyspace.counterGroupKey(key);
+        Jedis resource = pool.borrow();
+        try {
+            Pipeline pipeline = resource.pipelined();
+            Response<Long> response = pipeline.hincrBy(counterKey, field, delta);
+            pipeline.expire(counterKey, expiryPolicy.toSeconds());
+            pipeline.sync();
+            return response.get();
+        } finally {
+            resource.close();
+        }
+    }
+
+    @Override
+    public long count(K key) throws JedisException {
+        String result;
+        String counterKey = keyspace.counterKey(key);
+        Jedis resource = pool.borrow();
+        try {
+            result = resource.get(counterKey);
+        } finally {
+            resource.close();
+        }
+
+        if (result == null) {
+            return 0;
+        }
+
+        touch(counterKey);
+
+        // Floating-point counters are truncated, like in memory
+        if (result.indexOf('.') != -1) {
+            return (long) Double.parseDouble(result);
+        }
+
+        return Long.parseLong(result);
+    }
+
+    @Override
+    public long count(K key, String field) throws JedisException {
+        String result;
+        String counterKey = keyspace.counterGroupKey(key);
+        Jedis resource = pool.borrow();
+        try {
+            result = resource.hget(counterKey, field);
+        } finally {
+            resource.close();
+        }
+
+        if (result == null) {
+            return 0;
+        }
+
+        touch(counterKey);
+        return Long.parseLong(result);
     }
 
     @Override
     public void evictIf(BiPredicate<K, T> predicate) throws JedisException {
+        demoteAll();
         Map<K, T> all = retrieveAll();
         if (all.isEmpty()) {
             return;
@@ -218,30 +911,1017 @@ public class RedisStash<K, T> implements StashProvider<K, T> {
         }
 
         Jedis resource = pool.borrow();
-        Pipeline pipeline = resource.pipelined();
-        evict.forEach(element -> pipeline.del(keyspace.construct(element.getKey())));
-        pipeline.sync();
-        resource.close();
+        try {
+            Pipeline pipeline = resource.pipelined();
+            evict.forEach(element -> {
+                String head = keyspace.construct(element.getKey());
+                pipeline.del(head, keyspace.memberTagsKey(head));
+            });
+            pipeline.sync();
+        } finally {
+            resource.close();
+        }
+    }
+
+    @Override
+    public void evictKeysIf(Predicate<K> predicate) throws JedisException {
+        demoteAll();
+        flush();
+        ScanParams params = new ScanParams()
+                .match(keyspace.selectAll())
+                .count(SCAN_BATCH_SIZE);
+
+        Jedis resource = pool.borrow();
+        try {
+            String cursor = ScanParams.SCAN_POINTER_START;
+            do {
+                ScanResult<String> page = resource.scan(cursor, params);
+                List<String> evict = page
+                        .getResult()
+                        .stream()
+                        .filter(head -> predicate.test(keyspace.fromRemote(head)))
+                        .collect(Collectors.toList());
+
+                if (!evict.isEmpty()) {
+                    Pipeline pipeline = resource.pipelined();
+                    evict.forEach(head -> pipeline.del(head, keyspace.memberTagsKey(head)));
+                    pipeline.sync();
+                }
+
+                cursor = page.getStringCursor();
+            } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+        } finally {
+            resource.close();
+        }
+    }
+
+    /**
+     * Evicts all elements whose keys match the specified filter.
+     *
+     * The keyspace is scanned and filtered entirely inside of Redis,
+     * one page at a time, so that no keys or values are transferred
+     * and the server is never blocked for longer than a single page.
+     *
+     * @param filter the server-side condition to meet for eviction
+     * @throws JedisException thrown if the filter script fails
+     * @return the amount of evicted elements
+     */
+    public long evictIf(RedisKeyFilter filter) throws JedisException {
+        demoteAll();
+        flush();
+        return evictScanned(filter, keyspace.select(filter.getPattern()));
+    }
+
+    /**
+     * Unlinks all remote keys matching the provided selector and filter,
+     * one scanned page at a time.
+     *
+     * @param filter the server-side condition to meet for eviction
+     * @param selector the remote glob selector to scan
+     * @throws JedisException thrown if the filter script fails
+     * @return the amount of unlinked keys
+     */
+    private long evictScanned(RedisKeyFilter filter, String selector) throws JedisException {
+        RedisScript script = filter.getScript();
+
+        long removed = 0;
+        Jedis resource = pool.borrow();
+        try {
+            String cursor = ScanParams.SCAN_POINTER_START;
+            do {
+                List<?> page = (List<?>) script.eval(resource, Collections.emptyList(),
+                        filter.toArguments(cursor, selector, SCAN_BATCH_SIZE));
+
+                cursor = (String) page.get(0);
+                removed += (Long) page.get(1);
+            } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+        } finally {
+            resource.close();
+        }
+
+        return removed;
+    }
+
+    @Override
+    public long evictByTag(String tag) throws JedisException {
+        demoteAll();
+        flush();
+        String tagKey = keyspace.tagKey(tag);
+        ScanParams params = new ScanParams().count(SCAN_BATCH_SIZE);
+
+        long removed = 0;
+        Jedis resource = pool.borrow();
+        try {
+            String cursor = ScanParams.SCAN_POINTER_START;
+            do {
+                ScanResult<String> page = resource.sscan(tagKey, cursor, params);
+                List<String> members = page.getResult();
+                if (!members.isEmpty()) {
+                    // Members which were written again, or removed, since they were tagged are kept
+                    List<String> keys = new ArrayList<>(members.size() * 2 + 1);
+                    keys.add(tagKey);
+                    for (String head : members) {
+                        keys.add(head);
+                        keys.add(keyspace.memberTagsKey(head));
+                    }
+
+                    removed += (Long) EVICT_TAGGED.eval(resource, keys, Collections.singletonList(tag));
+                }
+
+                cursor = page.getStringCursor();
+            } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+
+            resource.del(tagKey);
+        } finally {
+            resource.close();
+        }
+
+        return removed;
     }
 
     @Override
     public void evictAll() throws JedisException {
-        this.evictIf((k, t) -> true);
+        demoteAll();
+        flush();
+        if (!keyspace.isGenerational()) {
+            this.evictIf((k, t) -> true);
+            this.evictScanned(RedisKeyFilter.pattern("*"), keyspace.selectCounters());
+            this.evictScanned(RedisKeyFilter.pattern("*"), keyspace.selectCounterGroups());
+            return;
+        }
+
+        long generation;
+        Jedis resource = pool.borrow();
+        try {
+            generation = (Long) ADVANCE_GENERATION.eval(resource,
+                    Collections.singletonList(keyspace.generationKey()),
+                    Collections.emptyList());
+        } finally {
+            resource.close();
+        }
+
+        keyspace.advanceGeneration(generation);
+        pool.execute(() -> reclaimGeneration(generation - 1));
     }
 
     @Override
     public boolean contains(K key) throws JedisException {
-        Jedis resource = pool.borrow();
         String head = keyspace.construct(key);
-        boolean exists = resource.exists(head);
+        if (writeBuffer != null) {
+            RedisWriteBuffer.Write<T> write = writeBuffer.get(head);
+            if (write != null) {
+                return !write.isEviction();
+            }
+        }
 
-        resource.close();
-        return exists;
+        if (!mightContain(head)) {
+            return false;
+        }
+
+        StashTrace trace = tracing.begin(keyspace.getPrefix(), "contains", key);
+        try {
+            long mark = trace.mark();
+            Jedis resource = pool.borrow();
+            trace.record(StashPhase.ACQUIRE, mark, 0);
+            try {
+                mark = trace.mark();
+                boolean exists = resource.exists(head);
+                trace.record(StashPhase.EXECUTE, mark, 0);
+                return exists;
+            } finally {
+                resource.close();
+            }
+        } catch (JedisConnectionException e) {
+            if (shadow == null || !shadow.contains(head)) {
+                throw e;
+            }
+
+            return true;
+        } finally {
+            trace.end();
+        }
     }
 
     @Override
     public void close() {
+        if (generationListener != null) {
+            this.generationListener.close();
+        }
+
+        if (expiryListener != null) {
+            this.expiryListener.close();
+        }
+
+        if (leaseListener != null) {
+            this.leaseListener.close();
+            this.leaseSweeper.cancel(false);
+        }
+
+        if (expiryRefresher != null) {
+            this.expiryRefresher.cancel(false);
+            this.refreshExpiry();
+        }
+
+        if (writeFlusher != null) {
+            this.writeFlusher.cancel(false);
+            this.flushQuietly();
+        }
+
+        if (hotKeyReporter != null) {
+            this.hotKeyReporter.cancel(false);
+        }
+
+        if (promoted != null) {
+            this.promoted.close();
+        }
+
+        if (shadow != null) {
+            this.shadow.close();
+        }
+
         this.pool.close();
     }
 
+    /**
+     * Switches this stash into write-behind mode, in which elements are stored
+     * and evicted through a buffer that is flushed to Redis in the background.
+     *
+     * Reads observe buffered writes. Bulk operations, as well as atomic and tagged
+     * writes, flush the writes they depend on before they are sent to Redis.
+     * Once the buffer is full, writers wait for it to be flushed, for at most
+     * the connection's timeout.
+     *
+     * This must be called before the stash is first used.
+     *
+     * @param writeBehind the write-behind configuration
+     */
+    public void enableWriteBehind(RedisWriteBehind writeBehind) {
+        this.writeBuffer = new RedisWriteBuffer<>(writeBehind.getCapacity());
+        this.writeFlusher = pool.schedule(this::flushQuietly, writeBehind.getInterval(), writeBehind.getUnit());
+    }
+
+    /**
+     * Starts tracking the most frequently read keys of this stash, which are
+     * reported through the logger at the end of every window of the policy.
+     *
+     * If the policy promotes hot keys, elements read under a hot key are copied
+     * into process memory for a short time, and served from there. Writes and
+     * evictions made through this stash discard the copy, but writes made by
+     * other clients are only observed once the copy expires.
+     *
+     * This must be called before the stash is first used.
+     *
+     * @param policy the hot key policy
+     */
+    public void enableHotKeyTracking(RedisHotKeyPolicy policy) {
+        this.hotKeys = new RedisHotKeyTracker(policy);
+        if (policy.isPromoting()) {
+            this.promoted = new MemoryStash<>(ElementExpiryPolicy.of(policy.getPromotionMillis(), TimeUnit.MILLISECONDS));
+            this.writeEpochs = new AtomicLongArray(WRITE_EPOCH_STRIPES);
+        }
+
+        this.hotKeyReporter = pool.schedule(() -> {
+            Map<String, Long> hottest = hotKeys.hottest();
+            if (!hottest.isEmpty()) {
+                logger.info("Hottest keys: " + hottest);
+            }
+
+            hotKeys.age();
+        }, policy.getWindowMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Switches this stash into degraded mode, in which the last known elements of
+     * recently read and written keys are kept in a bounded in-process copy.
+     *
+     * Whenever a read fails, because Redis can not be reached or the connection's
+     * circuit breaker is open, the copy is served instead, if it holds the key.
+     * Evictions made through this stash discard the copy, but writes made by
+     * other clients are not observed while Redis is unreachable.
+     *
+     * This must be called before the stash is first used.
+     *
+     * @param serveStale the degraded mode configuration
+     */
+    public void enableServeStale(RedisServeStale serveStale) {
+        this.shadow = new MemoryStash<>(ElementExpiryPolicy.of(serveStale.getMaxStaleness(), serveStale.getUnit()),
+                serveStale.getMaximumSize(), null);
+    }
+
+    /**
+     * Subscribes to the expiry and eviction notifications of Redis on a dedicated
+     * connection, and passes the removed elements of this stash's keyspace to
+     * the provided handler, along with the reason they were removed.
+     *
+     * Notifications are enabled on the server if necessary, and dispatched in
+     * batches on the pool's executor. Redis no longer holds the removed element,
+     * so the handler is given the in-process copy of it if one is held, and null
+     * otherwise. Any in-process copies are discarded.
+     *
+     * This must be called before the stash is first used.
+     *
+     * @param expiryHandler the handler for remotely removed elements
+     */
+    public void enableExpiryNotifications(ElementExpiryHandler<T, K> expiryHandler) {
+        this.expiryHandler = expiryHandler;
+        this.removals = new ConcurrentLinkedQueue<>();
+        this.dispatching = new AtomicBoolean();
+        this.expiryListener = new RedisSubscription(pool, keyspace.getPrefix() + " Expiry", new JedisPubSub() {
+            @Override
+            public void onPSubscribe(String pattern, int subscribedChannels) {
+                // Redis forgets runtime configuration when restarted
+                if (pattern.equals(EXPIRED_EVENTS)) {
+                    pool.execute(RedisStash.this::enableNotifications);
+                }
+            }
+
+            @Override
+            public void onPMessage(String pattern, String channel, String message) {
+                if (!keyspace.owns(message)) {
+                    return;
+                }
+
+                ElementExpiryReason reason = pattern.equals(EXPIRED_EVENTS)
+                        ? ElementExpiryReason.EXPIRE
+                        : ElementExpiryReason.EVICTED;
+
+                removals.add(new AbstractMap.SimpleImmutableEntry<>(message, reason));
+                if (dispatching.compareAndSet(false, true)) {
+                    pool.execute(RedisStash.this::dispatchRemovals);
+                }
+            }
+        }, true, EXPIRED_EVENTS, EVICTED_EVENTS).start();
+    }
+
+    /**
+     * Configures the lease and wait times of {@link #retrieveOrCompute}.
+     * @param singleFlight the distributed loading configuration
+     */
+    public void configureSingleFlight(RedisSingleFlight singleFlight) {
+        this.singleFlight = singleFlight;
+    }
+
+    /**
+     * Traces the time spent acquiring connections, executing commands, and
+     * serializing elements in single-key operations, under the name of this
+     * stash's keyspace prefix.
+     *
+     * @param tracing the tracing configuration
+     */
+    public void enableTracing(StashTracing tracing) {
+        this.tracing = tracing;
+    }
+
+    /**
+     * Configures how full-keyspace reads are partitioned and parallelized.
+     * @param bulkRead the bulk read configuration
+     */
+    public void configureBulkReads(RedisBulkRead bulkRead) {
+        this.bulkRead = bulkRead;
+    }
+
+    /**
+     * Returns the most frequently read keys of this stash, if hot key tracking is enabled.
+     * @return the hottest keys and their estimated reads per window, from hottest to coolest
+     */
+    public Map<K, Long> getHotKeys() {
+        Map<K, Long> hottest = new LinkedHashMap<>();
+        if (hotKeys == null) {
+            return hottest;
+        }
+
+        hotKeys.hottest().forEach((head, frequency) -> hottest.put(keyspace.fromRemote(head), frequency));
+        return hottest;
+    }
+
+    /**
+     * Sends all buffered writes to Redis in a single pipeline,
+     * and waits for them to be applied.
+     *
+     * Writes of a failed flush are kept for the next flush,
+     * unless they have been replaced in the meantime.
+     *
+     * @throws JedisException thrown if the writes could not be sent
+     */
+    public void flush() throws JedisException {
+        if (writeBuffer == null) {
+            return;
+        }
+
+        // Flushes are serialized, so that writes to a key are always applied in order
+        synchronized (writeBuffer) {
+            Map<String, RedisWriteBuffer.Write<T>> writes = writeBuffer.beginFlush();
+            if (writes.isEmpty()) {
+                writeBuffer.endFlush(true);
+                return;
+            }
+
+            boolean success = false;
+            try {
+                Jedis resource = pool.borrow();
+                try {
+                    Pipeline pipeline = resource.pipelined();
+                    writes.forEach((head, write) -> apply(pipeline, head, write));
+                    pipeline.sync();
+                } finally {
+                    resource.close();
+                }
+
+                writes.forEach((head, write) -> {
+                    if (!write.isEviction()) {
+                        remember(head);
+                    }
+                });
+
+                success = true;
+            } finally {
+                writeBuffer.endFlush(success);
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (JedisException e) {
+            logger.except(e, "Failed to flush write-behind buffer");
+        }
+    }
+
+    /**
+     * Applies the buffered write to a key, if any, ahead of the rest of the buffer,
+     * so that a write which bypasses the buffer is not overwritten by an older one.
+     *
+     * @param head the remote key
+     * @throws JedisException thrown if the buffered write could not be applied
+     */
+    private void settle(String head) throws JedisException {
+        if (writeBuffer == null) {
+            return;
+        }
+
+        synchronized (writeBuffer) {
+            RedisWriteBuffer.Write<T> write = writeBuffer.remove(head);
+            if (write == null) {
+                return;
+            }
+
+            Jedis resource = pool.borrow();
+            try {
+                Pipeline pipeline = resource.pipelined();
+                apply(pipeline, head, write);
+                pipeline.sync();
+            } finally {
+                resource.close();
+            }
+
+            if (!write.isEviction()) {
+                remember(head);
+            }
+        }
+    }
+
+    /**
+     * Applies the writes of a batch inside of a single transaction.
+     *
+     * @param batch the batch to commit
+     * @throws JedisException thrown if the transaction failed, or kept being aborted by concurrent writes
+     * @throws NullPointerException thrown if an updated key has no element
+     */
+    private void commit(StashBatch<K, T> batch) throws JedisException, NullPointerException {
+        List<StashBatch.Write<K, T>> writes = batch.getWrites();
+        List<String> heads = new ArrayList<>(writes.size());
+        List<String> values = new ArrayList<>(writes.size());
+        for (StashBatch.Write<K, T> write : writes) {
+            String head = keyspace.construct(write.getKey());
+            settle(head);
+            demote(head);
+            heads.add(head);
+            values.add(write.isEviction() ? null : typeSerializer.adapt(write.getElement()));
+        }
+
+        String[] watched = batch.getUpdatedKeys().stream()
+                .map(keyspace::construct)
+                .toArray(String[]::new);
+
+        int ttl = expiryPolicy.toSeconds();
+        Jedis resource = pool.borrow();
+        try {
+            for (int attempt = 0; ; attempt++) {
+                if (attempt == MAX_BATCH_ATTEMPTS) {
+                    throw new JedisException("Batch was aborted by concurrent writes " + attempt + " times");
+                }
+
+                if (watched.length > 0) {
+                    resource.watch(watched);
+                    Pipeline pipeline = resource.pipelined();
+                    Map<K, Response<Boolean>> exists = new HashMap<>();
+                    for (K key : batch.getUpdatedKeys()) {
+                        exists.put(key, pipeline.exists(keyspace.construct(key)));
+                    }
+
+                    pipeline.sync();
+                    try {
+                        batch.verify(key -> exists.get(key).get());
+                    } catch (NullPointerException e) {
+                        resource.unwatch();
+                        throw e;
+                    }
+                }
+
+                Transaction transaction = resource.multi();
+                for (int i = 0; i < writes.size(); i++) {
+                    if (values.get(i) == null) {
+                        transaction.del(heads.get(i), keyspace.memberTagsKey(heads.get(i)));
+                    } else {
+                        transaction.setex(heads.get(i), ttl, values.get(i));
+                        transaction.del(keyspace.memberTagsKey(heads.get(i)));
+                    }
+                }
+
+                // An aborted transaction replies with no results, as the batch is never empty
+                if (!transaction.exec().isEmpty()) {
+                    break;
+                }
+            }
+        } finally {
+            resource.close();
+        }
+
+        for (int i = 0; i < writes.size(); i++) {
+            if (values.get(i) == null) {
+                demote(heads.get(i));
+            } else {
+                remember(heads.get(i));
+                keep(heads.get(i), writes.get(i).getElement());
+            }
+        }
+    }
+
+    private void apply(Pipeline pipeline, String head, RedisWriteBuffer.Write<T> write) {
+        pipeline.del(keyspace.memberTagsKey(head));
+        if (write.isEviction()) {
+            pipeline.del(head);
+            return;
+        }
+
+        pipeline.set(head, typeSerializer.adapt(write.getElement()));
+        pipeline.expire(head, expiryPolicy.toSeconds());
+    }
+
+    /**
+     * Returns the write epoch of a key, which advances whenever this stash
+     * writes or evicts the key, or any other key sharing its stripe.
+     *
+     * @param head the remote key
+     * @return the current write epoch of the key
+     */
+    private long writeEpoch(String head) {
+        return writeEpochs.get(Math.floorMod(head.hashCode(), WRITE_EPOCH_STRIPES));
+    }
+
+    /**
+     * Copies an element read from Redis into process memory, unless the key
+     * was written since the read began, in which case the element may be stale.
+     *
+     * The epoch is checked again after the copy is stored, so that a write
+     * racing with the copy either sees and discards it, or is seen here.
+     *
+     * @param head the remote key
+     * @param element the element read from Redis
+     * @param epoch the write epoch of the key from before the read
+     */
+    private void promote(String head, T element, long epoch) {
+        if (writeEpoch(head) != epoch) {
+            return;
+        }
+
+        promoted.store(head, element);
+        if (writeEpoch(head) != epoch) {
+            promoted.evict(head);
+        }
+    }
+
+    /**
+     * Discards the in-process copies of a key, both as a promoted
+     * hot key, and as a last known element for degraded mode.
+     *
+     * @param head the remote key
+     */
+    private void demote(String head) {
+        if (promoted != null) {
+            writeEpochs.incrementAndGet(Math.floorMod(head.hashCode(), WRITE_EPOCH_STRIPES));
+            promoted.evict(head);
+        }
+
+        if (shadow != null) {
+            shadow.evict(head);
+        }
+    }
+
+    private void demoteAll() {
+        if (promoted != null) {
+            for (int i = 0; i < WRITE_EPOCH_STRIPES; i++) {
+                writeEpochs.incrementAndGet(i);
+            }
+
+            promoted.evictAll();
+        }
+
+        if (shadow != null) {
+            shadow.evictAll();
+        }
+    }
+
+    /**
+     * Records the last known element of a key, to be served in degraded mode.
+     *
+     * @param head the remote key
+     * @param element the element
+     */
+    private void keep(String head, T element) {
+        if (shadow != null) {
+            shadow.store(head, element);
+        }
+    }
+
+    /**
+     * Returns whether or not a remote key may exist, according to the keyspace's Bloom filter.
+     *
+     * The filter only learns of other clients' writes when it is rebuilt, so it is
+     * only consulted by reads, and never by removals, which would otherwise drop
+     * the invalidation of an element stored elsewhere since the last rebuild.
+     *
+     * @param head the remote key
+     * @return false if the key certainly does not exist, otherwise true
+     */
+    private boolean mightContain(String head) {
+        RedisBloomFilter bloomFilter = keyspace.getBloomFilter();
+        return bloomFilter == null || bloomFilter.mightContain(head);
+    }
+
+    /**
+     * Records a written remote key in the keyspace's Bloom filter.
+     * @param head the remote key
+     */
+    private void remember(String head) {
+        RedisBloomFilter bloomFilter = keyspace.getBloomFilter();
+        if (bloomFilter != null) {
+            bloomFilter.put(head);
+        }
+    }
+
+    /**
+     * Rebuilds the keyspace's Bloom filter from a scan of the keyspace, which
+     * drops evicted and expired keys, and picks up keys written by other clients.
+     */
+    private void rebuildFilter() {
+        RedisBloomFilter bloomFilter = keyspace.getBloomFilter();
+
+        // The initial rebuild may still be running once the scheduled rebuilds start
+        synchronized (bloomFilter) {
+            bloomFilter.beginRebuild();
+            try {
+                ScanParams params = new ScanParams()
+                        .match(keyspace.selectAll())
+                        .count(SCAN_BATCH_SIZE);
+
+                Jedis resource = pool.borrow();
+                try {
+                    String cursor = ScanParams.SCAN_POINTER_START;
+                    do {
+                        ScanResult<String> page = resource.scan(cursor, params);
+                        page.getResult().forEach(bloomFilter::put);
+                        cursor = page.getStringCursor();
+                    } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+                } finally {
+                    resource.close();
+                }
+
+                bloomFilter.completeRebuild();
+            } catch (JedisException e) {
+                bloomFilter.abortRebuild();
+                logger.except(e, "Failed to rebuild Bloom filter");
+            }
+        }
+    }
+
+    /**
+     * Reads and decodes a partition of remote keys on a connection of its own,
+     * through pipelined binary MGETs of at most the batch size.
+     *
+     * @param heads the remote keys of the partition
+     * @param batchSize the maximum amount of keys per MGET
+     * @param decoder converts the raw bytes of elements
+     * @return the elements of the partition which still exist
+     */
+    private <V> Map<K, V> retrievePartition(List<String> heads, int batchSize, Function<byte[], V> decoder)
+            throws JedisException {
+        List<Response<List<byte[]>>> responses = new ArrayList<>();
+        Jedis resource = pool.borrow();
+        try {
+            Pipeline pipeline = resource.pipelined();
+            for (int i = 0; i < heads.size(); i += batchSize) {
+                List<String> batch = heads.subList(i, Math.min(heads.size(), i + batchSize));
+                responses.add(pipeline.mget(SafeEncoder.encodeMany(batch.toArray(new String[0]))));
+            }
+
+            pipeline.sync();
+        } finally {
+            resource.close();
+        }
+
+        Map<K, V> results = new HashMap<>(heads.size() * 4 / 3 + 1);
+        int index = 0;
+        for (Response<List<byte[]>> response : responses) {
+            for (byte[] result : response.get()) {
+                String head = heads.get(index++);
+                if (result == null || result.length == 0) {
+                    continue;
+                }
+
+                results.put(keyspace.fromRemote(head), decoder.apply(result));
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Loads an element while holding it's lease, renewing the lease until the
+     * element has been stored, and releasing it afterwards, even if loading failed.
+     */
+    private T computeUnderLease(K key, Function<K, T> loader, String lease, String token, long leaseMillis)
+            throws JedisException {
+        ScheduledFuture<?> renewal = pool.schedule(() -> {
+            try {
+                Jedis resource = pool.borrow();
+                try {
+                    Object renewed = RENEW_LEASE.eval(resource,
+                            Collections.singletonList(lease),
+                            Arrays.asList(token, String.valueOf(leaseMillis)));
+                    if ((Long) renewed == 0) {
+                        logger.info("Lost lease on " + lease + " while loading");
+                    }
+                } finally {
+                    resource.close();
+                }
+            } catch (JedisException e) {
+                logger.except(e, "Failed to renew lease on " + lease);
+            }
+        }, Math.max(1, leaseMillis / 3), TimeUnit.MILLISECONDS);
+
+        try {
+            // The element may have been stored by the previous lease holder just before its release
+            T element = retrieveStored(key);
+            if (element == null) {
+                element = loader.apply(key);
+                if (element != null) {
+                    store(key, element);
+
+                    // Waiting nodes read from Redis as soon as the lease is released
+                    settle(keyspace.construct(key));
+                }
+            }
+
+            return element;
+        } finally {
+            renewal.cancel(false);
+            Jedis resource = pool.borrow();
+            try {
+                RELEASE_LEASE.eval(resource, Collections.singletonList(lease), Collections.singletonList(token));
+            } finally {
+                resource.close();
+            }
+        }
+    }
+
+    /**
+     * Starts listening for lease releases of this stash's keyspace, if not yet listening.
+     */
+    private synchronized void listenForLeases() {
+        if (leaseListener != null) {
+            return;
+        }
+
+        this.leaseWaiters = new ConcurrentHashMap<>();
+        this.leaseListener = new RedisSubscription(pool, keyspace.getPrefix() + " Leases", new JedisPubSub() {
+            @Override
+            public void onPMessage(String pattern, String channel, String message) {
+                CompletableFuture<Void> released = leaseWaiters.remove(channel);
+                if (released != null) {
+                    released.complete(null);
+                }
+            }
+        }, true, keyspace.selectLeases()).start();
+
+        // Holders which die without announcing a release leave their waiters behind until the lease runs out
+        long leaseMillis = singleFlight.getUnit().toMillis(singleFlight.getLeaseTime());
+        this.leaseSweeper = pool.schedule(() -> {
+            long now = System.currentTimeMillis();
+            leaseWaiters.values().removeIf(waiter -> {
+                if (!waiter.isExpired(now)) {
+                    return false;
+                }
+
+                waiter.complete(null);
+                return true;
+            });
+        }, Math.max(1, leaseMillis), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Retrieves an element which may have been stored by another client,
+     * bypassing the keyspace's Bloom filter, and records it in the filter if found.
+     *
+     * @param key the key of the element
+     * @throws JedisException thrown if Redis could not be reached
+     * @return the cached element, or null if it does not exist
+     */
+    private T retrieveStored(K key) throws JedisException {
+        T element = retrieve(key, false);
+        if (element != null) {
+            remember(keyspace.construct(key));
+        }
+
+        return element;
+    }
+
+    /**
+     * Adds expired and evicted key events to the server's keyspace notification
+     * settings, keeping any other events which are already enabled.
+     */
+    private void enableNotifications() {
+        try {
+            Jedis resource = pool.borrow();
+            try {
+                List<String> config = resource.configGet(NOTIFY_KEYSPACE_EVENTS);
+                String events = config.size() < 2 ? "" : config.get(1);
+                String missing = "";
+                if (!events.contains("E")) {
+                    missing += "E";
+                }
+
+                if (!events.contains("A") && !events.contains("x")) {
+                    missing += "x";
+                }
+
+                if (!events.contains("A") && !events.contains("e")) {
+                    missing += "e";
+                }
+
+                if (!missing.isEmpty()) {
+                    resource.configSet(NOTIFY_KEYSPACE_EVENTS, events + missing);
+                }
+            } finally {
+                resource.close();
+            }
+        } catch (JedisException e) {
+            logger.except(e, "Failed to enable keyspace notifications, they must be enabled on the server");
+        }
+    }
+
+    /**
+     * Passes all queued remote removals to the expiry handler, until none are left.
+     */
+    private void dispatchRemovals() {
+        do {
+            long now = System.currentTimeMillis();
+            Map.Entry<String, ElementExpiryReason> removal;
+            while ((removal = removals.poll()) != null) {
+                String head = removal.getKey();
+                T element = shadow == null ? null : shadow.retrieve(head);
+                if (element == null && promoted != null) {
+                    element = promoted.retrieve(head);
+                }
+
+                demote(head);
+                try {
+                    expiryHandler.onExpire(keyspace.fromRemote(head), element, removal.getValue(), now);
+                } catch (RuntimeException e) {
+                    logger.except(e, "Exception handling removal of " + head);
+                }
+            }
+
+            // Removals queued after draining, but before the flag is cleared, are picked up by the loop condition
+            dispatching.set(false);
+        } while (!removals.isEmpty() && dispatching.compareAndSet(false, true));
+    }
+
+    /**
+     * Reads the current generation of this stash's keyspace from Redis.
+     */
+    private void syncGeneration() {
+        try {
+            String generation;
+            Jedis resource = pool.borrow();
+            try {
+                generation = resource.get(keyspace.generationKey());
+            } finally {
+                resource.close();
+            }
+
+            if (generation != null) {
+                keyspace.advanceGeneration(Long.parseLong(generation));
+            }
+        } catch (JedisException e) {
+            logger.except(e, "Failed to sync keyspace generation");
+        }
+    }
+
+    /**
+     * Unlinks all remaining keys of a previous generation.
+     * @param generation the generation to reclaim
+     */
+    private void reclaimGeneration(long generation) {
+        try {
+            long removed = evictScanned(RedisKeyFilter.pattern("*"), keyspace.selectGeneration(generation));
+            logger.info("Reclaimed " + removed + " elements from generation " + generation);
+        } catch (JedisException e) {
+            logger.except(e, "Failed to reclaim generation " + generation);
+        }
+    }
+
+    /**
+     * Marks a remote key as read, so that its expiry is
+     * refreshed by the next batched refresh.
+     *
+     * Touches are dropped once too many keys are pending,
+     * rather than letting the pending set grow without bound.
+     *
+     * @param head the remote key
+     */
+    private void touch(String head) {
+        if (touchedKeys == null || touchedKeys.size() >= MAX_TOUCHED_KEYS) {
+            return;
+        }
+
+        touchedKeys.add(head);
+    }
+
+    /**
+     * Refreshes the expiry of all touched keys in pipelined batches.
+     */
+    private void refreshExpiry() {
+        if (touchedKeys.isEmpty()) {
+            return;
+        }
+
+        List<String> pending = new ArrayList<>();
+        Iterator<String> iterator = touchedKeys.iterator();
+        while (iterator.hasNext()) {
+            pending.add(iterator.next());
+            iterator.remove();
+        }
+
+        long ttl = expiryPolicy.toMillis();
+        try {
+            Jedis resource = pool.borrow();
+            try {
+                List<String> args = Arrays.asList(String.valueOf(ttl), keyspace.tagKey(""));
+                for (int i = 0; i < pending.size(); i += REFRESH_BATCH_SIZE) {
+                    // Elements are refreshed along with their tags, and the sets of those tags
+                    List<String> elements = new ArrayList<>();
+                    Pipeline pipeline = resource.pipelined();
+                    for (String head : pending.subList(i, Math.min(pending.size(), i + REFRESH_BATCH_SIZE))) {
+                        if (!keyspace.owns(head)) {
+                            pipeline.pexpire(head, ttl);
+                            continue;
+                        }
+
+                        elements.add(head);
+                        elements.add(keyspace.memberTagsKey(head));
+                    }
+
+                    pipeline.sync();
+                    if (!elements.isEmpty()) {
+                        REFRESH_EXPIRY.eval(resource, elements, args);
+                    }
+                }
+            } finally {
+                resource.close();
+            }
+        } catch (JedisException e) {
+            logger.except(e, "Failed to refresh expiry of " + pending.size() + " elements");
+        }
+    }
+
+    /**
+     * Completed once the lease a node is waiting on is released,
+     * and dropped once the lease would have run out.
+     */
+    private static class LeaseWaiter extends CompletableFuture<Void> {
+
+        private final long expiresAt;
+
+        private LeaseWaiter(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+
+    }
+
 }
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.redis;
+
+import java.util.concurrent.TimeUnit;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * The configuration of the write-behind mode of a {@link RedisStash}.
+ *
+ * In write-behind mode, writes are held in a bounded buffer, where later
+ * writes to a key replace earlier ones, and sent to Redis in pipelined
+ * batches once per interval, or sooner if the buffer fills up.
+ */
+@Getter
+@AllArgsConstructor(staticName = "of")
+public class RedisWriteBehind {
+
+    public static final RedisWriteBehind DEFAULT = of(10000, 100, TimeUnit.MILLISECONDS);
+
+    private int capacity;
+    private long interval;
+    private TimeUnit unit;
+
+}
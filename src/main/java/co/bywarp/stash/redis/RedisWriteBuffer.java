@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.redis;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * A bounded buffer of pending writes for the write-behind mode of a {@link RedisStash}.
+ *
+ * Pending writes are coalesced by remote key, so that only the last write
+ * to a key is sent. Writes which are being flushed stay visible to lookups
+ * until the flush completes, so that readers never observe a write
+ * disappearing between the buffer and Redis.
+ *
+ * @param <T> the element type
+ */
+class RedisWriteBuffer<T> {
+
+    private final int capacity;
+    private final ReentrantLock lock;
+    private final Condition notFull;
+
+    private Map<String, Write<T>> pending;
+    private Map<String, Write<T>> flushing;
+
+    RedisWriteBuffer(int capacity) {
+        this.capacity = capacity;
+        this.lock = new ReentrantLock();
+        this.notFull = lock.newCondition();
+        this.pending = new LinkedHashMap<>();
+        this.flushing = new LinkedHashMap<>();
+    }
+
+    /**
+     * Buffers a write, replacing any pending write to the same key. If the buffer
+     * is full, the provided callback is run and the caller waits for room.
+     *
+     * @param head the remote key
+     * @param write the write
+     * @param onFull the callback which starts a flush
+     * @param timeoutMillis the maximum time to wait for room
+     * @throws JedisException thrown if no room was made in time
+     */
+    void put(String head, Write<T> write, Runnable onFull, long timeoutMillis) throws JedisException {
+        lock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (pending.size() >= capacity && !pending.containsKey(head)) {
+                if (remaining <= 0) {
+                    throw new JedisException("Write-behind buffer is full");
+                }
+
+                onFull.run();
+                remaining = notFull.awaitNanos(remaining);
+            }
+
+            pending.put(head, write);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JedisException("Interrupted while waiting for write-behind buffer", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the latest unflushed write to a key.
+     * @param head the remote key
+     * @return the write, or null if there is none
+     */
+    Write<T> get(String head) {
+        lock.lock();
+        try {
+            Write<T> write = pending.get(head);
+            return write != null ? write : flushing.get(head);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the pending write to a key, so that it can be applied out of band.
+     * @param head the remote key
+     * @return the removed write, or null if there was none
+     */
+    Write<T> remove(String head) {
+        lock.lock();
+        try {
+            Write<T> write = pending.remove(head);
+            notFull.signalAll();
+            return write;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves all pending writes into the flushing state.
+     * @return the writes to flush, in the order they were first buffered
+     */
+    Map<String, Write<T>> beginFlush() {
+        lock.lock();
+        try {
+            this.flushing = pending;
+            this.pending = new LinkedHashMap<>();
+            notFull.signalAll();
+            return flushing;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Completes a flush. The writes of a failed flush are buffered
+     * again, unless they were replaced while being flushed.
+     *
+     * @param success if the flushed writes were applied
+     */
+    void endFlush(boolean success) {
+        lock.lock();
+        try {
+            if (!success) {
+                flushing.forEach(pending::putIfAbsent);
+            }
+
+            this.flushing = new LinkedHashMap<>();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A buffered store of an element, or an eviction if the element is null.
+     * @param <T> the element type
+     */
+    static final class Write<T> {
+
+        private final T element;
+
+        private Write(T element) {
+            this.element = element;
+        }
+
+        static <T> Write<T> store(T element) {
+            return new Write<>(element);
+        }
+
+        static <T> Write<T> evict() {
+            return new Write<>(null);
+        }
+
+        T getElement() {
+            return element;
+        }
+
+        boolean isEviction() {
+            return element == null;
+        }
+
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.redis.pool;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/**
+ * A circuit breaker over the outcomes of borrowed connections.
+ *
+ * While closed, outcomes are counted over a sliding window of the most
+ * recent borrows, and the circuit opens once the failure rate of a full
+ * window reaches the configured rate. While open, borrows are rejected
+ * without touching the network. Once the open duration has passed, the
+ * circuit is half-open, and lets through a limited amount of probes.
+ *
+ * Every borrow is tagged with the epoch of the state it was admitted
+ * under, and its outcome only counts towards that same state, so that
+ * borrows admitted while closed are never taken for probes.
+ */
+class RedisCircuit {
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final RedisCircuitBreaker config;
+    private final long openNanos;
+    private final int maxProbes;
+    private final boolean[] outcomes;
+
+    private State state;
+    private long epoch;
+    private int index;
+    private int calls;
+    private int failures;
+
+    private long openedAt;
+    private int probes;
+    private int succeeded;
+
+    RedisCircuit(RedisCircuitBreaker config) {
+        this.config = config;
+        this.openNanos = config.getUnit().toNanos(config.getOpenDuration());
+        this.maxProbes = Math.max(1, config.getProbes());
+        this.outcomes = new boolean[Math.max(1, config.getWindow())];
+        this.state = State.CLOSED;
+    }
+
+    /**
+     * Admits a borrow, or rejects it if the circuit is open.
+     *
+     * @throws JedisConnectionException thrown if the circuit is open, or all probes of a half-open circuit are in flight
+     * @return the epoch the borrow was admitted under
+     */
+    synchronized long acquire() throws JedisConnectionException {
+        long now = System.nanoTime();
+        if (state == State.CLOSED) {
+            return epoch;
+        }
+
+        if (state == State.OPEN) {
+            if (now - openedAt < openNanos) {
+                throw new JedisConnectionException("Circuit breaker is open");
+            }
+
+            this.state = State.HALF_OPEN;
+            this.epoch++;
+            this.openedAt = now;
+            this.probes = 0;
+            this.succeeded = 0;
+        }
+
+        if (probes >= maxProbes) {
+            // Probes which never report back would otherwise hold the circuit half-open forever
+            if (now - openedAt >= openNanos) {
+                trip(now);
+            }
+
+            throw new JedisConnectionException("Circuit breaker is half-open, and awaiting probes");
+        }
+
+        probes++;
+        return epoch;
+    }
+
+    /**
+     * Withdraws an admitted borrow which was abandoned before reaching Redis.
+     * @param admitted the epoch the borrow was admitted under
+     */
+    synchronized void cancel(long admitted) {
+        if (admitted == epoch && state == State.HALF_OPEN && probes > 0) {
+            probes--;
+        }
+    }
+
+    /**
+     * Records the outcome of an admitted borrow.
+     *
+     * @param admitted the epoch the borrow was admitted under
+     * @param success if the borrow succeeded
+     */
+    synchronized void record(long admitted, boolean success) {
+        // Outcomes of borrows admitted under a previous state are of no interest
+        if (admitted != epoch) {
+            return;
+        }
+
+        switch (state) {
+            case CLOSED:
+                if (calls == outcomes.length) {
+                    if (!outcomes[index]) {
+                        failures--;
+                    }
+                } else {
+                    calls++;
+                }
+
+                outcomes[index] = success;
+                index = (index + 1) % outcomes.length;
+                if (!success) {
+                    failures++;
+                }
+
+                if (calls == outcomes.length && failures >= config.getFailureRate() * calls) {
+                    trip(System.nanoTime());
+                }
+
+                break;
+            case HALF_OPEN:
+                if (!success) {
+                    trip(System.nanoTime());
+                } else if (++succeeded >= maxProbes) {
+                    reset();
+                }
+
+                break;
+            default:
+                break;
+        }
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    private void trip(long now) {
+        this.state = State.OPEN;
+        this.epoch++;
+        this.openedAt = now;
+    }
+
+    private void reset() {
+        this.state = State.CLOSED;
+        this.epoch++;
+        this.index = 0;
+        this.calls = 0;
+        this.failures = 0;
+    }
+
+}
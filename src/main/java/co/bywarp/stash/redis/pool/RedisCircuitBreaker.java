@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.redis.pool;
+
+import java.util.concurrent.TimeUnit;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * The configuration of the circuit breaker of a {@link RedisPool}.
+ *
+ * The breaker trips once the given rate of the most recent borrows has failed,
+ * after which borrows fail immediately for the open duration. It then lets
+ * through the given amount of probes, and closes again once all of them
+ * succeed, or reopens as soon as one of them fails.
+ */
+@Getter
+@AllArgsConstructor(staticName = "of")
+public class RedisCircuitBreaker {
+
+    public static final RedisCircuitBreaker DEFAULT = of(0.5, 20, 5, TimeUnit.SECONDS, 3);
+
+    private double failureRate;
+    private int window;
+    private long openDuration;
+    private TimeUnit unit;
+    private int probes;
+
+}
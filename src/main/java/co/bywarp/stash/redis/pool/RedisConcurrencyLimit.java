@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.redis.pool;
+
+import java.util.concurrent.TimeUnit;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * The configuration of the adaptive concurrency limit of a {@link RedisPool}.
+ *
+ * The limit grows by one for every limit's worth of borrows that are returned
+ * quickly while the pool is busy, and shrinks by a fixed factor whenever a
+ * borrow is held for longer than the tolerated multiple of the lowest
+ * recently observed hold time, or its connection breaks.
+ */
+@Getter
+@AllArgsConstructor(staticName = "of")
+public class RedisConcurrencyLimit {
+
+    public static final RedisConcurrencyLimit DEFAULT = of(16, 64, 50, TimeUnit.MILLISECONDS, 2.0);
+
+    private int initialLimit;
+    private int maxQueue;
+    private long queueTimeout;
+    private TimeUnit unit;
+    private double tolerance;
+
+}
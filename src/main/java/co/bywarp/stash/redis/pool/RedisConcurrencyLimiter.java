@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.redis.pool;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * An additive-increase, multiplicative-decrease concurrency limiter,
+ * driven by how long borrowed connections are held.
+ *
+ * Borrowers beyond the limit wait in a bounded queue for a short time,
+ * and are rejected immediately once the queue is full, so that a slow
+ * Redis server can not tie up every thread of the application.
+ */
+class RedisConcurrencyLimiter {
+
+    private static final int MIN_LIMIT = 1;
+    private static final double BACKOFF = 0.9;
+    private static final long BASELINE_WINDOW = TimeUnit.SECONDS.toNanos(1);
+
+    private final RedisConcurrencyLimit config;
+    private final int maxLimit;
+    private final ReentrantLock lock;
+    private final Condition available;
+
+    private double limit;
+    private int inFlight;
+    private int waiting;
+
+    private long baseline;
+    private long baselineResetAt;
+    private long lastDecrease;
+
+    RedisConcurrencyLimiter(RedisConcurrencyLimit config, int maxLimit) {
+        this.config = config;
+        this.maxLimit = maxLimit;
+        this.lock = new ReentrantLock();
+        this.available = lock.newCondition();
+        this.limit = Math.max(MIN_LIMIT, Math.min(maxLimit, config.getInitialLimit()));
+        this.baseline = Long.MAX_VALUE;
+    }
+
+    /**
+     * Acquires a permit, waiting in the queue if the limit has been reached.
+     *
+     * @throws JedisException thrown if the queue is full, or no permit became available in time
+     * @return the time at which the permit was acquired, in nanoseconds
+     */
+    long acquire() throws JedisException {
+        lock.lock();
+        try {
+            if (inFlight >= (int) limit) {
+                if (waiting >= config.getMaxQueue()) {
+                    throw new JedisException("Concurrency limit of " + (int) limit + " reached");
+                }
+
+                waiting++;
+                try {
+                    long remaining = config.getUnit().toNanos(config.getQueueTimeout());
+                    while (inFlight >= (int) limit) {
+                        if (remaining <= 0) {
+                            throw new JedisException("Timed out waiting for concurrency limit of " + (int) limit);
+                        }
+
+                        remaining = available.awaitNanos(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new JedisException("Interrupted while waiting for concurrency limit", e);
+                } finally {
+                    waiting--;
+                }
+            }
+
+            inFlight++;
+            return System.nanoTime();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases a permit, and adapts the limit to how long it was held.
+     *
+     * @param acquiredAt the time at which the permit was acquired
+     * @param dropped if the connection broke while the permit was held
+     */
+    void release(long acquiredAt, boolean dropped) {
+        long now = System.nanoTime();
+        long held = now - acquiredAt;
+
+        lock.lock();
+        try {
+            boolean busy = inFlight >= limit / 2;
+            inFlight--;
+
+            // The baseline is reset periodically, so that it follows lasting changes in latency
+            if (now >= baselineResetAt) {
+                this.baseline = held;
+                this.baselineResetAt = now + BASELINE_WINDOW;
+            } else {
+                this.baseline = Math.min(baseline, held);
+            }
+
+            if (dropped || held > baseline * config.getTolerance()) {
+                // Back off at most once per hold time, rather than once per slow borrow
+                if (now - lastDecrease > held) {
+                    this.limit = Math.max(MIN_LIMIT, limit * BACKOFF);
+                    this.lastDecrease = now;
+                }
+            } else if (busy) {
+                this.limit = Math.min(maxLimit, limit + 1 / limit);
+                available.signal();
+            }
+
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
@@ -25,6 +25,11 @@ import co.bywarp.stash.redis.RedisStash;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -34,10 +39,13 @@ import java.util.stream.Collectors;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 import redis.clients.jedis.exceptions.JedisException;
 
 public class RedisPool<K, T> implements Closable {
 
+    private static final int MAX_PREWARM_THREADS = 16;
+
     private RedisStash<K, T> host;
     private RedisConnection connection;
     private RedisKeyspace<K> keyspace;
@@ -47,10 +55,24 @@ public class RedisPool<K, T> implements Closable {
     private ScheduledExecutorService executorService;
     private ScheduledFuture<?> resourceAuditor;
 
+    private RedisConcurrencyLimiter limiter;
+    private Map<Jedis, Permit> permits;
+    private RedisCircuit circuit;
+
     public RedisPool(RedisStash<K, T> host) {
+        this(host.getConnection());
         this.host = host;
-        this.connection = host.getConnection();
         this.keyspace = host.getKeyspace();
+    }
+
+    /**
+     * Creates a pool which is not bound to a {@link RedisStash},
+     * for use by stashes with a keyspace of their own.
+     *
+     * @param connection the connection data
+     */
+    public RedisPool(RedisConnection connection) {
+        this.connection = connection;
         this.resources = Collections.synchronizedList(new ArrayList<>());
 
         JedisPoolConfig config = new JedisPoolConfig();
@@ -58,17 +80,52 @@ public class RedisPool<K, T> implements Closable {
         config.setMaxWaitMillis(connection.getTimeoutMillis());
         config.setTestOnBorrow(connection.isTestOnBorrow());
         config.setBlockWhenExhausted(connection.isBlockWhenExhausted());
+        config.setMinIdle(connection.getPrewarmConnections());
+
+        if (connection.getConcurrencyLimit() != null) {
+            this.limiter = new RedisConcurrencyLimiter(connection.getConcurrencyLimit(), connection.getPoolSize());
+        }
+
+        if (connection.getCircuitBreaker() != null) {
+            this.circuit = new RedisCircuit(connection.getCircuitBreaker());
+        }
+
+        if (limiter != null || circuit != null) {
+            this.permits = new ConcurrentHashMap<>();
+        }
 
         this.pool = new JedisPool(config,
                 connection.getHost(),
                 connection.getPort(),
                 connection.getConnectTimeout(),
-                connection.isAuth() ? connection.getPassword() : null);
+                connection.isAuth() ? connection.getPassword() : null) {
+            {
+                // Permits are released as connections are passivated or destroyed by the pool
+                initPool(config, new RedisPoolFactory(internalPool.getFactory(), RedisPool.this::released));
+            }
+        };
 
         this.executorService = Executors.newScheduledThreadPool(4);
         this.resourceAuditor = executorService.scheduleAtFixedRate(() -> {
-            // Remove all dead resources
-            resources.removeIf(RedisPoolResource::isDead);
+            // Return all dead resources to pool, so that their permits are released, and remove them
+            List<RedisPoolResource> dead = resources
+                    .stream()
+                    .filter(RedisPoolResource::isDead)
+                    .collect(Collectors.toList());
+
+            dead.forEach(resource -> {
+                if (resource.getResource() == null) {
+                    return;
+                }
+
+                try {
+                    resource.getResource().close();
+                } catch (JedisException e) {
+                    released(resource.getResource(), true);
+                }
+            });
+
+            dead.forEach(resources::remove);
 
             // Find all resources that have not been closed for 20+ seconds
             List<RedisPoolResource> stale = resources
@@ -93,6 +150,8 @@ public class RedisPool<K, T> implements Closable {
      *     <li>The {@link JedisPool} has exhausted all of it's allotted resources</li>
      *     <li>The returned {@link Jedis} resource from the pool is null</li>
      *     <li>The returned {@link Jedis} resource from the pool is dead (not connected)</li>
+     *     <li>The concurrency limit has been reached, and no permit became available in time</li>
+     *     <li>The circuit breaker is open</li>
      * </ul>
      *
      * @return the borrowed {@link Jedis} object.
@@ -106,20 +165,199 @@ public class RedisPool<K, T> implements Closable {
             throw new JedisException("Pool has no available resources at this time");
         }
 
-        Jedis jedis = pool.getResource();
-        if (jedis == null) {
-            throw new JedisException("Failed to get resource from pool (Is it exhausted?)");
+        long admitted = circuit == null ? 0 : circuit.acquire();
+        long acquiredAt;
+        try {
+            acquiredAt = limiter == null ? 0 : limiter.acquire();
+        } catch (JedisException e) {
+            if (circuit != null) {
+                circuit.cancel(admitted);
+            }
+
+            throw e;
         }
 
-        if (!jedis.isConnected()) {
-            jedis.close();
-            throw new JedisException("Pool resource is not connected.");
+        Jedis jedis;
+        try {
+            jedis = pool.getResource();
+            if (jedis == null) {
+                throw new JedisException("Failed to get resource from pool (Is it exhausted?)");
+            }
+
+            if (!jedis.isConnected()) {
+                jedis.close();
+                throw new JedisConnectionException("Pool resource is not connected.");
+            }
+        } catch (JedisException e) {
+            if (limiter != null) {
+                limiter.release(acquiredAt, true);
+            }
+
+            // Only failures to reach Redis count against the circuit, not an exhausted pool
+            if (circuit != null) {
+                if (e instanceof JedisConnectionException) {
+                    circuit.record(admitted, false);
+                } else {
+                    circuit.cancel(admitted);
+                }
+            }
+
+            throw e;
+        }
+
+        if (permits != null) {
+            permits.put(jedis, new Permit(acquiredAt, admitted));
         }
 
         resources.add(RedisPoolResource.of(jedis, connection.getResourceTimeout()));
         return jedis;
     }
 
+    /**
+     * Opens the configured amount of pre-warmed connections in parallel, validates each
+     * of them with a PING, and returns them to the pool as idle connections, so that
+     * the first commands after startup do not pay for connecting and authenticating.
+     *
+     * Connections are held until all of them are open, so that the pool
+     * can not hand the same connection out twice while warming up.
+     *
+     * @throws JedisException thrown if any of the connections could not be opened or validated
+     */
+    public void prewarm() throws JedisException {
+        int amount = connection.getPrewarmConnections();
+        if (amount <= 0) {
+            return;
+        }
+
+        ExecutorService connector = Executors.newFixedThreadPool(Math.min(amount, MAX_PREWARM_THREADS));
+        List<CompletableFuture<Jedis>> opening = new ArrayList<>(amount);
+        for (int i = 0; i < amount; i++) {
+            opening.add(CompletableFuture.supplyAsync(() -> {
+                Jedis jedis = pool.getResource();
+                try {
+                    if (!"PONG".equals(jedis.ping())) {
+                        throw new JedisConnectionException("Pool resource failed validation");
+                    }
+                } catch (JedisException e) {
+                    jedis.close();
+                    throw e;
+                }
+
+                return jedis;
+            }, connector));
+        }
+
+        connector.shutdown();
+        try {
+            CompletableFuture.allOf(opening.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            // Failures are reported below, once every opened connection has been returned
+        }
+
+        JedisException failure = null;
+        for (CompletableFuture<Jedis> future : opening) {
+            try {
+                future.join().close();
+            } catch (CompletionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof JedisException
+                            ? (JedisException) e.getCause()
+                            : new JedisException("Failed to pre-warm pool", e.getCause());
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Returns the current concurrency limit of this pool.
+     * @return the amount of connections which may be borrowed at once
+     */
+    public int getConcurrencyLimit() {
+        return limiter == null ? connection.getPoolSize() : limiter.getLimit();
+    }
+
+    /**
+     * Returns whether or not borrows are currently rejected by the circuit breaker.
+     * @return true if the circuit breaker is open
+     */
+    public boolean isCircuitOpen() {
+        return circuit != null && circuit.getState() == RedisCircuit.State.OPEN;
+    }
+
+    /**
+     * Releases the concurrency permit of a connection which was returned to the pool,
+     * and records the outcome of the borrow with the circuit breaker.
+     *
+     * @param resource the returned connection
+     * @param broken if the connection broke while borrowed
+     */
+    private void released(Jedis resource, boolean broken) {
+        if (permits == null) {
+            return;
+        }
+
+        // Connections which fail to reset are returned twice, but only hold one permit
+        Permit permit = permits.remove(resource);
+        if (permit == null) {
+            return;
+        }
+
+        if (circuit != null) {
+            circuit.record(permit.admitted, !broken);
+        }
+
+        if (limiter != null) {
+            limiter.release(permit.acquiredAt, broken);
+        }
+    }
+
+    /**
+     * Opens a connection which is not managed by this pool, for use by
+     * long-lived, blocking commands such as subscriptions.
+     *
+     * The returned connection has no read timeout, and must be
+     * closed by the caller once it is no longer needed.
+     *
+     * @throws JedisException thrown if the connection could not be established
+     * @return the dedicated {@link Jedis} connection
+     */
+    public Jedis dedicated() throws JedisException {
+        Jedis jedis = new Jedis(connection.getHost(),
+                connection.getPort(),
+                connection.getConnectTimeout(),
+                0);
+
+        if (connection.isAuth()) {
+            jedis.auth(connection.getPassword());
+        }
+
+        return jedis;
+    }
+
+    /**
+     * Runs a one-off task on this pool's executor.
+     * @param task the task to run
+     */
+    public void execute(Runnable task) {
+        executorService.execute(task);
+    }
+
+    /**
+     * Schedules a recurring task on this pool's executor.
+     *
+     * @param task the task to run
+     * @param period the delay between runs
+     * @param unit the unit of the provided period
+     * @return the scheduled task, which is cancelled when this pool is closed
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long period, TimeUnit unit) {
+        return executorService.scheduleAtFixedRate(task, period, period, unit);
+    }
+
     @Override
     public void close() {
         this.resourceAuditor.cancel(true);
@@ -133,4 +371,20 @@ public class RedisPool<K, T> implements Closable {
         this.pool.close();
     }
 
+    /**
+     * The concurrency permit of a borrowed connection, and the
+     * circuit breaker epoch its borrow was admitted under.
+     */
+    private static class Permit {
+
+        private final long acquiredAt;
+        private final long admitted;
+
+        private Permit(long acquiredAt, long admitted) {
+            this.acquiredAt = acquiredAt;
+            this.admitted = admitted;
+        }
+
+    }
+
 }
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.redis.pool;
+
+import java.util.function.BiConsumer;
+
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.PooledObjectFactory;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * A connection factory which delegates to the pool's own factory, and reports
+ * every borrowed connection that leaves the borrower's hands, either by being
+ * passivated on a normal return, or by being destroyed once it broke.
+ */
+class RedisPoolFactory implements PooledObjectFactory<Jedis> {
+
+    private final PooledObjectFactory<Jedis> delegate;
+    private final BiConsumer<Jedis, Boolean> released;
+
+    /**
+     * @param delegate the factory which creates and validates connections
+     * @param released notified with each returned connection, and whether it broke
+     */
+    RedisPoolFactory(PooledObjectFactory<Jedis> delegate, BiConsumer<Jedis, Boolean> released) {
+        this.delegate = delegate;
+        this.released = released;
+    }
+
+    @Override
+    public PooledObject<Jedis> makeObject() throws Exception {
+        return delegate.makeObject();
+    }
+
+    @Override
+    public void destroyObject(PooledObject<Jedis> object) throws Exception {
+        try {
+            delegate.destroyObject(object);
+        } finally {
+            released.accept(object.getObject(), true);
+        }
+    }
+
+    @Override
+    public boolean validateObject(PooledObject<Jedis> object) {
+        return delegate.validateObject(object);
+    }
+
+    @Override
+    public void activateObject(PooledObject<Jedis> object) throws Exception {
+        delegate.activateObject(object);
+    }
+
+    @Override
+    public void passivateObject(PooledObject<Jedis> object) throws Exception {
+        try {
+            delegate.passivateObject(object);
+        } finally {
+            released.accept(object.getObject(), false);
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.redis.pool;
+
+import co.bywarp.lightkit.util.Closable;
+import co.bywarp.lightkit.util.logger.Logger;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Runs a {@link JedisPubSub} listener on a dedicated connection and thread,
+ * resubscribing with a fixed delay whenever the connection is lost.
+ */
+public class RedisSubscription implements Closable {
+
+    private static final long RECONNECT_DELAY = 1000;
+
+    private Logger logger;
+    private RedisPool<?, ?> pool;
+    private JedisPubSub listener;
+    private boolean pattern;
+    private String[] channels;
+
+    private Thread thread;
+    private volatile boolean running;
+
+    public RedisSubscription(RedisPool<?, ?> pool, String name, JedisPubSub listener, boolean pattern, String... channels) {
+        this.logger = new Logger("Redis Subscription " + name);
+        this.pool = pool;
+        this.listener = listener;
+        this.pattern = pattern;
+        this.channels = channels;
+        this.thread = new Thread(this::subscribe, "Stash Subscription " + name);
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Starts listening on this subscription's dedicated thread.
+     * @return this subscription
+     */
+    public RedisSubscription start() {
+        this.running = true;
+        this.thread.start();
+        return this;
+    }
+
+    private void subscribe() {
+        while (running) {
+            try (Jedis resource = pool.dedicated()) {
+                if (pattern) {
+                    resource.psubscribe(listener, channels);
+                } else {
+                    resource.subscribe(listener, channels);
+                }
+            } catch (JedisException e) {
+                if (!running) {
+                    return;
+                }
+
+                logger.except(e, "Lost subscription, reconnecting in " + RECONNECT_DELAY + "ms");
+            }
+
+            try {
+                Thread.sleep(RECONNECT_DELAY);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        this.running = false;
+        if (listener.isSubscribed()) {
+            if (pattern) {
+                listener.punsubscribe();
+            } else {
+                listener.unsubscribe();
+            }
+        }
+
+        this.thread.interrupt();
+    }
+
+}
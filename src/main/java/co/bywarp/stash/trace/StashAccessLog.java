@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.trace;
+
+import java.nio.file.Path;
+import java.util.function.ToIntFunction;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+/**
+ * The configuration of an access trace, which captures a sample of the
+ * accesses made to a stash into a rotating set of files in a directory.
+ *
+ * Accesses are sampled by key rather than by request, so every access to a
+ * sampled key is captured, and a trace replays like a scaled down copy of
+ * the whole workload. Keys are only ever written as a hash.
+ *
+ * @param <T> the element type
+ */
+@Getter
+public class StashAccessLog<T> {
+
+    private static final long DEFAULT_FILE_SIZE = 64L * 1024 * 1024;
+    private static final int DEFAULT_FILES = 8;
+
+    private Path directory;
+    private double sampleRate;
+    private long maxFileSize;
+    private int maxFiles;
+    private ToIntFunction<T> sizer;
+
+    @Getter(AccessLevel.NONE)
+    private long threshold;
+
+    private StashAccessLog(Path directory, double sampleRate, long maxFileSize, int maxFiles, ToIntFunction<T> sizer) {
+        this.directory = directory;
+        this.sampleRate = Math.max(0, Math.min(1, sampleRate));
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = Math.max(1, maxFiles);
+        this.sizer = sizer;
+        this.threshold = (long) (this.sampleRate * (1L << 32));
+    }
+
+    /**
+     * Creates an access trace configuration, which keeps up
+     * to 8 files of at most 64 MiB each.
+     *
+     * @param directory the directory to write trace files to
+     * @param sampleRate the fraction of keys to capture, between 0 and 1
+     * @param sizer estimates the size of an element, in bytes
+     * @param <T> the element type
+     * @return the access trace configuration
+     */
+    public static <T> StashAccessLog<T> of(Path directory, double sampleRate, ToIntFunction<T> sizer) {
+        return of(directory, sampleRate, DEFAULT_FILE_SIZE, DEFAULT_FILES, sizer);
+    }
+
+    /**
+     * Creates an access trace configuration.
+     *
+     * @param directory the directory to write trace files to
+     * @param sampleRate the fraction of keys to capture, between 0 and 1
+     * @param maxFileSize the size at which a trace file is rotated, in bytes
+     * @param maxFiles the amount of trace files to keep, deleting the oldest
+     * @param sizer estimates the size of an element, in bytes
+     * @param <T> the element type
+     * @return the access trace configuration
+     */
+    public static <T> StashAccessLog<T> of(Path directory,
+                                           double sampleRate,
+                                           long maxFileSize,
+                                           int maxFiles,
+                                           ToIntFunction<T> sizer) {
+        return new StashAccessLog<>(directory, sampleRate, maxFileSize, maxFiles, sizer);
+    }
+
+    /**
+     * Hashes a key, spreading it's hash code so that
+     * the sampled keys are evenly distributed.
+     *
+     * @param key the key
+     * @return the hashed key
+     */
+    static int hash(Object key) {
+        int hash = key.hashCode() * 0x9E3779B9;
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        return hash ^ (hash >>> 13);
+    }
+
+    /**
+     * Returns whether or not accesses to a key should be captured.
+     * @param keyHash the hashed key
+     * @return if the key is sampled
+     */
+    boolean samples(int keyHash) {
+        return (keyHash & 0xFFFFFFFFL) < threshold;
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.trace;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import lombok.Getter;
+
+/**
+ * Reads the trace files in a directory back in the order they were written.
+ */
+@Getter
+class StashAccessReader {
+
+    private static final String PREFIX = "access-";
+    private static final String SUFFIX = ".trace";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final List<Path> files;
+    private final double sampleRate;
+
+    /**
+     * Opens the trace in the provided directory.
+     *
+     * @param directory the trace directory
+     * @throws IOException thrown if the trace is empty or could not be read
+     */
+    StashAccessReader(Path directory) throws IOException {
+        this.files = files(directory);
+        if (files.isEmpty()) {
+            throw new IOException("No trace files in " + directory);
+        }
+
+        this.sampleRate = readHeader(files.get(0)).getDouble();
+    }
+
+    static String name(long id) {
+        return String.format(PREFIX + "%016d" + SUFFIX, id);
+    }
+
+    static long id(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    static List<Path> files(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return Collections.emptyList();
+        }
+
+        try (Stream<Path> stream = Files.list(directory)) {
+            return stream
+                    .filter(path -> {
+                        String name = path.getFileName().toString();
+                        return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+                    })
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Passes every access in the trace to the provided consumer. A record
+     * which was only partially written when the trace was read is skipped.
+     *
+     * @param consumer the consumer of accesses
+     * @throws IOException thrown if a trace file could not be read
+     */
+    void forEach(Consumer<StashAccessRecord> consumer) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        for (Path file : files) {
+            readHeader(file);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                channel.position(StashAccessWriter.HEADER_SIZE);
+                buffer.clear();
+                while (channel.read(buffer) > 0) {
+                    buffer.flip();
+                    while (buffer.remaining() >= StashAccessRecord.SIZE) {
+                        consumer.accept(StashAccessRecord.read(buffer));
+                    }
+
+                    buffer.compact();
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer readHeader(Path file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(StashAccessWriter.HEADER_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            int read;
+            do {
+                read = channel.read(header);
+            } while (read > 0 && header.hasRemaining());
+        }
+
+        header.flip();
+        if (header.remaining() < StashAccessWriter.HEADER_SIZE
+                || header.getInt() != StashAccessWriter.MAGIC
+                || header.getInt() != StashAccessWriter.VERSION) {
+            throw new IOException("Invalid trace file " + file);
+        }
+
+        return header;
+    }
+
+}
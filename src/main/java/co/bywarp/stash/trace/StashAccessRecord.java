@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.trace;
+
+import java.nio.ByteBuffer;
+
+import lombok.Getter;
+
+/**
+ * A single sampled access, as it is laid out in a trace file:
+ * <pre>
+ * [long timestamp][int keyHash][byte operation][int valueSize]
+ * </pre>
+ * The value size is -1 for a retrieval which missed, and 0
+ * for operations which do not carry an element.
+ */
+@Getter
+class StashAccessRecord {
+
+    static final int SIZE = 17;
+
+    private static final StashAccessOperation[] OPERATIONS = StashAccessOperation.values();
+
+    private final long timestamp;
+    private final int keyHash;
+    private final StashAccessOperation operation;
+    private final int valueSize;
+
+    StashAccessRecord(long timestamp, int keyHash, StashAccessOperation operation, int valueSize) {
+        this.timestamp = timestamp;
+        this.keyHash = keyHash;
+        this.operation = operation;
+        this.valueSize = valueSize;
+    }
+
+    void write(ByteBuffer buffer) {
+        buffer.putLong(timestamp)
+                .putInt(keyHash)
+                .put((byte) operation.ordinal())
+                .putInt(valueSize);
+    }
+
+    static StashAccessRecord read(ByteBuffer buffer) {
+        return new StashAccessRecord(buffer.getLong(), buffer.getInt(), OPERATIONS[buffer.get()], buffer.getInt());
+    }
+
+}
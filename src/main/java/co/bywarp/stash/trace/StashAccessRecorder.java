@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.trace;
+
+import co.bywarp.stash.StashBatch;
+import co.bywarp.stash.StashProvider;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+/**
+ * A {@link StashProvider} which captures a sample of the accesses made to
+ * another provider into an access trace, which can later be replayed by a
+ * {@link StashSimulator} to size the stash and tune it's expiry policy.
+ *
+ * Bulk evictions by predicate or tag are passed through without being
+ * captured, as the keys they affect are not known to the recorder.
+ */
+@Getter
+public class StashAccessRecorder<K, T> implements StashProvider<K, T> {
+
+    private StashProvider<K, T> delegate;
+    private StashAccessLog<T> log;
+
+    @Getter(AccessLevel.NONE)
+    private StashAccessWriter writer;
+
+    /**
+     * Wraps a provider, capturing it's accesses into the provided trace.
+     *
+     * @param delegate the provider to capture accesses to
+     * @param log the access trace configuration
+     * @throws UncheckedIOException thrown if the trace directory could not be written to
+     */
+    public StashAccessRecorder(StashProvider<K, T> delegate, StashAccessLog<T> log) {
+        this.delegate = delegate;
+        this.log = log;
+        try {
+            this.writer = new StashAccessWriter(log);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the amount of accesses which were sampled, but dropped
+     * because they arrived faster than they could be written.
+     *
+     * @return the amount of dropped accesses
+     */
+    public long getDropped() {
+        return writer.getDropped().get();
+    }
+
+    @Override
+    public T retrieve(K key) {
+        T element = delegate.retrieve(key);
+        captureRetrieval(key, element);
+        return element;
+    }
+
+    @Override
+    public T retrieveOrElse(K key, T orElse) {
+        T element = delegate.retrieveOrElse(key, orElse);
+        captureRetrieval(key, element == orElse ? null : element);
+        return element;
+    }
+
+    @Override
+    public T retrieveOrSet(K key, T newValue) {
+        T element = delegate.retrieveOrSet(key, newValue);
+        if (element == null || element == newValue) {
+            captureRetrieval(key, null);
+            capture(key, StashAccessOperation.STORE, newValue);
+        } else {
+            captureRetrieval(key, element);
+        }
+
+        return element;
+    }
+
+    @Override
+    public Map<K, T> retrieveAll() {
+        return delegate.retrieveAll();
+    }
+
+    @Override
+    public T store(K key, T element) {
+        T result = delegate.store(key, element);
+        capture(key, StashAccessOperation.STORE, element);
+        return result;
+    }
+
+    @Override
+    public T store(K key, T element, String... tags) {
+        T result = delegate.store(key, element, tags);
+        capture(key, StashAccessOperation.STORE, element);
+        return result;
+    }
+
+    @Override
+    public T update(K key, T element) throws NullPointerException {
+        T result = delegate.update(key, element);
+        capture(key, StashAccessOperation.STORE, element);
+        return result;
+    }
+
+    @Override
+    public boolean evict(K key) {
+        boolean evicted = delegate.evict(key);
+        capture(key, StashAccessOperation.EVICT, null);
+        return evicted;
+    }
+
+    @Override
+    public boolean evict(K key, T element) {
+        boolean evicted = delegate.evict(key, element);
+        if (evicted) {
+            capture(key, StashAccessOperation.EVICT, null);
+        }
+
+        return evicted;
+    }
+
+    @Override
+    public boolean compareAndSet(K key, T expected, T element) {
+        boolean replaced = delegate.compareAndSet(key, expected, element);
+        if (replaced) {
+            capture(key, StashAccessOperation.STORE, element);
+        }
+
+        return replaced;
+    }
+
+    @Override
+    public boolean compareAndEvict(K key, T expected) {
+        boolean evicted = delegate.compareAndEvict(key, expected);
+        if (evicted) {
+            capture(key, StashAccessOperation.EVICT, null);
+        }
+
+        return evicted;
+    }
+
+    @Override
+    public void evictIf(BiPredicate<K, T> predicate) {
+        delegate.evictIf(predicate);
+    }
+
+    @Override
+    public void evictKeysIf(Predicate<K> predicate) {
+        delegate.evictKeysIf(predicate);
+    }
+
+    @Override
+    public long evictByTag(String tag) {
+        return delegate.evictByTag(tag);
+    }
+
+    @Override
+    public void evictAll() {
+        delegate.evictAll();
+        writer.append(new StashAccessRecord(System.currentTimeMillis(), 0, StashAccessOperation.EVICT_ALL, 0));
+    }
+
+    @Override
+    public boolean contains(K key) {
+        boolean contains = delegate.contains(key);
+        capture(key, StashAccessOperation.CONTAINS, null);
+        return contains;
+    }
+
+    @Override
+    public StashBatch<K, T> batch() {
+        return new StashBatch<>(batch -> {
+            StashBatch<K, T> delegated = delegate.batch();
+            for (StashBatch.Write<K, T> write : batch.getWrites()) {
+                if (write.isEviction()) {
+                    delegated.evict(write.getKey());
+                } else if (write.getType() == StashBatch.WriteType.UPDATE) {
+                    delegated.update(write.getKey(), write.getElement());
+                } else {
+                    delegated.store(write.getKey(), write.getElement());
+                }
+            }
+
+            delegated.commit();
+            for (StashBatch.Write<K, T> write : batch.getWrites()) {
+                if (write.isEviction()) {
+                    capture(write.getKey(), StashAccessOperation.EVICT, null);
+                } else {
+                    capture(write.getKey(), StashAccessOperation.STORE, write.getElement());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        writer.close();
+        delegate.close();
+    }
+
+    private void captureRetrieval(K key, T element) {
+        int keyHash = StashAccessLog.hash(key);
+        if (log.samples(keyHash)) {
+            int size = element == null ? -1 : log.getSizer().applyAsInt(element);
+            writer.append(new StashAccessRecord(System.currentTimeMillis(), keyHash, StashAccessOperation.RETRIEVE, size));
+        }
+    }
+
+    private void capture(K key, StashAccessOperation operation, T element) {
+        int keyHash = StashAccessLog.hash(key);
+        if (log.samples(keyHash)) {
+            int size = element == null ? 0 : log.getSizer().applyAsInt(element);
+            writer.append(new StashAccessRecord(System.currentTimeMillis(), keyHash, operation, size));
+        }
+    }
+
+}
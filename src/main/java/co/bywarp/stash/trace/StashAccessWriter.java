@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.trace;
+
+import co.bywarp.lightkit.util.logger.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Getter;
+
+/**
+ * Writes sampled accesses to a rotating set of trace files.
+ *
+ * Accesses are queued by the calling thread and written out in the background,
+ * so capturing an access never blocks on disk. Accesses which arrive while the
+ * queue is full are dropped and counted, rather than slowing down the stash.
+ *
+ * A trace file starts with a header, followed by fixed size records:
+ * <pre>
+ * [int magic][int version][double sampleRate][records]
+ * </pre>
+ */
+class StashAccessWriter {
+
+    static final int MAGIC = 0x53544143;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long FLUSH_MILLIS = 250;
+
+    private final Logger logger;
+    private final StashAccessLog<?> log;
+    private final BlockingQueue<StashAccessRecord> queue;
+    private final ByteBuffer buffer;
+    private final ScheduledExecutorService executorService;
+
+    @Getter
+    private final AtomicLong dropped;
+
+    private FileChannel channel;
+    private long fileId;
+    private long written;
+
+    StashAccessWriter(StashAccessLog<?> log) throws IOException {
+        this.logger = new Logger("Stash Access Trace " + log.getDirectory().getFileName());
+        this.log = log;
+        this.queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        this.dropped = new AtomicLong();
+
+        Files.createDirectories(log.getDirectory());
+        List<Path> files = StashAccessReader.files(log.getDirectory());
+        this.fileId = files.isEmpty() ? 0 : StashAccessReader.id(files.get(files.size() - 1));
+        rotate();
+
+        this.executorService = Executors.newSingleThreadScheduledExecutor();
+        this.executorService.scheduleWithFixedDelay(this::drain, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    void append(StashAccessRecord record) {
+        if (!queue.offer(record)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    void close() {
+        executorService.shutdown();
+        try {
+            executorService.awaitTermination(FLUSH_MILLIS * 4, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        drain();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.except(e, "Failed to close trace file");
+        }
+    }
+
+    /**
+     * Writes all queued accesses, rotating to a new
+     * file whenever the current one is full.
+     */
+    private synchronized void drain() {
+        try {
+            StashAccessRecord record;
+            while ((record = queue.poll()) != null) {
+                if (written + buffer.position() + StashAccessRecord.SIZE > log.getMaxFileSize()) {
+                    flush();
+                    rotate();
+                }
+
+                if (buffer.remaining() < StashAccessRecord.SIZE) {
+                    flush();
+                }
+
+                record.write(buffer);
+            }
+
+            flush();
+        } catch (IOException e) {
+            buffer.clear();
+            logger.except(e, "Failed to write access trace");
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer);
+        }
+
+        buffer.clear();
+    }
+
+    /**
+     * Closes the current trace file, opens the next
+     * one, and deletes the oldest files past the limit.
+     *
+     * @throws IOException thrown if the next file could not be created
+     */
+    private void rotate() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+
+        Path path = log.getDirectory().resolve(StashAccessReader.name(++fileId));
+        this.channel = FileChannel.open(path,
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                .putInt(MAGIC)
+                .putInt(VERSION)
+                .putDouble(log.getSampleRate());
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+
+        this.written = HEADER_SIZE;
+
+        List<Path> files = StashAccessReader.files(log.getDirectory());
+        for (int i = 0; i < files.size() - log.getMaxFiles(); i++) {
+            Files.deleteIfExists(files.get(i));
+        }
+    }
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.trace;
+
+/**
+ * The eviction algorithms a {@link StashScenario} can simulate
+ * once a stash reaches it's maximum size.
+ */
+public enum StashEviction {
+
+    /**
+     * Evicts the least recently read or written element.
+     */
+    LRU,
+
+    /**
+     * Evicts the least recently written element.
+     */
+    FIFO,
+
+    /**
+     * Evicts the least frequently read element,
+     * breaking ties by recency.
+     */
+    LFU
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.trace;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A {@link StashTracer} which commits every phase as a Java Flight Recorder event.
+ *
+ * This library targets Java 8, where the Flight Recorder API is not available
+ * at compile time, so the event type is defined at runtime through the
+ * {@code jdk.jfr.EventFactory} of Java 9 and later. Its events are named
+ * {@code co.bywarp.stash.Phase}, and are only enabled while a recording
+ * asks for them.
+ */
+class StashFlightRecorder implements StashTracer {
+
+    private final Object factory;
+    private final Object eventType;
+    private final Method isEnabled;
+    private final Method newEvent;
+    private final Method set;
+    private final Method commit;
+
+    private StashFlightRecorder(Object factory, Object eventType, Method isEnabled,
+                                Method newEvent, Method set, Method commit) {
+        this.factory = factory;
+        this.eventType = eventType;
+        this.isEnabled = isEnabled;
+        this.newEvent = newEvent;
+        this.set = set;
+        this.commit = commit;
+    }
+
+    /**
+     * Defines the phase event type.
+     * @return the tracer, or null if the runtime has no Flight Recorder
+     */
+    static StashFlightRecorder create() {
+        try {
+            Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+            Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+            Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+            Class<?> event = Class.forName("jdk.jfr.Event");
+            Class<?> eventType = Class.forName("jdk.jfr.EventType");
+
+            Constructor<?> annotation = annotationElement.getConstructor(Class.class, Object.class);
+            Constructor<?> field = valueDescriptor.getConstructor(Class.class, String.class, List.class);
+
+            List<Object> annotations = Arrays.asList(
+                    annotation.newInstance(annotationType("jdk.jfr.Name"), "co.bywarp.stash.Phase"),
+                    annotation.newInstance(annotationType("jdk.jfr.Label"), "Stash Phase"),
+                    annotation.newInstance(annotationType("jdk.jfr.Category"), new String[] { "Stash" }));
+
+            List<Object> fields = Arrays.asList(
+                    field.newInstance(String.class, "stash", Collections.emptyList()),
+                    field.newInstance(String.class, "operation", Collections.emptyList()),
+                    field.newInstance(String.class, "phase", Collections.emptyList()),
+                    field.newInstance(int.class, "keyHash", Collections.emptyList()),
+                    field.newInstance(int.class, "payloadSize", Collections.emptyList()),
+                    field.newInstance(long.class, "elapsed", Collections.singletonList(
+                            annotation.newInstance(annotationType("jdk.jfr.Timespan"), "NANOSECONDS"))));
+
+            Object factory = eventFactory.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+            return new StashFlightRecorder(factory,
+                    eventFactory.getMethod("getEventType").invoke(factory),
+                    eventType.getMethod("isEnabled"),
+                    eventFactory.getMethod("newEvent"),
+                    event.getMethod("set", int.class, Object.class),
+                    event.getMethod("commit"));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        try {
+            return (Boolean) isEnabled.invoke(eventType);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void record(String stash, String operation, StashPhase phase, int keyHash, int payloadSize, long durationNanos) {
+        try {
+            Object event = newEvent.invoke(factory);
+            set.invoke(event, 0, stash);
+            set.invoke(event, 1, operation);
+            set.invoke(event, 2, phase.name());
+            set.invoke(event, 3, keyHash);
+            set.invoke(event, 4, payloadSize);
+            set.invoke(event, 5, durationNanos);
+            commit.invoke(event);
+        } catch (ReflectiveOperationException e) {
+            // Tracing must never fail the traced operation
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Class<? extends Annotation> annotationType(String name) throws ClassNotFoundException {
+        return (Class<? extends Annotation>) Class.forName(name);
+    }
+
+}
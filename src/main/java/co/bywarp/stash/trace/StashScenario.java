@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.trace;
+
+import co.bywarp.stash.StashSource;
+import co.bywarp.stash.element.ElementExpiryPolicy;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * A stash configuration which an access trace is replayed
+ * against by a {@link StashSimulator}.
+ *
+ * The source decides which accesses cost a round trip: local sources
+ * never do, a {@link StashSource#REDIS} stash pays for every command it
+ * sends, and a {@link StashSource#REPLICATED} stash only pays for writes.
+ */
+@Getter
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class StashScenario {
+
+    private String name;
+    private StashSource source;
+    private int maximumSize;
+    private ElementExpiryPolicy expiryPolicy;
+    private StashEviction eviction;
+    private int nearCacheSize;
+    private ElementExpiryPolicy nearCacheExpiry;
+
+    /**
+     * Creates a scenario without a near cache.
+     *
+     * @param name the name the scenario is reported under
+     * @param source the kind of stash to simulate
+     * @param maximumSize the maximum amount of elements, for the whole workload
+     * @param expiryPolicy the expiry policy for elements
+     * @param eviction the algorithm used to evict elements past the maximum size
+     * @return the scenario
+     */
+    public static StashScenario of(String name,
+                                   StashSource source,
+                                   int maximumSize,
+                                   ElementExpiryPolicy expiryPolicy,
+                                   StashEviction eviction) {
+        return new StashScenario(name, source, maximumSize, expiryPolicy, eviction, 0, null);
+    }
+
+    /**
+     * Creates a copy of this scenario which reads through an in-process near cache,
+     * evicting the least recently used element once it is full.
+     *
+     * @param maximumSize the maximum amount of elements in the near cache
+     * @param expiryPolicy the expiry policy for near cached elements
+     * @throws UnsupportedOperationException thrown if this is not a Redis scenario
+     * @return the scenario with a near cache
+     */
+    public StashScenario withNearCache(int maximumSize, ElementExpiryPolicy expiryPolicy) {
+        if (source != StashSource.REDIS) {
+            throw new UnsupportedOperationException("Cannot simulate near cache for Non-Redis stash");
+        }
+
+        return new StashScenario(name, source, this.maximumSize, this.expiryPolicy, eviction, maximumSize, expiryPolicy);
+    }
+
+    public boolean hasNearCache() {
+        return nearCacheSize > 0;
+    }
+
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.trace;
+
+import co.bywarp.stash.element.ElementExpiryPolicy;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+import lombok.Getter;
+
+/**
+ * A model of a single stash tier, which tracks the hashed keys and sizes of it's
+ * elements against the clock of a trace, rather than holding real elements.
+ */
+@Getter
+class StashSimulatedTier {
+
+    static final int ENTRY_OVERHEAD = 64;
+
+    private static final int EXPIRY_SLACK = 1024;
+
+    private final int capacity;
+    private final long expiryMillis;
+    private final boolean afterAccess;
+    private final StashEviction eviction;
+
+    private final Map<Integer, Node> nodes;
+    private final TreeSet<Node> frequencies;
+    private final PriorityQueue<Expiry> expiries;
+
+    private long bytes;
+    private long evictions;
+    private long expirations;
+    private long sequence;
+
+    StashSimulatedTier(int capacity, ElementExpiryPolicy expiryPolicy, StashEviction eviction) {
+        this.capacity = Math.max(1, capacity);
+        this.expiryMillis = expiryPolicy.toMillis();
+        this.afterAccess = expiryPolicy.isAfterAccess();
+        this.eviction = eviction;
+        this.nodes = eviction == StashEviction.LFU
+                ? new HashMap<>()
+                : new LinkedHashMap<>();
+        this.frequencies = new TreeSet<>(Comparator
+                .comparingLong((Node node) -> node.frequency)
+                .thenComparingLong(node -> node.sequence));
+        this.expiries = new PriorityQueue<>(Comparator.comparingLong((Expiry expiry) -> expiry.at));
+    }
+
+    /**
+     * Reads an element, counting it as an access.
+     *
+     * @param key the hashed key
+     * @param now the time of the access
+     * @return if the element was present
+     */
+    boolean get(int key, long now) {
+        Node node = nodes.get(key);
+        if (node == null) {
+            return false;
+        }
+
+        if (node.expiresAt <= now) {
+            remove(key);
+            expirations++;
+            return false;
+        }
+
+        if (eviction == StashEviction.LRU) {
+            nodes.remove(key);
+            nodes.put(key, node);
+        } else if (eviction == StashEviction.LFU) {
+            frequencies.remove(node);
+            node.frequency++;
+            node.sequence = sequence++;
+            frequencies.add(node);
+        }
+
+        if (afterAccess) {
+            expire(node, now);
+        }
+
+        return true;
+    }
+
+    int sizeOf(int key) {
+        Node node = nodes.get(key);
+        return node == null ? 0 : node.size - ENTRY_OVERHEAD;
+    }
+
+    boolean contains(int key, long now) {
+        Node node = nodes.get(key);
+        return node != null && node.expiresAt > now;
+    }
+
+    /**
+     * Writes an element, evicting another one if this tier is full.
+     *
+     * @param key the hashed key
+     * @param size the size of the element
+     * @param now the time of the write
+     */
+    void put(int key, int size, long now) {
+        Node node = nodes.remove(key);
+        if (node != null) {
+            bytes -= node.size;
+            frequencies.remove(node);
+        } else {
+            node = new Node(key);
+            if (nodes.size() >= capacity) {
+                evict();
+            }
+        }
+
+        node.size = size + ENTRY_OVERHEAD;
+        node.sequence = sequence++;
+        nodes.put(key, node);
+        bytes += node.size;
+        if (eviction == StashEviction.LFU) {
+            frequencies.add(node);
+        }
+
+        expire(node, now);
+    }
+
+    boolean remove(int key) {
+        Node node = nodes.remove(key);
+        if (node == null) {
+            return false;
+        }
+
+        bytes -= node.size;
+        frequencies.remove(node);
+        return true;
+    }
+
+    void clear() {
+        nodes.clear();
+        frequencies.clear();
+        expiries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Removes every element which expired by the provided time, so
+     * that the size of this tier does not include expired elements.
+     *
+     * @param now the current time of the trace
+     */
+    void advance(long now) {
+        Expiry expiry;
+        while ((expiry = expiries.peek()) != null && expiry.at <= now) {
+            expiries.poll();
+            if (!isStale(expiry)) {
+                remove(expiry.node.key);
+                expirations++;
+            }
+        }
+    }
+
+    private void expire(Node node, long now) {
+        node.expiresAt = now + expiryMillis;
+        expiries.add(new Expiry(node.expiresAt, node));
+
+        // Superseded expiries are skipped lazily, and trimmed once they outnumber the live ones
+        if (expiries.size() > nodes.size() * 2 + EXPIRY_SLACK) {
+            expiries.removeIf(this::isStale);
+        }
+    }
+
+    /**
+     * Returns whether or not an expiry was superseded, because it's element
+     * was accessed or written again, or removed from this tier.
+     *
+     * @param expiry the expiry
+     * @return if the expiry no longer applies
+     */
+    private boolean isStale(Expiry expiry) {
+        return nodes.get(expiry.node.key) != expiry.node || expiry.node.expiresAt != expiry.at;
+    }
+
+    private void evict() {
+        Node victim;
+        if (eviction == StashEviction.LFU) {
+            victim = frequencies.first();
+        } else {
+            Iterator<Node> iterator = nodes.values().iterator();
+            victim = iterator.next();
+        }
+
+        remove(victim.key);
+        evictions++;
+    }
+
+    private static class Node {
+
+        private final int key;
+        private int size;
+        private long expiresAt;
+        private long frequency;
+        private long sequence;
+
+        private Node(int key) {
+            this.key = key;
+        }
+
+    }
+
+    private static class Expiry {
+
+        private final long at;
+        private final Node node;
+
+        private Expiry(long at, Node node) {
+            this.at = at;
+            this.node = node;
+        }
+
+    }
+
+}
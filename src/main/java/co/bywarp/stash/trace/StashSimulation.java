@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.trace;
+
+import lombok.Getter;
+
+/**
+ * The outcome of replaying an access trace against a {@link StashScenario}.
+ *
+ * Ratios are taken directly from the sampled keys, while amounts of round trips
+ * and bytes are scaled up by the sample rate of the trace, to estimate them
+ * for the whole workload.
+ */
+@Getter
+public class StashSimulation {
+
+    private StashScenario scenario;
+    private double sampleRate;
+    private long retrievals;
+    private long hits;
+    private long nearHits;
+    private long fills;
+    private long writes;
+    private long evictions;
+    private long expirations;
+    private long roundTrips;
+    private long peakBytes;
+    private long peakNearBytes;
+
+    StashSimulation(StashScenario scenario, double sampleRate) {
+        this.scenario = scenario;
+        this.sampleRate = sampleRate;
+    }
+
+    public double getHitRatio() {
+        return retrievals == 0 ? 0 : (double) hits / retrievals;
+    }
+
+    public double getNearHitRatio() {
+        return retrievals == 0 ? 0 : (double) nearHits / retrievals;
+    }
+
+    public long getEstimatedRoundTrips() {
+        return scale(roundTrips);
+    }
+
+    public long getEstimatedPeakBytes() {
+        return scale(peakBytes);
+    }
+
+    public long getEstimatedPeakNearBytes() {
+        return scale(peakNearBytes);
+    }
+
+    void retrieved(boolean hit, boolean nearHit) {
+        retrievals++;
+        if (hit || nearHit) {
+            hits++;
+        }
+
+        if (nearHit) {
+            nearHits++;
+        }
+    }
+
+    void filled() {
+        fills++;
+    }
+
+    void written() {
+        writes++;
+    }
+
+    void sent(int commands) {
+        roundTrips += commands;
+    }
+
+    void measure(StashSimulatedTier tier, StashSimulatedTier nearCache) {
+        this.peakBytes = Math.max(peakBytes, tier.getBytes());
+        if (nearCache != null) {
+            this.peakNearBytes = Math.max(peakNearBytes, nearCache.getBytes());
+        }
+    }
+
+    void finish(StashSimulatedTier tier, StashSimulatedTier nearCache) {
+        this.evictions = tier.getEvictions() + (nearCache == null ? 0 : nearCache.getEvictions());
+        this.expirations = tier.getExpirations() + (nearCache == null ? 0 : nearCache.getExpirations());
+    }
+
+    private long scale(long amount) {
+        return sampleRate == 0 ? 0 : Math.round(amount / sampleRate);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %.2f%% hits (%.2f%% near) over %d sampled reads, "
+                        + "~%d round trips, ~%d KiB peak (~%d KiB near)",
+                scenario.getName(),
+                getHitRatio() * 100,
+                getNearHitRatio() * 100,
+                retrievals,
+                getEstimatedRoundTrips(),
+                getEstimatedPeakBytes() / 1024,
+                getEstimatedPeakNearBytes() / 1024);
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.trace;
+
+import co.bywarp.stash.StashSource;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Replays an access trace captured by a {@link StashAccessRecorder} against
+ * a set of {@link StashScenario}s, to compare their hit ratios, memory use and
+ * Redis round trips on real traffic without deploying them.
+ *
+ * Every scenario is scaled down by the sample rate of the trace. A read which
+ * missed in a scenario, but hit in the recorded stash, is assumed to have been
+ * loaded and stored again by the caller, as a cache-aside client would.
+ */
+public class StashSimulator {
+
+    private static final int GET = 1;
+    private static final int SET_EXPIRE = 2;
+    private static final int EXISTS_DEL = 2;
+    private static final int EXISTS = 1;
+    private static final int SCAN_DEL = 1;
+
+    private StashSimulator() {
+    }
+
+    /**
+     * Replays the trace in the provided directory against every scenario, in a single pass.
+     *
+     * @param directory the directory the trace was written to
+     * @param scenarios the scenarios to simulate
+     * @throws IOException thrown if the trace could not be read
+     * @return the outcome of each scenario, in the order they were provided
+     */
+    public static List<StashSimulation> replay(Path directory, StashScenario... scenarios) throws IOException {
+        StashAccessReader reader = new StashAccessReader(directory);
+        List<Replay> replays = Arrays.stream(scenarios)
+                .map(scenario -> new Replay(scenario, reader.getSampleRate()))
+                .collect(Collectors.toList());
+
+        long[] clock = new long[1];
+        reader.forEach(record -> {
+            // Accesses are queued from many threads, so a record may be slightly older than the one before it
+            clock[0] = Math.max(clock[0], record.getTimestamp());
+            for (Replay replay : replays) {
+                replay.apply(record, clock[0]);
+            }
+        });
+
+        List<StashSimulation> simulations = new ArrayList<>();
+        for (Replay replay : replays) {
+            replay.simulation.finish(replay.tier, replay.nearCache);
+            simulations.add(replay.simulation);
+        }
+
+        return simulations;
+    }
+
+    private static class Replay {
+
+        private final StashSimulation simulation;
+        private final StashSimulatedTier tier;
+        private final StashSimulatedTier nearCache;
+        private final boolean remote;
+        private final boolean replicated;
+
+        private Replay(StashScenario scenario, double sampleRate) {
+            this.simulation = new StashSimulation(scenario, sampleRate);
+            this.tier = new StashSimulatedTier(scale(scenario.getMaximumSize(), sampleRate),
+                    scenario.getExpiryPolicy(), scenario.getEviction());
+            this.nearCache = !scenario.hasNearCache() ? null : new StashSimulatedTier(
+                    scale(scenario.getNearCacheSize(), sampleRate),
+                    scenario.getNearCacheExpiry(), StashEviction.LRU);
+            this.remote = scenario.getSource() == StashSource.REDIS;
+            this.replicated = scenario.getSource() == StashSource.REPLICATED;
+        }
+
+        private static int scale(int maximumSize, double sampleRate) {
+            return (int) Math.min(Integer.MAX_VALUE, Math.ceil(maximumSize * sampleRate));
+        }
+
+        private void apply(StashAccessRecord record, long now) {
+            tier.advance(now);
+            if (nearCache != null) {
+                nearCache.advance(now);
+            }
+
+            int key = record.getKeyHash();
+            switch (record.getOperation()) {
+                case RETRIEVE:
+                    retrieve(key, record.getValueSize(), now);
+                    break;
+                case STORE:
+                    write(key, record.getValueSize(), now);
+                    break;
+                case EVICT:
+                    tier.remove(key);
+                    if (nearCache != null) {
+                        nearCache.remove(key);
+                    }
+
+                    send(EXISTS_DEL, true);
+                    break;
+                case CONTAINS:
+                    if (nearCache == null || !nearCache.contains(key, now)) {
+                        send(EXISTS, false);
+                    }
+
+                    break;
+                case EVICT_ALL:
+                    tier.clear();
+                    if (nearCache != null) {
+                        nearCache.clear();
+                    }
+
+                    send(SCAN_DEL, true);
+                    break;
+            }
+
+            simulation.measure(tier, nearCache);
+        }
+
+        private void retrieve(int key, int recordedSize, long now) {
+            if (nearCache != null && nearCache.get(key, now)) {
+                simulation.retrieved(false, true);
+                return;
+            }
+
+            send(GET, false);
+            boolean hit = tier.get(key, now);
+            simulation.retrieved(hit, false);
+            if (hit) {
+                if (nearCache != null) {
+                    nearCache.put(key, recordedSize < 0 ? tier.sizeOf(key) : recordedSize, now);
+                }
+
+                return;
+            }
+
+            if (recordedSize >= 0) {
+                simulation.filled();
+                write(key, recordedSize, now);
+            }
+        }
+
+        private void write(int key, int size, long now) {
+            simulation.written();
+            tier.put(key, size, now);
+            if (nearCache != null) {
+                nearCache.put(key, size, now);
+            }
+
+            send(SET_EXPIRE, true);
+        }
+
+        /**
+         * Counts the round trips of a command, if the simulated source sends it.
+         *
+         * @param commands the amount of commands sent to Redis
+         * @param write if the command modifies the stash
+         */
+        private void send(int commands, boolean write) {
+            if (remote) {
+                simulation.sent(commands);
+            } else if (replicated && write) {
+                simulation.sent(1);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.trace;
+
+/**
+ * The trace of a single stash operation, which times it's phases.
+ *
+ * Phases are timed by taking a mark before the phase, and recording the
+ * phase against the mark once it completes. The trace of an operation which
+ * is not traced is shared, and does not read the clock at all.
+ */
+public class StashTrace {
+
+    static final StashTrace DISABLED = new StashTrace(null, false, null, null, 0);
+
+    private final StashTracing tracing;
+    private final boolean traced;
+    private final String stash;
+    private final String operation;
+    private final int keyHash;
+    private final long startedAt;
+    private final long[] phases;
+
+    StashTrace(StashTracing tracing, boolean traced, String stash, String operation, int keyHash) {
+        this.tracing = tracing;
+        this.traced = traced;
+        this.stash = stash;
+        this.operation = operation;
+        this.keyHash = keyHash;
+        this.startedAt = tracing == null ? 0 : System.nanoTime();
+        this.phases = tracing == null ? null : new long[StashPhase.values().length];
+    }
+
+    /**
+     * Marks the start of a phase.
+     * @return the current time, or 0 if this operation is not traced
+     */
+    public long mark() {
+        return tracing == null ? 0 : System.nanoTime();
+    }
+
+    /**
+     * Records a phase which started at the provided mark.
+     *
+     * @param phase the phase
+     * @param mark the mark taken before the phase
+     * @param payloadSize the size of the element handled by the phase, or 0 if none
+     */
+    public void record(StashPhase phase, long mark, int payloadSize) {
+        if (tracing == null) {
+            return;
+        }
+
+        long duration = System.nanoTime() - mark;
+        phases[phase.ordinal()] += duration;
+        if (traced) {
+            tracing.getTracer().record(stash, operation, phase, keyHash, payloadSize, duration);
+        }
+    }
+
+    /**
+     * Ends this trace, and logs it's breakdown if the operation was slow.
+     */
+    public void end() {
+        if (tracing == null) {
+            return;
+        }
+
+        long total = System.nanoTime() - startedAt;
+        if (total >= tracing.getSlowNanos()) {
+            tracing.logSlow(stash, operation, keyHash, total, phases);
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.trace;
+
+/**
+ * Receives the timings of the phases of stash operations.
+ *
+ * Tracers are asked whether they are enabled before every operation,
+ * so that operations are not timed at all while nothing is listening.
+ */
+public interface StashTracer {
+
+    StashTracer NONE = new StashTracer() {
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+
+        @Override
+        public void record(String stash, String operation, StashPhase phase,
+                           int keyHash, int payloadSize, long durationNanos) {
+        }
+    };
+
+    /**
+     * Returns whether or not this tracer currently records phases.
+     * @return if phases should be timed and recorded
+     */
+    boolean isEnabled();
+
+    /**
+     * Records a completed phase of a stash operation.
+     *
+     * @param stash the name of the stash
+     * @param operation the name of the operation
+     * @param phase the phase
+     * @param keyHash the hash of the key the operation was called with
+     * @param payloadSize the size of the serialized element, in characters or bytes, or 0 if none
+     * @param durationNanos the duration of the phase
+     */
+    void record(String stash, String operation, StashPhase phase, int keyHash, int payloadSize, long durationNanos);
+
+    /**
+     * Returns a tracer which emits Java Flight Recorder events, if the
+     * runtime supports them, or the provided fallback tracer otherwise.
+     *
+     * @param fallback the tracer to use without Flight Recorder
+     * @return the tracer
+     */
+    static StashTracer flightRecorder(StashTracer fallback) {
+        StashTracer tracer = StashFlightRecorder.create();
+        return tracer == null ? fallback : tracer;
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.trace;
+
+import co.bywarp.lightkit.util.logger.Logger;
+
+import java.util.concurrent.TimeUnit;
+
+import lombok.Getter;
+
+/**
+ * The tracing configuration of a stash, made up of a tracer which receives the
+ * timings of every phase, and a threshold above which an operation is slow,
+ * and is logged along with the breakdown of it's time into phases.
+ */
+@Getter
+public class StashTracing {
+
+    public static final StashTracing DISABLED = new StashTracing(StashTracer.NONE, Long.MAX_VALUE);
+
+    private static final Logger LOGGER = new Logger("Stash Tracing");
+
+    private StashTracer tracer;
+    private long slowNanos;
+
+    private StashTracing(StashTracer tracer, long slowNanos) {
+        this.tracer = tracer;
+        this.slowNanos = slowNanos;
+    }
+
+    /**
+     * Creates a tracing configuration.
+     *
+     * @param tracer the tracer which receives every phase
+     * @param slowThreshold the duration above which operations are logged as slow
+     * @param unit the unit of the provided duration
+     * @return the tracing configuration
+     */
+    public static StashTracing of(StashTracer tracer, long slowThreshold, TimeUnit unit) {
+        return new StashTracing(tracer, unit.toNanos(slowThreshold));
+    }
+
+    /**
+     * Creates a tracing configuration which only logs slow operations.
+     *
+     * @param slowThreshold the duration above which operations are logged as slow
+     * @param unit the unit of the provided duration
+     * @return the tracing configuration
+     */
+    public static StashTracing slowOperations(long slowThreshold, TimeUnit unit) {
+        return of(StashTracer.NONE, slowThreshold, unit);
+    }
+
+    /**
+     * Begins tracing an operation.
+     *
+     * @param stash the name of the stash
+     * @param operation the name of the operation
+     * @param key the key the operation was called with
+     * @return the trace of the operation, which does nothing if neither
+     *         the tracer nor the slow operation log are enabled
+     */
+    public StashTrace begin(String stash, String operation, Object key) {
+        boolean traced = tracer.isEnabled();
+        if (!traced && slowNanos == Long.MAX_VALUE) {
+            return StashTrace.DISABLED;
+        }
+
+        return new StashTrace(this, traced, stash, operation, key == null ? 0 : key.hashCode());
+    }
+
+    void logSlow(String stash, String operation, int keyHash, long totalNanos, long[] phases) {
+        StringBuilder breakdown = new StringBuilder()
+                .append("Slow ").append(operation)
+                .append(" on ").append(stash)
+                .append(" (key hash ").append(keyHash).append(") took ")
+                .append(TimeUnit.NANOSECONDS.toMicros(totalNanos)).append("us:");
+
+        for (StashPhase phase : StashPhase.values()) {
+            long nanos = phases[phase.ordinal()];
+            if (nanos > 0) {
+                breakdown.append(' ').append(phase.name().toLowerCase())
+                        .append('=').append(TimeUnit.NANOSECONDS.toMicros(nanos)).append("us");
+            }
+        }
+
+        LOGGER.info(breakdown.toString());
+    }
+
+}
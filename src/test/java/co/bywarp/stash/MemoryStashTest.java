@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash;
+
+import co.bywarp.stash.element.ElementExpiryPolicy;
+import co.bywarp.stash.memory.MemoryStash;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MemoryStashTest {
+
+    private final ElementExpiryPolicy EXPIRY_POLICY = ElementExpiryPolicy.of(20, TimeUnit.SECONDS);
+
+    @Test
+    public void walk() throws InterruptedException {
+        MemoryStash<Long, String> stash = StashFactory.memoryStash(EXPIRY_POLICY);
+        for (long i = 0; i < 10000; i++) {
+            stash.store(i, "Element " + i);
+        }
+
+        assertEquals(10000, stash.stream().count());
+        assertEquals(49995000L, stash.parallelStream().mapToLong(Map.Entry::getKey).sum());
+
+        // Elements written during the walk may or may not be seen, but those written before always are
+        AtomicBoolean walking = new AtomicBoolean(true);
+        Thread writer = new Thread(() -> {
+            for (long i = 10000; walking.get(); i++) {
+                stash.store(i, "Element " + i);
+                stash.evict(i - 1);
+            }
+        });
+
+        writer.start();
+        Set<Long> seen = ConcurrentHashMap.newKeySet();
+        stash.parallelStream().forEach(entry -> seen.add(entry.getKey()));
+        walking.set(false);
+        writer.join();
+
+        for (long i = 0; i < 9999; i++) {
+            assertTrue(seen.contains(i));
+        }
+
+        stash.close();
+    }
+
+    @Test
+    public void boundedWalk() {
+        MemoryStash<Long, String> stash = new MemoryStash<>(EXPIRY_POLICY, 100, null);
+        for (long i = 0; i < 1000; i++) {
+            stash.store(i, "Element " + i);
+        }
+
+        assertEquals(100, stash.stream().count());
+        stash.forEach((key, element) -> assertTrue(key >= 900));
+        stash.close();
+    }
+
+    @Test
+    public void evictIf() {
+        MemoryStash<Long, String> stash = StashFactory.memoryStash(EXPIRY_POLICY);
+        for (long i = 0; i < 10000; i++) {
+            stash.store(i, "Element " + i, i % 2 == 0 ? "Even" : "Odd");
+        }
+
+        // Spans several eviction batches
+        stash.evictIf((key, element) -> key % 2 == 0);
+        assertEquals(5000, stash.retrieveAll().size());
+        assertFalse(stash.contains(42L));
+        assertEquals(0, stash.evictByTag("Even"));
+        assertEquals(5000, stash.evictByTag("Odd"));
+        assertTrue(stash.retrieveAll().isEmpty());
+
+        for (long i = 0; i < 10000; i++) {
+            stash.store(i, "Element " + i);
+        }
+
+        // An element written after it was tested is kept
+        stash.evictKeysIf(key -> {
+            if (key == 42L) {
+                stash.store(42L, "Rewritten");
+            }
+
+            return true;
+        });
+
+        assertEquals(1, stash.retrieveAll().size());
+        assertEquals("Rewritten", stash.retrieve(42L));
+        stash.close();
+    }
+
+    @Test
+    public void nullKeys() {
+        MemoryStash<Long, String> stash = StashFactory.memoryStash(EXPIRY_POLICY);
+        assertThrows(NullPointerException.class, () -> stash.store(null, "Element"));
+        assertNull(stash.retrieve(null));
+        assertFalse(stash.contains(null));
+        assertFalse(stash.evict(null));
+        stash.close();
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash;
+
+import co.bywarp.stash.codec.StashCodec;
+import co.bywarp.stash.element.ElementExpiryPolicy;
+import co.bywarp.stash.memory.OffHeapStash;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OffHeapStashTest {
+
+    private final ElementExpiryPolicy EXPIRY_POLICY = ElementExpiryPolicy.of(20, TimeUnit.SECONDS);
+
+    @Test
+    public void init() {
+        OffHeapStash<Long, String> stash = StashFactory.offHeapStash(EXPIRY_POLICY,
+                StashCodec.longs(),
+                StashCodec.string(),
+                OffHeapStash.DEFAULT_MAX_MEMORY);
+
+        for (long i = 0; i < 10000; i++) {
+            stash.store(i, "Element " + i);
+        }
+
+        assertEquals("Element 42", stash.retrieve(42L));
+        assertNull(stash.retrieve(10000L));
+        assertTrue(stash.contains(9999L));
+
+        assertEquals("Set", stash.retrieveOrSet(10000L, "Set"));
+        assertEquals("Set", stash.retrieveOrSet(10000L, "Ignored"));
+        assertTrue(stash.evict(10000L));
+
+        stash.update(42L, "Updated");
+        assertEquals("Updated", stash.retrieve(42L));
+        assertThrows(NullPointerException.class, () -> stash.update(10000L, "Missing"));
+
+        assertFalse(stash.evict(42L, "Element 42"));
+        assertTrue(stash.evict(42L, "Updated"));
+        assertFalse(stash.contains(42L));
+
+        stash.evictKeysIf(key -> key % 2 == 0);
+        Map<Long, String> all = stash.retrieveAll();
+        assertEquals(5000, all.size());
+        all.keySet().forEach(key -> assertEquals(1, key % 2));
+
+        stash.evictAll();
+        assertTrue(stash.retrieveAll().isEmpty());
+        stash.close();
+    }
+
+    @Test
+    public void eviction() {
+        OffHeapStash<Long, String> stash = StashFactory.offHeapStash(EXPIRY_POLICY,
+                StashCodec.longs(),
+                StashCodec.string(),
+                16L << 20);
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            builder.append('x');
+        }
+
+        String element = builder.toString();
+        for (long i = 0; i < 100000; i++) {
+            stash.store(i, element);
+            assertEquals(element, stash.retrieve(i));
+        }
+
+        assertTrue(stash.getAllocatedMemory() <= 16L << 20);
+        stash.close();
+    }
+
+}
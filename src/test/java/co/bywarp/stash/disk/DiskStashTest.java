@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.disk;
+
+import co.bywarp.stash.codec.StashCodec;
+import co.bywarp.stash.element.ElementExpiryPolicy;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DiskStashTest {
+
+    private final ElementExpiryPolicy EXPIRY_POLICY = ElementExpiryPolicy.of(20, TimeUnit.SECONDS);
+    private final int SEGMENT_SIZE = 4096;
+
+    @Test
+    public void reopen(@TempDir Path directory) {
+        DiskStash<String, String> stash = open(directory);
+        for (int i = 0; i < 100; i++) {
+            stash.store("Key " + i, "Element " + i);
+        }
+
+        stash.update("Key 42", "Updated");
+        assertTrue(stash.evict("Key 7"));
+        stash.close();
+
+        DiskStash<String, String> reopened = open(directory);
+        Map<String, String> all = reopened.retrieveAll();
+        assertEquals(99, all.size());
+        assertEquals("Updated", all.get("Key 42"));
+        assertEquals("Element 99", all.get("Key 99"));
+        assertFalse(all.containsKey("Key 7"));
+        reopened.close();
+    }
+
+    @Test
+    public void compaction(@TempDir Path directory) {
+        DiskStash<String, String> stash = open(directory);
+        String padding = padding(100);
+
+        // The first segment stays mostly live, so it is kept by compaction
+        stash.store("Restored", "First");
+        int live = 0;
+        while (stash.getActive().getId() == 0) {
+            stash.store("Live " + live, padding + live);
+            live++;
+        }
+
+        // The second segment is mostly superseded, and holds tombstones for keys in the first
+        assertTrue(stash.evict("Restored"));
+        assertTrue(stash.evict("Live 0"));
+        int churn = 0;
+        while (stash.getActive().getId() == 1) {
+            stash.store("Churn", padding + churn++);
+        }
+
+        stash.store("Restored", "Second");
+        stash.compact();
+        assertFalse(stash.getSegments().containsKey(1L));
+        stash.close();
+
+        DiskStash<String, String> reopened = open(directory);
+        assertEquals("Second", reopened.retrieve("Restored"));
+        assertNull(reopened.retrieve("Live 0"));
+        assertEquals(padding + (churn - 1), reopened.retrieve("Churn"));
+        for (int i = 1; i < live; i++) {
+            assertEquals(padding + i, reopened.retrieve("Live " + i));
+        }
+
+        assertEquals(live + 1, reopened.retrieveAll().size());
+        reopened.close();
+    }
+
+    private DiskStash<String, String> open(Path directory) {
+        return new DiskStash<>(EXPIRY_POLICY, directory, StashCodec.string(), StashCodec.string(), SEGMENT_SIZE);
+    }
+
+    private String padding(int length) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            builder.append('x');
+        }
+
+        return builder.toString();
+    }
+
+}
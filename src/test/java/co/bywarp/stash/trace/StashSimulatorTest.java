@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2020 Warp Studios
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bywarp.stash.trace;
+
+import co.bywarp.stash.StashFactory;
+import co.bywarp.stash.StashSource;
+import co.bywarp.stash.element.ElementExpiryPolicy;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StashSimulatorTest {
+
+    private final ElementExpiryPolicy EXPIRY_POLICY = ElementExpiryPolicy.of(20, TimeUnit.SECONDS);
+
+    @Test
+    public void record(@TempDir Path directory) throws IOException {
+        StashAccessRecorder<String, String> recorder = new StashAccessRecorder<>(
+                StashFactory.memoryStash(EXPIRY_POLICY),
+                StashAccessLog.of(directory, 1, String::length));
+
+        recorder.store("Key", "Element");
+        assertEquals("Element", recorder.retrieve("Key"));
+        assertNull(recorder.retrieve("Missing"));
+        assertTrue(recorder.contains("Key"));
+        assertTrue(recorder.evict("Key"));
+        recorder.evictAll();
+        recorder.close();
+
+        StashAccessReader reader = new StashAccessReader(directory);
+        List<StashAccessRecord> records = new ArrayList<>();
+        reader.forEach(records::add);
+        assertEquals(1, reader.getSampleRate());
+        assertEquals(6, records.size());
+
+        assertRecord(records.get(0), "Key", StashAccessOperation.STORE, 7);
+        assertRecord(records.get(1), "Key", StashAccessOperation.RETRIEVE, 7);
+        assertRecord(records.get(2), "Missing", StashAccessOperation.RETRIEVE, -1);
+        assertRecord(records.get(3), "Key", StashAccessOperation.CONTAINS, 0);
+        assertRecord(records.get(4), "Key", StashAccessOperation.EVICT, 0);
+        assertEquals(StashAccessOperation.EVICT_ALL, records.get(5).getOperation());
+    }
+
+    @Test
+    public void replay(@TempDir Path directory) throws IOException {
+        StashAccessWriter writer = new StashAccessWriter(StashAccessLog.of(directory, 1, (String element) -> 0));
+        long timestamp = 0;
+        for (int key : new int[] { 1, 2, 1, 3, 1, 2 }) {
+            writer.append(new StashAccessRecord(timestamp++, key, StashAccessOperation.RETRIEVE, 10));
+        }
+
+        writer.close();
+
+        // Every read hit in the recorded stash, so every miss is filled again
+        List<StashSimulation> simulations = StashSimulator.replay(directory,
+                StashScenario.of("LRU", StashSource.MEMORY, 2, EXPIRY_POLICY, StashEviction.LRU),
+                StashScenario.of("FIFO", StashSource.MEMORY, 2, EXPIRY_POLICY, StashEviction.FIFO),
+                StashScenario.of("Unbounded", StashSource.REDIS, 10, EXPIRY_POLICY, StashEviction.LRU));
+
+        StashSimulation lru = simulations.get(0);
+        assertEquals(6, lru.getRetrievals());
+        assertEquals(2, lru.getHits());
+        assertEquals(2, lru.getEvictions());
+        assertEquals(0, lru.getRoundTrips());
+
+        StashSimulation fifo = simulations.get(1);
+        assertEquals(1, fifo.getHits());
+        assertEquals(3, fifo.getEvictions());
+
+        StashSimulation unbounded = simulations.get(2);
+        assertEquals(0.5, unbounded.getHitRatio());
+        assertEquals(3, unbounded.getFills());
+        assertEquals(0, unbounded.getEvictions());
+        assertEquals(6 + 3 * 2, unbounded.getRoundTrips());
+    }
+
+    @Test
+    public void expiry() {
+        StashSimulatedTier tier = new StashSimulatedTier(10,
+                ElementExpiryPolicy.afterAccess(1, TimeUnit.SECONDS), StashEviction.LRU);
+
+        tier.put(1, 10, 0);
+        for (long now = 0; now < 100000; now++) {
+            assertTrue(tier.get(1, now));
+        }
+
+        assertTrue(tier.getExpiries().size() < 2048);
+        tier.advance(100000 + 1000);
+        assertFalse(tier.contains(1, 100000 + 1000));
+        assertEquals(1, tier.getExpirations());
+        assertTrue(tier.getExpiries().isEmpty());
+    }
+
+    private void assertRecord(StashAccessRecord record, String key, StashAccessOperation operation, int valueSize) {
+        assertEquals(StashAccessLog.hash(key), record.getKeyHash());
+        assertEquals(operation, record.getOperation());
+        assertEquals(valueSize, record.getValueSize());
+    }
+
+}